@@ -0,0 +1,75 @@
+package cn.ac.cns.nia.bench;
+
+import cn.ac.cns.nia.engine.EngineOptions;
+import cn.ac.cns.nia.engine.ModelSource;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Shared fixtures: the bundled model, the sample image and engine options built from benchmark params.
+ */
+final class BenchSupport {
+
+    static final String MODEL = "dncnn.onnx";
+    static final String SAMPLE = System.getProperty("nia.bench.image", "data/Noisy Blobs.tif");
+
+    private BenchSupport() {
+    }
+
+    static ModelSource model() {
+        return ModelSource.builtIn(MODEL);
+    }
+
+    /**
+     * threads = intra-op thread count (0 = ORT default), opt = ORT optimization level name
+     */
+    static EngineOptions engineOptions(int threads, String opt) {
+        return engineOptions(threads, opt, false);
+    }
+
+    /**
+     * cache = load the optimized graph from target/bench-ort-cache (built on first use)
+     */
+    static EngineOptions engineOptions(int threads, String opt, boolean cache) {
+        EngineOptions o = new EngineOptions();
+        o.intraOpThreads = threads;
+        o.optLevel = ai.onnxruntime.OrtSession.SessionOptions.OptLevel.valueOf(opt);
+        o.cacheOptimizedModel = cache;
+        o.cacheDirectory = new File("target", "bench-ort-cache");
+        return o;
+    }
+
+    static ImagePlus sample() {
+        ImagePlus imp = IJ.openImage(SAMPLE);
+        if (imp == null) throw new IllegalStateException("Cannot open sample image " + SAMPLE
+                + " (run from the project directory or set -Dnia.bench.image)");
+        return imp;
+    }
+
+    /**
+     * The sample plane repeated to fill a stack of the requested size
+     */
+    static ImageStack sampleStack(int planes) {
+        ImageProcessor ip = sample().getProcessor();
+        ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
+        for (int i = 0; i < planes; i++) stack.addSlice(ip.duplicate());
+        return stack;
+    }
+
+    /**
+     * Noise-like test plane of the given bit depth, deterministic across runs
+     */
+    static ImageProcessor randomPlane(int width, int height, int bitDepth) {
+        ImagePlus imp = IJ.createImage("bench", bitDepth + "-bit black", width, height, 1);
+        ImageProcessor ip = imp.getProcessor();
+        Random random = new Random(42);
+        double max = bitDepth == 8 ? 255 : bitDepth == 16 ? 4095 : 1000;
+        for (int i = 0; i < width * height; i++) ip.setf(i, (float) (random.nextDouble() * max));
+        return ip;
+    }
+}
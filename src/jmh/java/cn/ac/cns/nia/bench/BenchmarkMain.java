@@ -0,0 +1,105 @@
+package cn.ac.cns.nia.bench;
+
+import ai.onnxruntime.OrtEnvironment;
+import cn.ac.cns.nia.engine.PixelKernels;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.TreeMap;
+
+/**
+ * Runs the JMH benchmarks (same command line as org.openjdk.jmh.Main) and writes a compact summary:
+ * one line per benchmark + parameter combination, sorted, fixed precision, so two releases can be diffed.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp()) {
+            options.showHelp();
+            return;
+        }
+        if (options.shouldList()) {
+            new Runner(options).list();
+            return;
+        }
+        Collection<RunResult> results = new Runner(options).run();
+
+        File out = new File(System.getProperty("nia.bench.out", "target/benchmarks/nia-bench.json"));
+        File dir = out.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IllegalStateException("Cannot create " + dir);
+        try (Writer w = Files.newBufferedWriter(out.toPath(), StandardCharsets.UTF_8)) {
+            w.write(toJson(results));
+        }
+        System.out.println("NIA benchmark summary: " + out);
+    }
+
+    static String toJson(Collection<RunResult> results) {
+        List<String> lines = new ArrayList<>();
+        for (RunResult r : results) {
+            String name = r.getParams().getBenchmark();
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1); // Class.method
+            TreeMap<String, String> params = new TreeMap<>();
+            for (String key : r.getParams().getParamsKeys()) params.put(key, r.getParams().getParam(key));
+
+            Result<?> primary = r.getPrimaryResult();
+            StringBuilder sb = new StringBuilder("    {\"benchmark\": ").append(json(name)).append(", \"params\": {");
+            String sep = "";
+            for (String key : params.keySet()) {
+                sb.append(sep).append(json(key)).append(": ").append(json(params.get(key)));
+                sep = ", ";
+            }
+            sb.append("}, \"mode\": ").append(json(r.getParams().getMode().shortLabel()))
+                    .append(", \"score\": ").append(number(primary.getScore()))
+                    .append(", \"error\": ").append(number(primary.getScoreError()))
+                    .append(", \"unit\": ").append(json(primary.getScoreUnit()))
+                    .append("}");
+            lines.add(sb.toString());
+        }
+        lines.sort(Comparator.naturalOrder());
+
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"version\": ").append(json(pluginVersion())).append(",\n");
+        sb.append("  \"onnxruntime\": ").append(json(OrtEnvironment.getEnvironment().getVersion())).append(",\n");
+        sb.append("  \"jvm\": ").append(json(System.getProperty("java.vm.name") + " " + System.getProperty("java.version"))).append(",\n");
+        sb.append("  \"os\": ").append(json(System.getProperty("os.name") + " " + System.getProperty("os.arch"))).append(",\n");
+        sb.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"vectorKernels\": ").append(PixelKernels.isVectorized()).append(",\n");
+        sb.append("  \"results\": [\n");
+        sb.append(String.join(",\n", lines)).append('\n');
+        sb.append("  ]\n}\n");
+        return sb.toString();
+    }
+
+    private static String pluginVersion() {
+        try (InputStream is = BenchmarkMain.class.getResourceAsStream("/version.txt")) {
+            if (is == null) return "Dev";
+            try (Scanner scanner = new Scanner(is, StandardCharsets.UTF_8.name())) {
+                return scanner.useDelimiter("\\A").next().trim();
+            }
+        } catch (Exception e) {
+            return "Unknown";
+        }
+    }
+
+    private static String number(double v) {
+        return Double.isNaN(v) ? "null" : String.format(Locale.ROOT, "%.4g", v);
+    }
+
+    private static String json(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,81 @@
+package cn.ac.cns.nia.bench;
+
+import cn.ac.cns.nia.engine.InferenceEngine;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Engine cost: session construction (cold start) and single-plane run latency by image size.
+ * Both are measured for each thread count / optimization level combination, with and without
+ * the on-disk optimized-model cache.
+ */
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EngineBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Config {
+        @Param({"1", "4", "0"})
+        public int threads;
+
+        @Param({"BASIC_OPT", "ALL_OPT"})
+        public String opt;
+
+        @Param({"false", "true"})
+        public boolean cache;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Loaded {
+        @Param({"64", "256", "512", "1024"})
+        public int size;
+
+        InferenceEngine engine;
+        ImageProcessor plane;
+
+        @Setup(Level.Trial)
+        public void setUp(Config config) throws Exception {
+            engine = new InferenceEngine(BenchSupport.model(),
+                    BenchSupport.engineOptions(config.threads, config.opt, config.cache));
+            plane = BenchSupport.randomPlane(size, size, 32);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            engine.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public int construct(Config config) throws Exception {
+        try (InferenceEngine engine = new InferenceEngine(BenchSupport.model(),
+                BenchSupport.engineOptions(config.threads, config.opt, config.cache))) {
+            return engine.getMaxBatchSize();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public ImageProcessor run(Loaded loaded) {
+        return loaded.engine.run(loaded.plane, 1000.0);
+    }
+}
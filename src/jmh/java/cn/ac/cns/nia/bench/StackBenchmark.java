@@ -0,0 +1,78 @@
+package cn.ac.cns.nia.bench;
+
+import cn.ac.cns.nia.engine.EnginePool;
+import cn.ac.cns.nia.engine.StackPipeline;
+import ij.ImageStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end stack throughput on the sample image, reported in planes per second.
+ * The pipeline writes in place, so later invocations denoise already-denoised planes; the cost is the same.
+ */
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class StackBenchmark {
+
+    private static final int PLANES = 16;
+
+    @Param({"1", "4"})
+    public int batch;
+
+    @Param({"0", "2"})
+    public int queueDepth;
+
+    @Param({"1", "2"})
+    public int sessions;
+
+    @Param({"0", "2"})
+    public int threads;
+
+    @Param({"BASIC_OPT"})
+    public String opt;
+
+    private EnginePool pool;
+    private ImageStack stack;
+    private int[] order;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        pool = new EnginePool(BenchSupport.model(), BenchSupport.engineOptions(threads, opt), sessions, false);
+        stack = BenchSupport.sampleStack(PLANES);
+        order = new int[PLANES];
+        for (int i = 0; i < PLANES; i++) order[i] = i + 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PLANES)
+    public ImageStack throughput() throws Exception {
+        new StackPipeline(pool, stack, 255.0)
+                .setBatchSize(batch)
+                .setQueueDepth(queueDepth)
+                .run(order, null);
+        return stack;
+    }
+}
@@ -0,0 +1,87 @@
+package cn.ac.cns.nia.engine;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API 版本的像素内核 (只在 -Pvector 构建中编译，JDK 17+)
+ * 每次处理 FloatVector.SPECIES_PREFERRED 个像素，尾部交给标量实现。
+ * 由 PixelKernels 通过反射加载；运行时缺少 jdk.incubator.vector 模块时会自动退回标量版本。
+ */
+final class VectorKernels implements PixelKernels.RangeKernels {
+
+    private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+    // 与 F 同车道数的窄类型 species
+    private static final VectorSpecies<Byte> B = ByteVector.SPECIES_PREFERRED.withShape(
+            jdk.incubator.vector.VectorShape.forBitSize(F.length() * 8));
+    private static final VectorSpecies<Short> S = ShortVector.SPECIES_PREFERRED.withShape(
+            jdk.incubator.vector.VectorShape.forBitSize(F.length() * 16));
+
+    private final PixelKernels.Scalar scalar = new PixelKernels.Scalar();
+
+    @Override
+    public void normalize(Object src, int from, int to, float[] dst, int dstOffset, float scale) {
+        int n = F.length();
+        int i = from;
+        int bound = from + (to - from) / n * n;
+        if (src instanceof byte[]) {
+            byte[] p = (byte[]) src;
+            for (; i < bound; i += n) {
+                ByteVector.fromArray(B, p, i)
+                        .convertShape(VectorOperators.B2I, I, 0).lanewise(VectorOperators.AND, 0xff)
+                        .convert(VectorOperators.I2F, 0).reinterpretAsFloats()
+                        .div(scale).intoArray(dst, dstOffset + i);
+            }
+        } else if (src instanceof short[]) {
+            short[] p = (short[]) src;
+            for (; i < bound; i += n) {
+                ShortVector.fromArray(S, p, i)
+                        .convertShape(VectorOperators.S2I, I, 0).lanewise(VectorOperators.AND, 0xffff)
+                        .convert(VectorOperators.I2F, 0).reinterpretAsFloats()
+                        .div(scale).intoArray(dst, dstOffset + i);
+            }
+        } else {
+            float[] p = (float[]) src;
+            for (; i < bound; i += n) {
+                FloatVector.fromArray(F, p, i).div(scale).intoArray(dst, dstOffset + i);
+            }
+        }
+        scalar.normalize(src, i, to, dst, dstOffset, scale);
+    }
+
+    @Override
+    public void denormalize(float[] src, int srcOffset, Object dst, int from, int to, float scale) {
+        int n = F.length();
+        int i = from;
+        int bound = from + (to - from) / n * n;
+        if (dst instanceof byte[]) {
+            byte[] p = (byte[]) dst;
+            for (; i < bound; i += n) {
+                FloatVector.fromArray(F, src, srcOffset + i).mul(scale).max(0f).add(0.5f).min(255f)
+                        .convert(VectorOperators.F2I, 0)
+                        .convertShape(VectorOperators.I2B, B, 0).reinterpretAsBytes()
+                        .intoArray(p, i);
+            }
+        } else if (dst instanceof short[]) {
+            short[] p = (short[]) dst;
+            for (; i < bound; i += n) {
+                // v + 0.5f 在 [0, 65535.5] 内是精确的，与标量版本的 double 运算结果相同
+                FloatVector.fromArray(F, src, srcOffset + i).mul(scale).max(0f).min(65535f).add(0.5f)
+                        .convert(VectorOperators.F2I, 0)
+                        .convertShape(VectorOperators.I2S, S, 0).reinterpretAsShorts()
+                        .intoArray(p, i);
+            }
+        } else {
+            float[] p = (float[]) dst;
+            for (; i < bound; i += n) {
+                FloatVector.fromArray(F, src, srcOffset + i).mul(scale).max(0f).intoArray(p, i);
+            }
+        }
+        scalar.denormalize(src, srcOffset, dst, i, to, scale);
+    }
+}
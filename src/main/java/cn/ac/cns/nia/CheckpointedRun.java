@@ -0,0 +1,118 @@
+package cn.ac.cns.nia;
+
+import cn.ac.cns.nia.engine.AdaptiveInference;
+import cn.ac.cns.nia.engine.InferencePool;
+import cn.ac.cns.nia.engine.ModelSource;
+import cn.ac.cns.nia.engine.Normalization;
+import cn.ac.cns.nia.engine.StackPipeline;
+import cn.ac.cns.nia.io.Checkpoint;
+import cn.ac.cns.nia.io.TiffStackWriter;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs a StackPipeline either in place or streamed to a TIFF, optionally with checkpoints
+ * (see io.Checkpoint) so a restarted job skips the planes a crashed one already finished.
+ * Shared by the plugin and the batch runner.
+ */
+final class CheckpointedRun {
+
+    private CheckpointedRun() {
+    }
+
+    /**
+     * Everything the result depends on: model weights and precision, block skipping, the plane factors, the input
+     * itself, and the tiling the pipeline will actually use. Call it after the memory plan has been applied: a run
+     * resumed under different memory conditions may get another plan, and its planes must not be mixed with ones
+     * computed at a different tile size. Batch size, threading and worker count do not change the output, so a
+     * resumed run may use different ones.
+     */
+    static String identity(ImagePlus imp, ModelSource model, InferencePool engines, Normalization.Result norm,
+                           DenoiseOptions options, StackPipeline pipeline) throws IOException {
+        AdaptiveInference adaptive = options.toAdaptive();
+        return Checkpoint.identity(
+                "model=" + modelId(model, engines, options),
+                "tiles=" + (pipeline.isTiled() ? pipeline.getTileSize() : 0) + "/" + pipeline.getTileOverlap()
+                        + (adaptive != null ? " " + adaptive.settings() : ""),
+                "factors=" + Arrays.toString(norm.planeFactors()),
+                "input=" + Checkpoint.describeInput(imp));
+    }
+
+    /**
+     * Model weights plus the precision the engines actually run at (FP16 may have fallen back to FP32)
+     * and the shape bucket, whose padding slightly changes the pixels near the right and bottom edges.
+     */
+    static String modelId(ModelSource model, InferencePool engines, DenoiseOptions options) throws IOException {
+        return model.contentHash() + (engines.isFp16() ? " fp16" : "")
+                + (options.shapeBucket > 0 ? " bucket=" + options.shapeBucket : "");
+    }
+
+    /**
+     * Checkpointing needs a multi-plane stack (or a streamed result) in a bit depth TiffStackWriter can store.
+     */
+    static boolean canCheckpoint(ImagePlus imp, File outFile, DenoiseOptions options) {
+        return options.checkpointSeconds > 0 && Checkpoint.supports(imp.getBitDepth())
+                && (outFile != null || imp.getStackSize() > 1);
+    }
+
+    /**
+     * Processes all planes of imp in C/Z/T order. The result goes to outFile when it is set, otherwise
+     * back into the stack. With an identity, completed planes are checkpointed every
+     * options.checkpointSeconds and a matching earlier checkpoint is resumed.
+     *
+     * @return number of planes taken over from an earlier run
+     */
+    static int run(StackPipeline pipeline, ImagePlus imp, File outFile, String identity, DenoiseOptions options,
+                   StackPipeline.ProgressListener listener) throws Exception {
+        int[] order = StackPipeline.cztOrder(imp);
+        if (identity == null) {
+            if (outFile == null) {
+                pipeline.run(order, listener);
+            } else {
+                try (TiffStackWriter writer = new TiffStackWriter(outFile, imp)) {
+                    pipeline.setOutput(writer::writePlane).run(order, listener);
+                }
+            }
+            return 0;
+        }
+
+        ImageStack stack = imp.getStack();
+        long interval = options.checkpointSeconds * 1000L;
+        try (Checkpoint checkpoint = outFile != null
+                ? Checkpoint.open(outFile, identity, imp, interval)
+                : Checkpoint.openScratch(identity, imp.getWidth(), imp.getHeight(), imp.getBitDepth(),
+                imp.getNChannels(), imp.getNSlices(), imp.getNFrames(), interval)) {
+            int resumed = checkpoint.getResumedCount();
+            if (outFile == null) {
+                IJ.log("Checkpoint copy of the stack: " + checkpoint.getFile() + " (deleted when the run completes)");
+            }
+            if (resumed > 0) {
+                if (outFile == null) checkpoint.restore(stack);
+                order = checkpoint.remaining(order);
+                IJ.log("Resuming from checkpoint: " + resumed + " of " + stack.getSize() + " planes already done");
+            }
+
+            int total = stack.getSize();
+            StackPipeline.ProgressListener progress = listener == null ? null
+                    : (done, n) -> listener.onProgress(resumed + done, total);
+            if (outFile != null) {
+                pipeline.setOutput(checkpoint::writePlane);
+            } else {
+                int planeSize = imp.getWidth() * imp.getHeight();
+                pipeline.setOutput((index, pixels) -> {
+                    // the pipeline reuses its buffer, so the plane is copied into the stack
+                    System.arraycopy(pixels, 0, stack.getPixels(index), 0, planeSize);
+                    checkpoint.writePlane(index, pixels);
+                });
+            }
+            pipeline.run(order, progress);
+            checkpoint.finish();
+            return resumed;
+        }
+    }
+}
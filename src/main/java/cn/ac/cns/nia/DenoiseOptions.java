@@ -0,0 +1,334 @@
+package cn.ac.cns.nia;
+
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+import cn.ac.cns.nia.engine.AdaptiveInference;
+import cn.ac.cns.nia.engine.EngineOptions;
+import cn.ac.cns.nia.engine.Normalization;
+import cn.ac.cns.nia.engine.ResultCache;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+
+import java.io.IOException;
+
+/**
+ * Advanced run options, persisted in IJ_Prefs.txt so they survive restarts.
+ * The main window stays minimal; everything tunable lives here.
+ */
+public class DenoiseOptions {
+
+    private static final String PREFIX = "nia.";
+    private static final int INTERACTIVE_SAMPLE_PLANES = 64;
+
+    // Normalization statistics
+    static final String[] NORM_MODES = {"Max", "Percentile"};
+    public String normMode = NORM_MODES[0];
+    public double normPercentile = 99.9;
+    public boolean normPerChannel = false;
+    public int normSamplePlanes = 0;
+    public int normPixelStride = 1;
+
+    // Tiling: planes larger than tileSize are split into tiles with an overlap halo
+    public boolean tiling = true;
+    public int tileSize = 1024;
+    public int tileOverlap = 32;
+
+    // Adaptive compute: blocks scoring below the threshold (structure RMS in noise sigmas) skip the network
+    // and are smoothed or kept as they are; the overlap is used as context around the blocks that are inferred
+    static final String[] ADAPTIVE_FALLBACKS = {"Smooth", "Keep"};
+    public boolean adaptive = false;
+    public int adaptiveBlock = 128;
+    public double adaptiveThreshold = 1.0;
+    public String adaptiveFallback = ADAPTIVE_FALLBACKS[0];
+    public int adaptiveVerifyPlanes = 1;
+
+    // Batching: number of planes packed into one [K, H, W, 1] tensor
+    public int batchSize = 4;
+
+    // Pipelining: batches queued between prep / infer / write stages (0 = sequential)
+    public int queueDepth = 2;
+
+    // Memory planning: tile size, batch size, workers and queue depth are lowered to fit free heap / native memory
+    public boolean autoPlan = true;
+
+    // Streaming: write results to a new TIFF instead of overwriting the stack in memory
+    public boolean streamOutput = false;
+
+    // Checkpoints: completed planes and progress are saved this often so a restarted run resumes (0 = off).
+    // Off by default: an in-place run keeps an uncompressed copy of the stack under ~/.nia/checkpoints
+    public int checkpointSeconds = 0;
+
+    // Result cache: denoised planes stored on disk by content hash, reused when the same data is run again (0 = off)
+    public int resultCacheMb = 0;
+
+    // Lazy view: open a new window that denoises planes on demand instead of processing the whole stack
+    public boolean lazyView = false;
+    public int viewCacheMb = 512;
+    public int prefetchPlanes = 2;
+
+    // Metrics: the stage summary always goes to the log; CSV + JSON next to the image are opt-in
+    public boolean exportMetrics = false;
+
+    // Operator profiling: this many planes also run through an ONNX Runtime profiling session first (0 = off)
+    public int profilePlanes = 0;
+
+    // ONNX Runtime threading (0 = runtime default)
+    public int intraOpThreads = 0;
+    public int interOpThreads = 0;
+    public boolean parallelExecution = false;
+    public boolean allowSpinning = true;
+
+    // Graph optimization; caching the optimized graph on disk (~/.nia/ort-cache) is opt-in
+    static final String[] OPT_LEVELS = {"Basic", "Extended", "All"};
+    public String optLevel = "Basic";
+    public boolean cacheOptimizedModel = false;
+
+    // Half-precision model and tensors; check the accuracy with Nia_Batch --fp16-report first
+    public boolean fp16 = false;
+
+    // Shape bucketing: inputs are reflect-padded to a multiple of this size so odd sizes share tensors (0 = off)
+    public int shapeBucket = 0;
+
+    // Concurrency: inference workers, each with its own session unless shared
+    public int sessions = 1;
+    public boolean sharedSession = false;
+
+    // Out-of-process inference: planes are sent to this many worker JVMs over a local socket (0 = inside ImageJ)
+    public int workerProcesses = 0;
+    public boolean pinWorkers = false;
+
+    public static DenoiseOptions load() {
+        DenoiseOptions o = new DenoiseOptions();
+        o.normMode = Prefs.get(PREFIX + "normMode", o.normMode);
+        o.normPercentile = Prefs.get(PREFIX + "normPercentile", o.normPercentile);
+        o.normPerChannel = Prefs.get(PREFIX + "normPerChannel", o.normPerChannel);
+        o.normSamplePlanes = (int) Prefs.get(PREFIX + "normSamplePlanes", o.normSamplePlanes);
+        o.normPixelStride = (int) Prefs.get(PREFIX + "normPixelStride", o.normPixelStride);
+        o.tiling = Prefs.get(PREFIX + "tiling", o.tiling);
+        o.tileSize = (int) Prefs.get(PREFIX + "tileSize", o.tileSize);
+        o.tileOverlap = (int) Prefs.get(PREFIX + "tileOverlap", o.tileOverlap);
+        o.adaptive = Prefs.get(PREFIX + "adaptive", o.adaptive);
+        o.adaptiveBlock = (int) Prefs.get(PREFIX + "adaptiveBlock", o.adaptiveBlock);
+        o.adaptiveThreshold = Prefs.get(PREFIX + "adaptiveThreshold", o.adaptiveThreshold);
+        o.adaptiveFallback = Prefs.get(PREFIX + "adaptiveFallback", o.adaptiveFallback);
+        o.adaptiveVerifyPlanes = (int) Prefs.get(PREFIX + "adaptiveVerifyPlanes", o.adaptiveVerifyPlanes);
+        o.batchSize = (int) Prefs.get(PREFIX + "batchSize", o.batchSize);
+        o.queueDepth = (int) Prefs.get(PREFIX + "queueDepth", o.queueDepth);
+        o.autoPlan = Prefs.get(PREFIX + "autoPlan", o.autoPlan);
+        o.streamOutput = Prefs.get(PREFIX + "streamOutput", o.streamOutput);
+        o.checkpointSeconds = (int) Prefs.get(PREFIX + "checkpointSeconds", o.checkpointSeconds);
+        o.resultCacheMb = (int) Prefs.get(PREFIX + "resultCacheMb", o.resultCacheMb);
+        o.lazyView = Prefs.get(PREFIX + "lazyView", o.lazyView);
+        o.viewCacheMb = (int) Prefs.get(PREFIX + "viewCacheMb", o.viewCacheMb);
+        o.prefetchPlanes = (int) Prefs.get(PREFIX + "prefetchPlanes", o.prefetchPlanes);
+        o.exportMetrics = Prefs.get(PREFIX + "exportMetrics", o.exportMetrics);
+        o.profilePlanes = (int) Prefs.get(PREFIX + "profilePlanes", o.profilePlanes);
+        o.intraOpThreads = (int) Prefs.get(PREFIX + "intraOpThreads", o.intraOpThreads);
+        o.interOpThreads = (int) Prefs.get(PREFIX + "interOpThreads", o.interOpThreads);
+        o.parallelExecution = Prefs.get(PREFIX + "parallelExecution", o.parallelExecution);
+        o.allowSpinning = Prefs.get(PREFIX + "allowSpinning", o.allowSpinning);
+        o.optLevel = Prefs.get(PREFIX + "optLevel", o.optLevel);
+        o.cacheOptimizedModel = Prefs.get(PREFIX + "cacheOptimizedModel", o.cacheOptimizedModel);
+        o.fp16 = Prefs.get(PREFIX + "fp16", o.fp16);
+        o.shapeBucket = (int) Prefs.get(PREFIX + "shapeBucket", o.shapeBucket);
+        o.sessions = (int) Prefs.get(PREFIX + "sessions", o.sessions);
+        o.sharedSession = Prefs.get(PREFIX + "sharedSession", o.sharedSession);
+        o.workerProcesses = (int) Prefs.get(PREFIX + "workerProcesses", o.workerProcesses);
+        o.pinWorkers = Prefs.get(PREFIX + "pinWorkers", o.pinWorkers);
+        return o;
+    }
+
+    public void save() {
+        Prefs.set(PREFIX + "normMode", normMode);
+        Prefs.set(PREFIX + "normPercentile", normPercentile);
+        Prefs.set(PREFIX + "normPerChannel", normPerChannel);
+        Prefs.set(PREFIX + "normSamplePlanes", normSamplePlanes);
+        Prefs.set(PREFIX + "normPixelStride", normPixelStride);
+        Prefs.set(PREFIX + "tiling", tiling);
+        Prefs.set(PREFIX + "tileSize", tileSize);
+        Prefs.set(PREFIX + "tileOverlap", tileOverlap);
+        Prefs.set(PREFIX + "adaptive", adaptive);
+        Prefs.set(PREFIX + "adaptiveBlock", adaptiveBlock);
+        Prefs.set(PREFIX + "adaptiveThreshold", adaptiveThreshold);
+        Prefs.set(PREFIX + "adaptiveFallback", adaptiveFallback);
+        Prefs.set(PREFIX + "adaptiveVerifyPlanes", adaptiveVerifyPlanes);
+        Prefs.set(PREFIX + "batchSize", batchSize);
+        Prefs.set(PREFIX + "queueDepth", queueDepth);
+        Prefs.set(PREFIX + "autoPlan", autoPlan);
+        Prefs.set(PREFIX + "streamOutput", streamOutput);
+        Prefs.set(PREFIX + "checkpointSeconds", checkpointSeconds);
+        Prefs.set(PREFIX + "resultCacheMb", resultCacheMb);
+        Prefs.set(PREFIX + "lazyView", lazyView);
+        Prefs.set(PREFIX + "viewCacheMb", viewCacheMb);
+        Prefs.set(PREFIX + "prefetchPlanes", prefetchPlanes);
+        Prefs.set(PREFIX + "exportMetrics", exportMetrics);
+        Prefs.set(PREFIX + "profilePlanes", profilePlanes);
+        Prefs.set(PREFIX + "intraOpThreads", intraOpThreads);
+        Prefs.set(PREFIX + "interOpThreads", interOpThreads);
+        Prefs.set(PREFIX + "parallelExecution", parallelExecution);
+        Prefs.set(PREFIX + "allowSpinning", allowSpinning);
+        Prefs.set(PREFIX + "optLevel", optLevel);
+        Prefs.set(PREFIX + "cacheOptimizedModel", cacheOptimizedModel);
+        Prefs.set(PREFIX + "fp16", fp16);
+        Prefs.set(PREFIX + "shapeBucket", shapeBucket);
+        Prefs.set(PREFIX + "sessions", sessions);
+        Prefs.set(PREFIX + "sharedSession", sharedSession);
+        Prefs.set(PREFIX + "workerProcesses", workerProcesses);
+        Prefs.set(PREFIX + "pinWorkers", pinWorkers);
+    }
+
+    /**
+     * Tile size actually handed to the engine; 0 means whole-frame inference.
+     */
+    public int effectiveTileSize() {
+        return tiling ? Math.max(64, tileSize) : 0;
+    }
+
+    public Normalization toNormalization() {
+        Normalization n = new Normalization();
+        n.mode = "Percentile".equals(normMode) ? Normalization.Mode.PERCENTILE : Normalization.Mode.MAX;
+        n.percentile = normPercentile;
+        n.perChannel = normPerChannel;
+        n.samplePlanes = normSamplePlanes;
+        n.pixelStride = normPixelStride;
+        return n;
+    }
+
+    /**
+     * Normalization for the interactive modes (lazy view, live preview): unless a sample count is set,
+     * statistics come from at most INTERACTIVE_SAMPLE_PLANES planes so long movies open without a full pass.
+     */
+    public Normalization toInteractiveNormalization(int stackSize) {
+        Normalization n = toNormalization();
+        if (n.samplePlanes == 0 && stackSize > INTERACTIVE_SAMPLE_PLANES) n.samplePlanes = INTERACTIVE_SAMPLE_PLANES;
+        return n;
+    }
+
+    /**
+     * Block skipping for sparse samples, or null when it is off.
+     */
+    public AdaptiveInference toAdaptive() {
+        if (!adaptive) return null;
+        AdaptiveInference.Fallback fallback = "Keep".equals(adaptiveFallback)
+                ? AdaptiveInference.Fallback.KEEP : AdaptiveInference.Fallback.SMOOTH;
+        return new AdaptiveInference(adaptiveBlock, tileOverlap, adaptiveThreshold, fallback, adaptiveVerifyPlanes);
+    }
+
+    /**
+     * Opens the on-disk result cache, or returns null when it is disabled.
+     */
+    public ResultCache openResultCache() throws IOException {
+        return resultCacheMb > 0 ? ResultCache.open(ResultCache.defaultDirectory(), (long) resultCacheMb << 20) : null;
+    }
+
+    public EngineOptions toEngineOptions() {
+        EngineOptions e = new EngineOptions();
+        e.intraOpThreads = intraOpThreads;
+        e.interOpThreads = interOpThreads;
+        e.parallelExecution = parallelExecution;
+        e.allowSpinning = allowSpinning;
+        e.optLevel = "Basic".equals(optLevel) ? OptLevel.BASIC_OPT
+                : "Extended".equals(optLevel) ? OptLevel.EXTENDED_OPT : OptLevel.ALL_OPT;
+        e.cacheOptimizedModel = cacheOptimizedModel;
+        e.fp16 = fp16;
+        e.shapeBucket = shapeBucket;
+        return e;
+    }
+
+    /**
+     * Shows the options dialog. Returns false if the user cancelled.
+     */
+    public boolean showDialog() {
+        GenericDialog gd = new GenericDialog("NIA Options");
+
+        gd.addMessage("Normalization");
+        gd.addChoice("Factor", NORM_MODES, normMode);
+        gd.addNumericField("Percentile", normPercentile, 2, 6, "%");
+        gd.addCheckbox("Per channel", normPerChannel);
+        gd.addNumericField("Sample planes", normSamplePlanes, 0, 6, "(0 = all)");
+        gd.addNumericField("Pixel stride", normPixelStride, 0, 6, "");
+
+        gd.addMessage("Tiling (large images)");
+        gd.addCheckbox("Tile planes larger than tile size", tiling);
+        gd.addNumericField("Tile size", tileSize, 0, 6, "px");
+        gd.addNumericField("Overlap", tileOverlap, 0, 6, "px");
+
+        gd.addMessage("Adaptive compute (sparse samples)");
+        gd.addCheckbox("Skip background blocks", adaptive);
+        gd.addNumericField("Block size", adaptiveBlock, 0, 6, "px");
+        gd.addNumericField("Skip below", adaptiveThreshold, 2, 6, "x noise sigma");
+        gd.addChoice("Skipped blocks", ADAPTIVE_FALLBACKS, adaptiveFallback);
+        gd.addNumericField("Compare with full inference", adaptiveVerifyPlanes, 0, 6, "planes");
+
+        gd.addMessage("Stacks");
+        gd.addNumericField("Batch size", batchSize, 0, 6, "planes");
+        gd.addNumericField("Pipeline queue depth", queueDepth, 0, 6, "(0 = sequential)");
+        gd.addCheckbox("Fit tiles, batch and workers to free memory", autoPlan);
+        gd.addCheckbox("Stream result to new TIFF (keeps original)", streamOutput);
+        gd.addNumericField("Checkpoint every", checkpointSeconds, 0, 6, "s (0 = off)");
+        gd.addNumericField("Result cache", resultCacheMb, 0, 6, "MB on disk (0 = off)");
+        gd.addCheckbox("Export stage timings (CSV + JSON next to image)", exportMetrics);
+        gd.addNumericField("Profile operators on", profilePlanes, 0, 6, "planes (0 = off)");
+
+        gd.addMessage("Lazy view (denoise planes as they are displayed)");
+        gd.addCheckbox("Open lazy denoised view instead of processing", lazyView);
+        gd.addNumericField("View cache", viewCacheMb, 0, 6, "MB");
+        gd.addNumericField("Prefetch", prefetchPlanes, 0, 6, "planes per direction");
+
+        gd.addMessage("Threading (0 = auto)");
+        gd.addNumericField("Intra-op threads", intraOpThreads, 0, 6, "");
+        gd.addNumericField("Inter-op threads", interOpThreads, 0, 6, "");
+        gd.addCheckbox("Parallel execution mode", parallelExecution);
+        gd.addCheckbox("Allow thread spinning", allowSpinning);
+        gd.addChoice("Graph optimization", OPT_LEVELS, optLevel);
+        gd.addCheckbox("Cache optimized model on disk", cacheOptimizedModel);
+        gd.addCheckbox("FP16 inference (half precision)", fp16);
+        gd.addNumericField("Pad shapes to multiple of", shapeBucket, 0, 6, "px (0 = off)");
+        gd.addNumericField("Inference workers", sessions, 0, 6, "");
+        gd.addCheckbox("Workers share one session", sharedSession);
+        gd.addNumericField("Worker processes", workerProcesses, 0, 6, "(0 = inside ImageJ)");
+        gd.addCheckbox("Pin worker processes to NUMA nodes", pinWorkers);
+
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+
+        normMode = gd.getNextChoice();
+        normPercentile = Math.max(0, Math.min(100, gd.getNextNumber()));
+        normPerChannel = gd.getNextBoolean();
+        normSamplePlanes = Math.max(0, (int) gd.getNextNumber());
+        normPixelStride = Math.max(1, (int) gd.getNextNumber());
+        tiling = gd.getNextBoolean();
+        tileSize = Math.max(64, (int) gd.getNextNumber());
+        tileOverlap = Math.max(0, (int) gd.getNextNumber());
+        adaptive = gd.getNextBoolean();
+        adaptiveBlock = Math.max(16, (int) gd.getNextNumber());
+        adaptiveThreshold = Math.max(0, gd.getNextNumber());
+        adaptiveFallback = gd.getNextChoice();
+        adaptiveVerifyPlanes = Math.max(0, (int) gd.getNextNumber());
+        batchSize = Math.max(1, (int) gd.getNextNumber());
+        queueDepth = Math.max(0, (int) gd.getNextNumber());
+        autoPlan = gd.getNextBoolean();
+        streamOutput = gd.getNextBoolean();
+        checkpointSeconds = Math.max(0, (int) gd.getNextNumber());
+        resultCacheMb = Math.max(0, (int) gd.getNextNumber());
+        exportMetrics = gd.getNextBoolean();
+        profilePlanes = Math.max(0, (int) gd.getNextNumber());
+        lazyView = gd.getNextBoolean();
+        viewCacheMb = Math.max(16, (int) gd.getNextNumber());
+        prefetchPlanes = Math.max(0, (int) gd.getNextNumber());
+        intraOpThreads = Math.max(0, (int) gd.getNextNumber());
+        interOpThreads = Math.max(0, (int) gd.getNextNumber());
+        parallelExecution = gd.getNextBoolean();
+        allowSpinning = gd.getNextBoolean();
+        optLevel = gd.getNextChoice();
+        cacheOptimizedModel = gd.getNextBoolean();
+        fp16 = gd.getNextBoolean();
+        shapeBucket = Math.max(0, (int) gd.getNextNumber());
+        sessions = Math.max(1, (int) gd.getNextNumber());
+        sharedSession = gd.getNextBoolean();
+        workerProcesses = Math.max(0, (int) gd.getNextNumber());
+        pinWorkers = gd.getNextBoolean();
+
+        save();
+        return true;
+    }
+}
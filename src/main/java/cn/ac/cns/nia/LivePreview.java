@@ -0,0 +1,272 @@
+package cn.ac.cns.nia;
+
+import cn.ac.cns.nia.engine.CancelToken;
+import cn.ac.cns.nia.engine.EngineCache;
+import cn.ac.cns.nia.engine.EnginePool;
+import cn.ac.cns.nia.engine.InferenceEngine;
+import cn.ac.cns.nia.engine.ModelSource;
+import cn.ac.cns.nia.engine.Normalization;
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.Roi;
+import ij.gui.RoiListener;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import javax.swing.SwingUtilities;
+import java.awt.Rectangle;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live preview: denoises only the area ROI (or the visible part of the window) of the current plane,
+ * using the same cached engine pool as the full run, and shows it in a separate "NIA Preview" window.
+ *
+ * Slider, ROI and zoom / pan changes are debounced; every new request cancels the one in flight
+ * (via CancelToken, which also stops a running session.run), so only the latest view is rendered.
+ * The previewed region is capped at MAX_REGION px per side to keep each update interactive.
+ */
+class LivePreview implements ImageListener, RoiListener {
+
+    private static final int DEBOUNCE_MS = 150;
+    private static final int POLL_MS = 100;
+    private static final int MAX_REGION = 512;
+
+    private final ImagePlus imp;
+    private final ModelSource model;
+    private final DenoiseOptions options;
+    private final Runnable onStop;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "NIA-Preview");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile EngineCache.Lease lease;
+    private CompletableFuture<Normalization.Result> norm;
+    private ImagePlus previewImp;
+    private ScheduledFuture<?> scheduled;
+    private CancelToken inFlight;
+    private String requestedState;
+    private long generation;
+    private volatile boolean stopped;
+
+    /**
+     * @param onStop called (once) after the preview stops, e.g. because one of the windows was closed
+     */
+    LivePreview(ImagePlus imp, ModelSource model, DenoiseOptions options, Runnable onStop) {
+        this.imp = imp;
+        this.model = model;
+        this.options = options;
+        this.onStop = onStop;
+    }
+
+    /**
+     * Loads (or reuses) the engine and renders the first preview. Blocks while the model loads,
+     * so call it off the event thread.
+     */
+    void start() throws Exception {
+        lease = EngineCache.get().acquire(model, options.toEngineOptions(), options.sessions, options.sharedSession);
+        norm = options.toInteractiveNormalization(imp.getStackSize()).computeAsync(imp);
+        ImagePlus.addImageListener(this);
+        Roi.addRoiListener(this);
+        // Zoom and pan have no listener; the poll also catches slider moves that fire no event
+        scheduler.scheduleWithFixedDelay(this::changed, POLL_MS, POLL_MS, TimeUnit.MILLISECONDS);
+        IJ.log("Live preview: " + model.displayName() + (lease.wasWarm() ? " (warm)" : " (loaded)")
+                + ", region up to " + MAX_REGION + "px");
+        changed();
+    }
+
+    void stop() {
+        synchronized (this) {
+            if (stopped) return;
+            stopped = true;
+            if (scheduled != null) scheduled.cancel(false);
+            if (inFlight != null) inFlight.cancel();
+        }
+        ImagePlus.removeImageListener(this);
+        Roi.removeRoiListener(this);
+        // The lease is returned on the scheduler thread, after the render in progress (if any) has finished
+        try {
+            scheduler.execute(this::releaseLease);
+        } catch (RejectedExecutionException e) {
+            releaseLease();
+        }
+        scheduler.shutdown();
+        if (onStop != null) onStop.run();
+    }
+
+    private void releaseLease() {
+        if (lease != null) lease.close();
+    }
+
+    // ==========================================
+    // Listeners
+    // ==========================================
+
+    @Override
+    public void imageOpened(ImagePlus i) {
+    }
+
+    @Override
+    public void imageUpdated(ImagePlus i) {
+        if (i == imp) changed();
+    }
+
+    @Override
+    public void imageClosed(ImagePlus i) {
+        if (i == imp || (i == previewImp && previewImp != null)) stop();
+    }
+
+    @Override
+    public void roiModified(ImagePlus i, int id) {
+        if (i == imp) changed();
+    }
+
+    // ==========================================
+    // Debounce / cancel / render
+    // ==========================================
+
+    /**
+     * Schedules a render if the plane, ROI or viewport differs from the last request.
+     * A newer request cancels the pending one and the one in flight.
+     */
+    private synchronized void changed() {
+        if (stopped) return;
+        String state = state();
+        if (state.equals(requestedState)) return;
+        requestedState = state;
+        long gen = ++generation;
+        if (scheduled != null) scheduled.cancel(false);
+        if (inFlight != null) inFlight.cancel();
+        try {
+            scheduled = scheduler.schedule(() -> render(gen), DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped concurrently
+        }
+    }
+
+    private synchronized boolean isCurrent(long gen) {
+        return !stopped && gen == generation;
+    }
+
+    private String state() {
+        Rectangle r = region();
+        return imp.getCurrentSlice() + ":" + (r == null ? "-" : r.x + "," + r.y + "," + r.width + "," + r.height);
+    }
+
+    /**
+     * Area ROI bounds, otherwise the visible viewport; centred crop of at most MAX_REGION per side.
+     */
+    private Rectangle region() {
+        Rectangle image = new Rectangle(imp.getWidth(), imp.getHeight());
+        Roi roi = imp.getRoi();
+        ImageCanvas canvas = imp.getCanvas();
+        Rectangle r;
+        if (roi != null && roi.isArea()) r = roi.getBounds();
+        else if (canvas != null) r = canvas.getSrcRect();
+        else r = image;
+        r = r.intersection(image);
+        if (r.isEmpty()) return null;
+        int w = Math.min(r.width, MAX_REGION);
+        int h = Math.min(r.height, MAX_REGION);
+        return new Rectangle(r.x + (r.width - w) / 2, r.y + (r.height - h) / 2, w, h);
+    }
+
+    private void render(long gen) {
+        if (!isCurrent(gen)) return;
+        long t0 = System.nanoTime();
+        CancelToken token = null;
+        InferenceEngine engine = null;
+        EnginePool pool = lease.pool();
+        try {
+            Normalization.Result n = norm.get();
+            int index = imp.getCurrentSlice();
+            Rectangle region = region();
+            if (region == null || !isCurrent(gen)) return;
+
+            // Same context halo as tiled inference, so the preview matches the full run at the edges
+            int halo = Math.max(0, options.tileOverlap);
+            Rectangle context = new Rectangle(region.x - halo, region.y - halo,
+                    region.width + 2 * halo, region.height + 2 * halo)
+                    .intersection(new Rectangle(imp.getWidth(), imp.getHeight()));
+            ImageProcessor ip = imp.getStack().getProcessor(index);
+            ip.setRoi(context);
+            ImageProcessor crop = ip.crop();
+            double factor = n.planeFactors()[index];
+
+            token = new CancelToken();
+            synchronized (this) {
+                if (!isCurrent(gen)) return;
+                inFlight = token;
+            }
+            engine = pool.acquire();
+            float[] data = engine.preprocess(crop, factor);
+            data = engine.inferTiled(data, context.width, context.height, options.effectiveTileSize(),
+                    options.tileOverlap, null, token);
+            pool.release(engine);
+            engine = null;
+            if (!isCurrent(gen)) return;
+
+            ImageProcessor out = toProcessor(crop, data, factor);
+            out.setRoi(region.x - context.x, region.y - context.y, region.width, region.height);
+            ImageProcessor result = out.crop();
+            long ms = (System.nanoTime() - t0) / 1000000;
+            SwingUtilities.invokeLater(() -> show(gen, result, region, index, ms));
+        } catch (CancellationException e) {
+            // superseded by a newer request
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            IJ.log("❌ Preview failed: " + e.getMessage());
+        } finally {
+            if (engine != null) pool.release(engine);
+            if (token != null) {
+                synchronized (this) {
+                    if (inFlight == token) inFlight = null;
+                }
+                token.close();
+            }
+        }
+    }
+
+    private static ImageProcessor toProcessor(ImageProcessor like, float[] data, double factor) {
+        ImageProcessor out = like.createProcessor(like.getWidth(), like.getHeight());
+        if (out instanceof ColorProcessor) {
+            InferenceEngine.denormalize(data, factor);
+            return new FloatProcessor(like.getWidth(), like.getHeight(), data).convertToRGB();
+        }
+        InferenceEngine.denormalizeInto(data, 0, out.getPixels(), factor);
+        return out;
+    }
+
+    private void show(long gen, ImageProcessor result, Rectangle region, int index, long ms) {
+        if (!isCurrent(gen)) return;
+        if (!(result instanceof ColorProcessor)) {
+            result.setLut(imp.isComposite() ? ((CompositeImage) imp).getChannelLut() : imp.getProcessor().getLut());
+        }
+        String title = "NIA Preview - " + imp.getShortTitle();
+        if (previewImp == null || previewImp.getWindow() == null) {
+            previewImp = new ImagePlus(title, result);
+            previewImp.setCalibration(imp.getCalibration());
+            previewImp.show();
+        } else {
+            previewImp.setProcessor(result);
+        }
+        if (!(result instanceof ColorProcessor)) {
+            previewImp.setDisplayRange(imp.getDisplayRangeMin(), imp.getDisplayRangeMax());
+        }
+        previewImp.updateAndDraw();
+        IJ.showStatus(String.format("NIA preview: plane %d, %dx%d at (%d, %d) in %dms",
+                index, region.width, region.height, region.x, region.y, ms));
+    }
+}
@@ -0,0 +1,630 @@
+package cn.ac.cns.nia;
+
+import cn.ac.cns.nia.engine.AdaptiveInference;
+import cn.ac.cns.nia.engine.EngineCache;
+import cn.ac.cns.nia.engine.EnginePool;
+import cn.ac.cns.nia.engine.Fp16Report;
+import cn.ac.cns.nia.engine.MemoryPlanner;
+import cn.ac.cns.nia.engine.ModelSource;
+import cn.ac.cns.nia.engine.Normalization;
+import cn.ac.cns.nia.engine.OperatorProfile;
+import cn.ac.cns.nia.engine.ResultCache;
+import cn.ac.cns.nia.engine.RunMetrics;
+import cn.ac.cns.nia.engine.StackPipeline;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.FileSaver;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless batch runner: denoises every matching file and writes the results to an output directory.
+ * All files share one cached engine pool, so the model is loaded once per batch, not once per file.
+ *
+ * Command line (no display needed):
+ *   java -Djava.awt.headless=true -cp NIA_Denoise.jar cn.ac.cns.nia.Nia_Batch -o out/ "data/*.tif"
+ *
+ * Macro:
+ *   run("NIA Denoise Batch", "input=[/data/*.tif] output=/data/denoised model=[] normalization=Max ...");
+ *
+ * A JSON summary with per-file timings and overall throughput is written next to the results.
+ *
+ * With --fp16-report nothing is denoised: each file is run through the FP32 and the FP16 model and the
+ * accuracy (PSNR, max error) is written to OUTPUT/nia_fp16_report.json, to decide per model whether --fp16 is safe.
+ *
+ * With --profile N nothing is denoised either: N planes of each file run through an ONNX Runtime profiling session
+ * and the operator table (time, share, allocations, provider, threads) goes to OUTPUT/NAME_nia_profile.txt,
+ * next to the raw trace.
+ */
+public class Nia_Batch implements PlugIn {
+
+    private static final String BUILT_IN_MODEL_NAME = "dncnn.onnx";
+    private static final String SUMMARY_NAME = "nia_summary.json";
+    private static final String FP16_REPORT_NAME = "nia_fp16_report.json";
+    private static final int FP16_REPORT_PLANES = 8;
+    private static final Set<String> IMAGE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "tif", "tiff", "png", "jpg", "jpeg", "bmp", "gif", "pgm"));
+
+    private final List<String> inputs = new ArrayList<>();
+    private File outputDir;
+    private String modelPath = "";
+    private String suffix = "_denoised";
+    private File summaryFile;
+    private int jobs = 0;
+    private boolean fp16Report;
+    private int profilePlanes;
+    private ResultCache resultCache;
+    private AdaptiveInference adaptive;
+    private MemoryPlanner planner;
+    private int concurrentFiles = 1;
+    private DenoiseOptions options = new DenoiseOptions();
+
+    /** Outcome of one input file. */
+    static final class FileResult {
+        final File input;
+        File output;
+        String error;
+        int width, height, planes, bitDepth, resumedPlanes;
+        long openNanos, normNanos, inferNanos, saveNanos, totalNanos;
+        final RunMetrics metrics = new RunMetrics();
+
+        FileResult(File input) {
+            this.input = input;
+        }
+
+        boolean ok() {
+            return error == null;
+        }
+    }
+
+    @Override
+    public void run(String arg) {
+        options = DenoiseOptions.load();
+        if (!showDialog()) return;
+        try {
+            List<FileResult> results = process();
+            long failed = results.stream().filter(r -> !r.ok()).count();
+            if (failed > 0) IJ.log("❌ " + failed + " of " + results.size() + " files failed, see " + summaryFile);
+        } catch (Exception e) {
+            IJ.handleException(e);
+        }
+    }
+
+    /**
+     * Settings dialog; when called from a macro the values come from the option string instead.
+     * Engine, tiling and batching settings are taken from the saved NIA Options.
+     */
+    private boolean showDialog() {
+        GenericDialog gd = new GenericDialog("NIA Denoise Batch");
+        gd.addStringField("Input", "", 40);
+        gd.addMessage("Files, directories or glob patterns, separated by ';'");
+        gd.addDirectoryField("Output", "", 40);
+        gd.addFileField("Model", modelPath, 40);
+        gd.addMessage("Leave the model empty to use the built-in DnCNN");
+        gd.addChoice("Normalization", DenoiseOptions.NORM_MODES, options.normMode);
+        gd.addNumericField("Percentile", options.normPercentile, 2, 6, "%");
+        gd.addCheckbox("Per channel", options.normPerChannel);
+        gd.addNumericField("Parallel files", jobs, 0, 6, "(0 = auto)");
+        gd.addStringField("Suffix", suffix, 12);
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+
+        for (String s : gd.getNextString().split(";")) {
+            if (!s.trim().isEmpty()) inputs.add(s.trim());
+        }
+        String out = gd.getNextString().trim();
+        modelPath = gd.getNextString().trim();
+        options.normMode = gd.getNextChoice();
+        options.normPercentile = Math.max(0, Math.min(100, gd.getNextNumber()));
+        options.normPerChannel = gd.getNextBoolean();
+        jobs = Math.max(0, (int) gd.getNextNumber());
+        suffix = gd.getNextString();
+
+        if (inputs.isEmpty() || out.isEmpty()) {
+            IJ.error("NIA Denoise Batch", "Both input and output are required.");
+            return false;
+        }
+        outputDir = new File(out);
+        return true;
+    }
+
+    /**
+     * Denoises all inputs and writes the summary. Failures are recorded per file and do not stop the batch.
+     */
+    List<FileResult> process() throws Exception {
+        List<File> files = expandInputs(inputs);
+        if (files.isEmpty()) throw new IllegalArgumentException("No input files match " + inputs);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+        if (summaryFile == null) summaryFile = new File(outputDir, SUMMARY_NAME);
+
+        ModelSource model = modelPath.isEmpty() ? ModelSource.builtIn(BUILT_IN_MODEL_NAME) : ModelSource.file(modelPath);
+        Normalization normalization = options.toNormalization();
+        resultCache = options.openResultCache();
+        adaptive = options.toAdaptive();
+
+        // Output names are assigned up front so parallel jobs never collide
+        List<FileResult> results = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (File f : files) {
+            FileResult r = new FileResult(f);
+            String base = stripExtension(f.getName()) + suffix;
+            String name = base + ".tif";
+            for (int k = 2; !names.add(name); k++) name = base + "-" + k + ".tif";
+            r.output = new File(outputDir, name);
+            results.add(r);
+        }
+
+        long start = System.nanoTime();
+        long loadNanos;
+        boolean warm;
+        int workers;
+        try (EngineCache.Lease lease = EngineCache.get().acquire(model, options.toEngineOptions(),
+                options.sessions, options.sharedSession)) {
+            loadNanos = System.nanoTime() - start;
+            warm = lease.wasWarm();
+            EnginePool engines = lease.pool();
+            workers = engines.getWorkers();
+            if (jobs <= 0) jobs = workers + 1; // one extra job keeps file I/O overlapped with inference
+            int nJobs = Math.min(jobs, files.size());
+            concurrentFiles = nJobs;
+            planner = options.autoPlan ? MemoryPlanner.calibrate(model, options.toEngineOptions(), engines) : null;
+            IJ.log("NIA batch: " + files.size() + " files, model " + model.displayName()
+                    + (warm ? " (warm)" : " (loaded in " + loadNanos / 1000000 + "ms)")
+                    + ", " + options.toEngineOptions() + ", workers=" + workers + ", jobs=" + nJobs);
+
+            AtomicInteger done = new AtomicInteger();
+            AtomicInteger threadId = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(nJobs, r -> {
+                Thread t = new Thread(r, "NIA-Batch-" + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (FileResult r : results) {
+                    futures.add(executor.submit(() -> {
+                        processFile(r, model, engines, normalization);
+                        IJ.log("[" + done.incrementAndGet() + "/" + results.size() + "] " + r.input.getName()
+                                + (r.ok() ? " -> " + r.output.getName() + ", " + r.planes + " planes"
+                                + (r.resumedPlanes > 0 ? " (" + r.resumedPlanes + " from checkpoint)" : "") + ", "
+                                + r.totalNanos / 1000000 + "ms" : " ❌ " + r.error));
+                    }));
+                }
+                for (Future<?> f : futures) f.get();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        long wallNanos = System.nanoTime() - start;
+
+        writeSummary(results, model, workers, warm, loadNanos, wallNanos);
+        if (resultCache != null) IJ.log(resultCache.toString());
+        if (adaptive != null) IJ.log(adaptive.toString());
+        long planes = results.stream().filter(FileResult::ok).mapToLong(r -> r.planes).sum();
+        IJ.log(String.format(Locale.ROOT, "✅ Batch finished in %dms: %d planes, %.2f planes/s. Summary: %s",
+                wallNanos / 1000000, planes, planes / (wallNanos / 1e9), summaryFile));
+        return results;
+    }
+
+    /**
+     * Compares FP16 against FP32 on up to FP16_REPORT_PLANES planes of every input (or --sample-planes).
+     * Returns the number of files that could not be compared.
+     */
+    int reportFp16() throws Exception {
+        List<File> files = expandInputs(inputs);
+        if (files.isEmpty()) throw new IllegalArgumentException("No input files match " + inputs);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+        File reportFile = summaryFile != null ? summaryFile : new File(outputDir, FP16_REPORT_NAME);
+        ModelSource model = modelPath.isEmpty() ? ModelSource.builtIn(BUILT_IN_MODEL_NAME) : ModelSource.file(modelPath);
+        Normalization normalization = options.toNormalization();
+        int maxPlanes = options.normSamplePlanes > 0 ? options.normSamplePlanes : FP16_REPORT_PLANES;
+
+        int failed = 0;
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"model\": ").append(json(model.displayName())).append(",\n");
+        sb.append("  \"engine\": ").append(json(options.toEngineOptions().toString())).append(",\n");
+        sb.append("  \"files\": [\n");
+        for (int i = 0; i < files.size(); i++) {
+            File f = files.get(i);
+            sb.append("    {\"input\": ").append(json(f.getPath()));
+            ImagePlus imp = null;
+            try {
+                imp = IJ.openImage(f.getPath());
+                if (imp == null) throw new IOException("Cannot open " + f);
+                Normalization.Result norm = normalization.compute(imp);
+                Fp16Report report = Fp16Report.compare(model, options.toEngineOptions(), imp, norm.planeFactors(),
+                        options.effectiveTileSize(), options.tileOverlap, maxPlanes);
+                IJ.log(f.getName() + ": " + report);
+                sb.append(", \"bitDepth\": ").append(imp.getBitDepth())
+                        .append(", \"report\": ").append(report.toJson());
+            } catch (Exception e) {
+                failed++;
+                String error = e.getClass().getSimpleName() + ": " + e.getMessage();
+                IJ.log(f.getName() + " ❌ " + error);
+                sb.append(", \"error\": ").append(json(error));
+            } finally {
+                if (imp != null) imp.flush();
+            }
+            sb.append(i < files.size() - 1 ? "},\n" : "}\n");
+        }
+        sb.append("  ]\n}\n");
+        try (Writer w = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8)) {
+            w.write(sb.toString());
+        }
+        IJ.log("FP16 report: " + reportFile);
+        return failed;
+    }
+
+    /**
+     * Profiles profilePlanes planes of every input, one file at a time so the timings are not contended.
+     * Returns the number of files that could not be profiled.
+     */
+    int reportProfiles() throws Exception {
+        List<File> files = expandInputs(inputs);
+        if (files.isEmpty()) throw new IllegalArgumentException("No input files match " + inputs);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+        ModelSource model = modelPath.isEmpty() ? ModelSource.builtIn(BUILT_IN_MODEL_NAME) : ModelSource.file(modelPath);
+        Normalization normalization = options.toNormalization();
+
+        int failed = 0;
+        Set<String> names = new HashSet<>();
+        for (File f : files) {
+            String base = stripExtension(f.getName());
+            String name = base;
+            for (int k = 2; !names.add(name); k++) name = base + "-" + k;
+            ImagePlus imp = null;
+            try {
+                imp = IJ.openImage(f.getPath());
+                if (imp == null) throw new IOException("Cannot open " + f);
+                Normalization.Result norm = normalization.compute(imp);
+                OperatorProfile profile = OperatorProfile.profile(model, options.toEngineOptions(), imp,
+                        norm.planeFactors(), options.effectiveTileSize(), options.tileOverlap, profilePlanes,
+                        new File(outputDir, name + "_nia_profile_trace.json"));
+                File table = new File(outputDir, name + "_nia_profile.txt");
+                profile.write(table);
+                IJ.log(f.getName() + ": " + profile.table());
+                IJ.log("Operator profile: " + table);
+            } catch (Exception e) {
+                failed++;
+                IJ.log(f.getName() + " ❌ " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            } finally {
+                if (imp != null) imp.flush();
+            }
+        }
+        return failed;
+    }
+
+    private void processFile(FileResult r, ModelSource model, EnginePool engines, Normalization normalization) {
+        long t0 = System.nanoTime();
+        ImagePlus imp = null;
+        try {
+            imp = IJ.openImage(r.input.getPath());
+            if (imp == null) throw new IOException("Cannot open " + r.input);
+            r.width = imp.getWidth();
+            r.height = imp.getHeight();
+            r.planes = imp.getStackSize();
+            r.bitDepth = imp.getBitDepth();
+            long t1 = System.nanoTime();
+            r.openNanos = t1 - t0;
+
+            Normalization.Result norm = normalization.compute(imp);
+            long t2 = System.nanoTime();
+            r.normNanos = t2 - t1;
+            r.metrics.setStatisticsNanos(r.normNanos);
+
+            StackPipeline pipeline = new StackPipeline(engines, imp.getStack(), norm.planeFactors())
+                    .setTiling(options.effectiveTileSize(), options.tileOverlap)
+                    .setBatchSize(options.batchSize)
+                    .setQueueDepth(options.queueDepth)
+                    .setMetrics(r.metrics)
+                    .setAdaptive(adaptive);
+            if (planner != null) {
+                // Parallel files share the sessions but each keeps its own planes in flight on the heap
+                MemoryPlanner.Plan plan = planner.plan(engines, r.width, r.height, r.planes, options.effectiveTileSize(),
+                        options.tileOverlap, options.batchSize, options.queueDepth, concurrentFiles);
+                plan.apply(pipeline);
+                if (plan.isReduced() || !plan.fits()) IJ.log(r.input.getName() + ": " + plan);
+            }
+            if (resultCache != null) pipeline.setResultCache(resultCache, CheckpointedRun.modelId(model, engines, options));
+            // Planes finished by an interrupted earlier batch are restored from their checkpoint
+            String checkpointId = CheckpointedRun.canCheckpoint(imp, null, options)
+                    ? CheckpointedRun.identity(imp, model, engines, norm, options, pipeline) : null;
+            r.resumedPlanes = CheckpointedRun.run(pipeline, imp, null, checkpointId, options, null);
+            long t3 = System.nanoTime();
+            r.inferNanos = t3 - t2;
+
+            boolean saved = r.planes > 1 ? new FileSaver(imp).saveAsTiffStack(r.output.getPath())
+                    : new FileSaver(imp).saveAsTiff(r.output.getPath());
+            if (!saved) throw new IOException("Cannot write " + r.output);
+            r.saveNanos = System.nanoTime() - t3;
+        } catch (Exception e) {
+            r.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        } finally {
+            if (imp != null) imp.flush();
+            r.totalNanos = System.nanoTime() - t0;
+        }
+    }
+
+    /**
+     * Each entry is a file, a directory (its images, not recursive) or a glob such as data/**&#47;*.tif.
+     */
+    static List<File> expandInputs(List<String> specs) throws IOException {
+        Set<File> files = new LinkedHashSet<>();
+        for (String spec : specs) {
+            File f = new File(spec);
+            if (f.isFile()) {
+                files.add(f);
+            } else if (f.isDirectory()) {
+                File[] list = f.listFiles(c -> c.isFile() && isImage(c.getName()));
+                if (list != null) {
+                    Arrays.sort(list);
+                    files.addAll(Arrays.asList(list));
+                }
+            } else if (spec.matches(".*[*?\\[{].*")) {
+                files.addAll(glob(spec));
+            } else {
+                throw new IOException("No such file or directory: " + spec);
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static List<File> glob(String pattern) throws IOException {
+        String p = pattern.replace('\\', '/');
+        int wildcard = p.length();
+        for (char c : new char[]{'*', '?', '[', '{'}) {
+            int i = p.indexOf(c);
+            if (i >= 0) wildcard = Math.min(wildcard, i);
+        }
+        int sep = p.lastIndexOf('/', wildcard);
+        Path base = sep < 0 ? Paths.get("") : Paths.get(sep == 0 ? "/" : p.substring(0, sep));
+        String rest = sep < 0 ? p : p.substring(sep + 1);
+        int depth = rest.contains("**") ? Integer.MAX_VALUE : rest.split("/").length;
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + rest);
+        if (!Files.isDirectory(base)) return new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(base, depth)) {
+            return walk.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(base.relativize(path)))
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isImage(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private void writeSummary(List<FileResult> results, ModelSource model, int workers, boolean warm,
+                              long loadNanos, long wallNanos) throws IOException {
+        long planes = 0, pixels = 0, failed = 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"model\": ").append(json(model.displayName())).append(",\n");
+        sb.append("  \"engine\": ").append(json(options.toEngineOptions().toString())).append(",\n");
+        sb.append("  \"workers\": ").append(workers).append(",\n");
+        sb.append("  \"jobs\": ").append(jobs).append(",\n");
+        sb.append("  \"warmStart\": ").append(warm).append(",\n");
+        sb.append("  \"engineLoadMs\": ").append(ms(loadNanos)).append(",\n");
+        if (resultCache != null) {
+            sb.append("  \"resultCache\": {\"hits\": ").append(resultCache.getHits())
+                    .append(", \"misses\": ").append(resultCache.getMisses()).append("},\n");
+        }
+        if (adaptive != null) sb.append("  \"adaptive\": ").append(adaptive.toJson()).append(",\n");
+        sb.append("  \"files\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            FileResult r = results.get(i);
+            sb.append("    {\"input\": ").append(json(r.input.getPath()));
+            if (r.ok()) {
+                planes += r.planes;
+                pixels += (long) r.width * r.height * r.planes;
+                sb.append(", \"output\": ").append(json(r.output.getPath()))
+                        .append(", \"status\": \"ok\"")
+                        .append(", \"width\": ").append(r.width)
+                        .append(", \"height\": ").append(r.height)
+                        .append(", \"planes\": ").append(r.planes)
+                        .append(", \"bitDepth\": ").append(r.bitDepth)
+                        .append(", \"resumedPlanes\": ").append(r.resumedPlanes)
+                        .append(", \"openMs\": ").append(ms(r.openNanos))
+                        .append(", \"normMs\": ").append(ms(r.normNanos))
+                        .append(", \"inferMs\": ").append(ms(r.inferNanos))
+                        .append(", \"saveMs\": ").append(ms(r.saveNanos))
+                        .append(", \"totalMs\": ").append(ms(r.totalNanos))
+                        .append(", \"planesPerSecond\": ").append(rate(r.planes, r.inferNanos))
+                        .append(", \"metrics\": ").append(r.metrics.toJson());
+            } else {
+                failed++;
+                sb.append(", \"status\": \"failed\", \"error\": ").append(json(r.error))
+                        .append(", \"totalMs\": ").append(ms(r.totalNanos));
+            }
+            sb.append(i < results.size() - 1 ? "},\n" : "}\n");
+        }
+        sb.append("  ],\n");
+        sb.append("  \"total\": {\"files\": ").append(results.size())
+                .append(", \"failed\": ").append(failed)
+                .append(", \"planes\": ").append(planes)
+                .append(", \"wallMs\": ").append(ms(wallNanos))
+                .append(", \"planesPerSecond\": ").append(rate(planes, wallNanos))
+                .append(", \"megapixelsPerSecond\": ").append(rate(pixels / 1e6, wallNanos))
+                .append("}\n");
+        sb.append("}\n");
+        try (Writer w = Files.newBufferedWriter(summaryFile.toPath(), StandardCharsets.UTF_8)) {
+            w.write(sb.toString());
+        }
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    private static String rate(double count, long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos > 0 ? count / (nanos / 1e9) : 0);
+    }
+
+    private static String json(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else if (c == '\t') sb.append("\\t");
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: Nia_Batch [options] <file|directory|glob>...\n"
+                + "  -o, --output DIR        output directory (required)\n"
+                + "  -m, --model FILE        ONNX model (default: built-in DnCNN)\n"
+                + "  -j, --jobs N            files processed in parallel (default: workers + 1)\n"
+                + "  --workers N             inference sessions (default 1)\n"
+                + "  --shared-session        workers share one session\n"
+                + "  --threads N             ONNX Runtime intra-op threads (0 = auto)\n"
+                + "  --opt basic|extended|all  graph optimization level (default basic)\n"
+                + "  --model-cache           cache the optimized model on disk\n"
+                + "  --no-model-cache        do not cache it (overrides --prefs)\n"
+                + "  --fp16                  run a half-precision copy of the model\n"
+                + "  --bucket N              pad odd sizes up to a multiple of N px so they share tensors (0 = off)\n"
+                + "  --fp16-report           compare FP16 with FP32 instead of denoising (OUTPUT/" + FP16_REPORT_NAME + ")\n"
+                + "  --profile N             profile N planes per file instead of denoising (OUTPUT/NAME_nia_profile.txt)\n"
+                + "  --norm max|percentile   normalization factor (default max)\n"
+                + "  --percentile P          percentile for --norm percentile (default 99.9)\n"
+                + "  --per-channel           one normalization factor per channel\n"
+                + "  --sample-planes N       planes sampled for statistics (0 = all) and for --fp16-report\n"
+                + "  --batch N               planes per inference call (default 4)\n"
+                + "  --tile N                tile size in px, 0 disables tiling (default 1024)\n"
+                + "  --overlap N             tile overlap in px (default 32)\n"
+                + "  --adaptive T            skip blocks whose structure is below T noise sigmas (e.g. 1.0)\n"
+                + "  --adaptive-block N      block size for --adaptive in px (default 128)\n"
+                + "  --adaptive-keep         keep skipped blocks unfiltered instead of smoothing them\n"
+                + "  --adaptive-verify N     also run full inference on N planes to report the error (default 1)\n"
+                + "  --no-plan               keep tile, batch and workers even if they may not fit in free memory\n"
+                + "  --checkpoint SECONDS    save progress of multi-plane files this often, 0 = off (default)\n"
+                + "  --result-cache MB       reuse results of identical planes from an on-disk cache of this size\n"
+                + "  --suffix S              output name suffix (default _denoised)\n"
+                + "  --summary FILE          JSON summary or FP16 report (default OUTPUT/" + SUMMARY_NAME + ")\n"
+                + "  --prefs                 start from the options saved in ImageJ instead of defaults");
+    }
+
+    /**
+     * Parses the command line. Later options override earlier ones, so --prefs should come first.
+     */
+    private boolean parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (!a.startsWith("-")) {
+                inputs.add(a);
+                continue;
+            }
+            if (a.equals("-h") || a.equals("--help")) return false;
+            if (a.equals("--prefs")) { options = DenoiseOptions.load(); continue; }
+            if (a.equals("--shared-session")) { options.sharedSession = true; continue; }
+            if (a.equals("--per-channel")) { options.normPerChannel = true; continue; }
+            if (a.equals("--model-cache")) { options.cacheOptimizedModel = true; continue; }
+            if (a.equals("--no-model-cache")) { options.cacheOptimizedModel = false; continue; }
+            if (a.equals("--fp16")) { options.fp16 = true; continue; }
+            if (a.equals("--no-plan")) { options.autoPlan = false; continue; }
+            if (a.equals("--adaptive-keep")) { options.adaptiveFallback = "Keep"; continue; }
+            if (a.equals("--fp16-report")) { fp16Report = true; continue; }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + a);
+            String v = args[++i];
+            switch (a) {
+                case "-o": case "--output": outputDir = new File(v); break;
+                case "-m": case "--model": modelPath = v; break;
+                case "-j": case "--jobs": jobs = Math.max(1, Integer.parseInt(v)); break;
+                case "--workers": options.sessions = Math.max(1, Integer.parseInt(v)); break;
+                case "--threads": options.intraOpThreads = Math.max(0, Integer.parseInt(v)); break;
+                case "--opt":
+                    options.optLevel = v.substring(0, 1).toUpperCase(Locale.ROOT) + v.substring(1).toLowerCase(Locale.ROOT);
+                    if (!Arrays.asList(DenoiseOptions.OPT_LEVELS).contains(options.optLevel)) {
+                        throw new IllegalArgumentException("Unknown optimization level " + v);
+                    }
+                    break;
+                case "--norm": options.normMode = "percentile".equalsIgnoreCase(v) ? "Percentile" : "Max"; break;
+                case "--percentile": options.normPercentile = Math.max(0, Math.min(100, Double.parseDouble(v))); break;
+                case "--sample-planes": options.normSamplePlanes = Math.max(0, Integer.parseInt(v)); break;
+                case "--batch": options.batchSize = Math.max(1, Integer.parseInt(v)); break;
+                case "--tile":
+                    int tile = Integer.parseInt(v);
+                    options.tiling = tile > 0;
+                    if (tile > 0) options.tileSize = Math.max(64, tile);
+                    break;
+                case "--profile": profilePlanes = Math.max(1, Integer.parseInt(v)); break;
+                case "--bucket": options.shapeBucket = Math.max(0, Integer.parseInt(v)); break;
+                case "--overlap": options.tileOverlap = Math.max(0, Integer.parseInt(v)); break;
+                case "--adaptive":
+                    options.adaptive = true;
+                    options.adaptiveThreshold = Math.max(0, Double.parseDouble(v));
+                    break;
+                case "--adaptive-block": options.adaptiveBlock = Math.max(16, Integer.parseInt(v)); break;
+                case "--adaptive-verify": options.adaptiveVerifyPlanes = Math.max(0, Integer.parseInt(v)); break;
+                case "--checkpoint": options.checkpointSeconds = Math.max(0, Integer.parseInt(v)); break;
+                case "--result-cache": options.resultCacheMb = Math.max(0, Integer.parseInt(v)); break;
+                case "--suffix": suffix = v; break;
+                case "--summary": summaryFile = new File(v); break;
+                default: throw new IllegalArgumentException("Unknown option " + a);
+            }
+        }
+        return !inputs.isEmpty() && outputDir != null;
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+        Nia_Batch batch = new Nia_Batch();
+        int status;
+        try {
+            if (!batch.parseArgs(args)) {
+                usage();
+                System.exit(2);
+            }
+            if (batch.fp16Report) {
+                status = batch.reportFp16() == 0 ? 0 : 1;
+            } else if (batch.profilePlanes > 0) {
+                status = batch.reportProfiles() == 0 ? 0 : 1;
+            } else {
+                List<FileResult> results = batch.process();
+                status = results.stream().allMatch(FileResult::ok) ? 0 : 1;
+            }
+        } catch (Exception e) {
+            System.err.println("❌ " + e);
+            status = 1;
+        }
+        System.exit(status);
+    }
+}
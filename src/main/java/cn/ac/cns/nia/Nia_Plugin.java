@@ -1,13 +1,26 @@
 package cn.ac.cns.nia;
 
-import cn.ac.cns.nia.engine.InferenceEngine;
+import cn.ac.cns.nia.engine.AdaptiveInference;
+import cn.ac.cns.nia.engine.DenoisedVirtualStack;
+import cn.ac.cns.nia.engine.EngineCache;
+import cn.ac.cns.nia.engine.InferencePool;
+import cn.ac.cns.nia.engine.MemoryPlanner;
+import cn.ac.cns.nia.engine.ModelSource;
+import cn.ac.cns.nia.engine.Normalization;
+import cn.ac.cns.nia.engine.OperatorProfile;
+import cn.ac.cns.nia.engine.RemoteWorkerPool;
+import cn.ac.cns.nia.engine.ResultCache;
+import cn.ac.cns.nia.engine.RunMetrics;
+import cn.ac.cns.nia.engine.StackPipeline;
+import ij.CompositeImage;
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager; // [新增] 引入 WindowManager
+import ij.io.FileInfo;
+import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
-import ij.process.ImageProcessor;
-import ij.process.StackStatistics;
 
 import javax.swing.*;
 import javax.swing.border.*;
@@ -16,9 +29,8 @@ import java.awt.*;
 import java.awt.event.ActionListener;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * NIA Manager - Final Stable Version
@@ -53,6 +65,10 @@ public class Nia_Plugin implements PlugIn {
     private JLabel lblImageInfo;
     private JProgressBar progressBar;
     private JButton btnRun;
+    private JButton btnPreview;
+    private volatile LivePreview preview;
+
+    private final DenoiseOptions options = DenoiseOptions.load();
 
     @Override
     public void run(String arg) {
@@ -200,11 +216,35 @@ public class Nia_Plugin implements PlugIn {
         chkLog.setOpaque(false);
         chkLog.setSelected(true);
         chkLog.setFocusPainted(false);
-        chkLog.setAlignmentX(Component.LEFT_ALIGNMENT);
         chkLog.setBorder(new EmptyBorder(5, 0, 0, 0));
 
+        JButton btnOptions = new JButton("Options...");
+        btnOptions.setFont(FONT_SMALL);
+        btnOptions.setMargin(new Insets(0, 4, 0, 4));
+        btnOptions.setFocusPainted(false);
+        btnOptions.addActionListener(e -> options.showDialog());
+
+        btnPreview = new JButton("Preview");
+        btnPreview.setFont(FONT_SMALL);
+        btnPreview.setMargin(new Insets(0, 4, 0, 4));
+        btnPreview.setFocusPainted(false);
+        btnPreview.setToolTipText("Denoise the ROI or visible area of the current slice as you browse");
+        btnPreview.addActionListener(e -> togglePreview());
+
+        JPanel buttonBox = new JPanel(new FlowLayout(FlowLayout.RIGHT, 2, 0));
+        buttonBox.setOpaque(false);
+        buttonBox.add(btnPreview);
+        buttonBox.add(btnOptions);
+
+        JPanel optionRow = new JPanel(new BorderLayout(2, 0));
+        optionRow.setOpaque(false);
+        optionRow.setMaximumSize(new Dimension(Integer.MAX_VALUE, 26));
+        optionRow.setAlignmentX(Component.LEFT_ALIGNMENT);
+        optionRow.add(chkLog, BorderLayout.WEST);
+        optionRow.add(buttonBox, BorderLayout.EAST);
+
         infoPanel.add(lblImageInfo);
-        infoPanel.add(chkLog);
+        infoPanel.add(optionRow);
 
         mainPanel.add(infoPanel);
         mainPanel.add(Box.createVerticalGlue()); 
@@ -250,10 +290,22 @@ public class Nia_Plugin implements PlugIn {
                 String info = (imp != null) ? getDimsString(imp) : "No Image Open";
                 lblImageInfo.setText(info);
             }
+
+            @Override
+            public void windowClosed(java.awt.event.WindowEvent e) {
+                LivePreview running = preview;
+                if (running != null) running.stop();
+            }
         });
         
         mainFrame.setLocationRelativeTo(null);
         mainFrame.setVisible(true);
+
+        // Load the built-in model in the background so the first click starts warm
+        if (rbBuiltIn.isSelected()) {
+            EngineCache.get().warmUpAsync(ModelSource.builtIn(BUILT_IN_MODEL_NAME), options.toEngineOptions(),
+                    options.sessions, options.sharedSession);
+        }
     }
 
     private Image safeLoadImage(String path) {
@@ -310,7 +362,22 @@ public class Nia_Plugin implements PlugIn {
             return;
         }
 
-        if (showLog) IJ.log("Processing on ORIGINAL image (Destructive)...");
+        if (options.lazyView) {
+            openLazyView(imp, showLog);
+            return;
+        }
+
+        // Virtual stacks cannot be written in place, so they always stream to a new file
+        boolean streaming = options.streamOutput || imp.getStack().isVirtual();
+        File outFile = null;
+        if (streaming) {
+            SaveDialog sd = new SaveDialog("Save denoised stack", imp.getShortTitle() + "_denoised", ".tif");
+            if (sd.getFileName() == null) return;
+            outFile = new File(sd.getDirectory(), sd.getFileName());
+        }
+
+        if (showLog) IJ.log(streaming ? "Streaming result to " + outFile + " (original untouched)..."
+                : "Processing on ORIGINAL image (Destructive)...");
 
         SwingUtilities.invokeLater(() -> {
             lblImageInfo.setText(getDimsString(imp));
@@ -322,86 +389,109 @@ public class Nia_Plugin implements PlugIn {
 
         if (showLog) IJ.log("\\Clear");
 
-        String finalModelPath;
-        try {
-            if (rbBuiltIn.isSelected()) {
-                IJ.showStatus("NIA: Extracting...");
-                finalModelPath = extractResourceToTemp(BUILT_IN_MODEL_NAME);
-            } else {
-                String p = txtCustomPath.getText();
-                if (p == null || p.isEmpty() || !new File(p).exists()) {
-                    IJ.error("Error", "Model not found.");
-                    resetUIState();
-                    return;
-                }
-                finalModelPath = p;
-            }
-        } catch (IOException e) {
-            IJ.handleException(e);
+        ModelSource model = selectedModel();
+        if (model == null) {
             resetUIState();
             return;
         }
 
-        InferenceEngine engine = null;
+        // Statistics run in the background while the engine is acquired / warmed up
+        CompletableFuture<Normalization.Result> normFuture = options.toNormalization().computeAsync(imp);
 
-        try {
+        // Engines are cached process-wide; the lease only keeps them from being evicted mid-run.
+        // Worker processes are kept warm the same way, and no session is loaded into ImageJ itself.
+        boolean remote = options.workerProcesses > 0;
+        try (EngineCache.Lease lease = remote ? null : EngineCache.get().acquire(model, options.toEngineOptions(),
+                options.sessions, options.sharedSession)) {
             long startTime = System.currentTimeMillis();
-            
-            engine = new InferenceEngine(finalModelPath);
+
+            InferencePool engines = remote ? RemoteWorkerPool.shared(model, options.toEngineOptions(),
+                    options.workerProcesses, options.pinWorkers) : lease.pool();
+            if (showLog) IJ.log("Engine: " + model.displayName()
+                    + (remote ? " (" + engines + ")" : lease.wasWarm() ? " (warm)" : " (loaded)")
+                    + ", " + options.toEngineOptions() + ", workers=" + engines.getWorkers()
+                    + (engines.isShared() ? " (shared session)" : ""));
 
             ImageStack stack = imp.getStack();
-            int nTotal = imp.getStackSize(); 
-            int nChannels = imp.getNChannels();
-            int nSlices = imp.getNSlices();
-            int nFrames = imp.getNFrames();
 
-            StackStatistics stats = new StackStatistics(imp);
-            double max = stats.max;
-            double normFactor = (max <= 0) ? 1.0 : max;
+            Normalization.Result norm = normFuture.get();
+            if (showLog) IJ.log(norm + " (" + norm.elapsedNanos() / 1000000 + "ms)");
+
+            RunMetrics metrics = new RunMetrics();
+            metrics.setStatisticsNanos(norm.elapsedNanos());
+
+            int tileSize = options.effectiveTileSize();
+            int tileOverlap = options.tileOverlap;
+
+            // Profiled before the run, which may overwrite the planes in place
+            if (options.profilePlanes > 0) {
+                SwingUtilities.invokeLater(() -> progressBar.setString("Profiling operators..."));
+                profileOperators(model, imp, norm, tileSize, tileOverlap, outFile);
+            }
 
             SwingUtilities.invokeLater(() -> {
                 progressBar.setIndeterminate(false);
                 progressBar.setValue(0);
             });
 
-            int count = 0;
-            
-            for (int t = 1; t <= nFrames; t++) {
-                for (int z = 1; z <= nSlices; z++) {
-                    for (int c = 1; c <= nChannels; c++) {
-                        count++;
-                        int idx = imp.getStackIndex(c, z, t);
-
-                        if (count % 5 == 0 || count == nTotal) {
-                            int finalProgress = (int) ((count / (float) nTotal) * 100);
-                            int finalCount = count;
-                            SwingUtilities.invokeLater(() -> {
-                                progressBar.setValue(finalProgress);
-                                progressBar.setString(finalCount + "/" + nTotal);
-                            });
-                        }
+            StackPipeline pipeline = new StackPipeline(engines, stack, norm.planeFactors())
+                    .setTiling(tileSize, tileOverlap)
+                    .setBatchSize(options.batchSize)
+                    .setQueueDepth(options.queueDepth)
+                    .setMetrics(metrics);
+            AdaptiveInference adaptive = options.toAdaptive();
+            pipeline.setAdaptive(adaptive);
+            if (options.autoPlan) {
+                // Worker processes keep ORT out of ImageJ, so their memory is estimated instead of probed here
+                MemoryPlanner planner = remote ? MemoryPlanner.assumed()
+                        : MemoryPlanner.calibrate(model, options.toEngineOptions(), lease.pool());
+                MemoryPlanner.Plan plan = planner.plan(engines, imp.getWidth(), imp.getHeight(), imp.getStackSize(),
+                        tileSize, tileOverlap, options.batchSize, options.queueDepth, 1);
+                plan.apply(pipeline);
+                if (showLog || !plan.fits()) IJ.log(plan.toString());
+            }
+            ResultCache resultCache = options.openResultCache();
+            if (resultCache != null) pipeline.setResultCache(resultCache, CheckpointedRun.modelId(model, engines, options));
 
-                        ImageProcessor ip = stack.getProcessor(idx);
-                        ImageProcessor outIp = engine.run(ip, normFactor);
+            if (showLog && pipeline.isTiled()) IJ.log("Tiled inference: " + pipeline.getTileSize() + "px tiles, " + tileOverlap + "px overlap");
+            if (showLog && pipeline.getEffectiveBatchSize() > 1) IJ.log("Batched inference: " + pipeline.getEffectiveBatchSize() + " planes per call");
 
-                        if (outIp != null) {
-                            Object pixels;
-                            if (stack.getBitDepth() == 8) pixels = outIp.convertToByte(false).getPixels();
-                            else if (stack.getBitDepth() == 16) pixels = outIp.convertToShort(false).getPixels();
-                            else pixels = outIp.getPixels();
-                            
-                            stack.setPixels(pixels, idx);
-                        }
-                    }
-                }
+            StackPipeline.ProgressListener progress = (done, total) -> {
+                int finalProgress = (int) ((done / (float) total) * 100);
+                SwingUtilities.invokeLater(() -> {
+                    progressBar.setValue(finalProgress);
+                    progressBar.setString(done + "/" + total);
+                });
+            };
+
+            String checkpointId = CheckpointedRun.canCheckpoint(imp, outFile, options)
+                    ? CheckpointedRun.identity(imp, model, engines, norm, options, pipeline) : null;
+            if (showLog && checkpointId != null) IJ.log("Checkpoint every " + options.checkpointSeconds + "s");
+            CheckpointedRun.run(pipeline, imp, outFile, checkpointId, options, progress);
+
+            if (showLog) {
+                if (resultCache != null) IJ.log(resultCache.toString());
+                if (adaptive != null) IJ.log(adaptive.toString());
+                IJ.log(pipeline.getUtilizationReport());
+                if (remote) IJ.log("Workers: " + engines);
+                IJ.log(metrics.report());
             }
+            if (options.exportMetrics) exportMetrics(metrics, imp, outFile, showLog);
             
             long endTime = System.currentTimeMillis();
             long duration = endTime - startTime;
+            String resultPath = streaming ? outFile.getPath() : null;
 
             SwingUtilities.invokeLater(() -> {
-                imp.updateAndDraw(); 
-                IJ.run(imp, "Enhance Contrast", "saturated=0.35");
+                ImagePlus shown = imp;
+                if (streaming) {
+                    shown = IJ.openVirtual(resultPath);
+                    shown.setTitle(imp.getShortTitle() + "_denoised");
+                    shown.show();
+                } else {
+                    imp.updateAndDraw();
+                }
+                IJ.run(shown, "Enhance Contrast", "saturated=0.35");
                 
                 progressBar.setValue(100);
                 progressBar.setString("Done");
@@ -425,19 +515,188 @@ public class Nia_Plugin implements PlugIn {
         } catch (Exception e) {
             IJ.handleException(e);
             resetUIState();
-        } finally {
-            if (engine != null) {
+        }
+    }
+
+    /**
+     * Starts a live preview on the current image, or stops the running one.
+     */
+    private void togglePreview() {
+        LivePreview running = preview;
+        if (running != null) {
+            running.stop();
+            return;
+        }
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if (imp == null) {
+            IJ.error("No Image", "Please open an image first.");
+            return;
+        }
+        ModelSource model = selectedModel();
+        if (model == null) return;
+
+        LivePreview started = new LivePreview(imp, model, options, () -> SwingUtilities.invokeLater(() -> {
+            preview = null;
+            btnPreview.setText("Preview");
+        }));
+        preview = started;
+        btnPreview.setText("Stop Preview");
+        new Thread(() -> {
+            try {
+                started.start();
+            } catch (Exception e) {
+                started.stop();
+                IJ.handleException(e);
+            }
+        }, "NIA-Preview-Start").start();
+    }
+
+    /**
+     * Opens a new window whose planes are denoised only when displayed (see DenoisedVirtualStack).
+     * The original stays untouched; the engine lease is held until the view is closed.
+     */
+    private void openLazyView(ImagePlus imp, boolean showLog) {
+        ModelSource model = selectedModel();
+        if (model == null) return;
+
+        SwingUtilities.invokeLater(() -> {
+            lblImageInfo.setText(getDimsString(imp));
+            btnRun.setEnabled(false);
+            progressBar.setIndeterminate(true);
+            progressBar.setString("Opening view...");
+        });
+
+        CompletableFuture<Normalization.Result> normFuture =
+                options.toInteractiveNormalization(imp.getStackSize()).computeAsync(imp);
+
+        EngineCache.Lease lease = null;
+        try {
+            lease = EngineCache.get().acquire(model, options.toEngineOptions(), options.sessions, options.sharedSession);
+            Normalization.Result norm = normFuture.get();
+            if (showLog) {
+                IJ.log("Lazy view: " + model.displayName() + (lease.wasWarm() ? " (warm)" : " (loaded)")
+                        + ", cache " + options.viewCacheMb + "MB, prefetch " + options.prefetchPlanes);
+                IJ.log(norm + " (" + norm.elapsedNanos() / 1000000 + "ms)");
+            }
+
+            DenoisedVirtualStack stack = new DenoisedVirtualStack(lease.pool(), imp.getStack(), norm.planeFactors())
+                    .setTiling(options.effectiveTileSize(), options.tileOverlap)
+                    .setCacheSize(options.viewCacheMb)
+                    .setPrefetch(options.prefetchPlanes)
+                    .setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+            EngineCache.Lease viewLease = lease;
+            int c = imp.getC(), z = imp.getZ(), t = imp.getT();
+
+            SwingUtilities.invokeLater(() -> {
                 try {
-                    if (engine instanceof AutoCloseable) {
-                        ((AutoCloseable) engine).close();
-                    } 
-                } catch (Exception ex) {
-                    System.err.println("Failed to close engine: " + ex.getMessage());
+                    ImagePlus view = new ImagePlus(imp.getShortTitle() + "_denoised", stack);
+                    view.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+                    view.setCalibration(imp.getCalibration());
+                    if (imp.isComposite()) {
+                        view = new CompositeImage(view, ((CompositeImage) imp).getMode());
+                        ((CompositeImage) view).setLuts(((CompositeImage) imp).getLuts());
+                    } else if (imp.isHyperStack()) {
+                        view.setOpenAsHyperStack(true);
+                    }
+                    view.setPosition(c, z, t);
+                    ImagePlus shown = view;
+                    ImagePlus.addImageListener(new ImageListener() {
+                        @Override
+                        public void imageOpened(ImagePlus i) {
+                        }
+
+                        @Override
+                        public void imageUpdated(ImagePlus i) {
+                        }
+
+                        @Override
+                        public void imageClosed(ImagePlus i) {
+                            if (i != shown) return;
+                            ImagePlus.removeImageListener(this);
+                            if (showLog) IJ.log(stack.getStats());
+                            stack.close();
+                            viewLease.close();
+                        }
+                    });
+                    view.show();
+                    IJ.run(view, "Enhance Contrast", "saturated=0.35");
+                } catch (Exception e) {
+                    stack.close();
+                    viewLease.close();
+                    IJ.handleException(e);
                 }
-            }
+                btnRun.setEnabled(true);
+                progressBar.setIndeterminate(false);
+                progressBar.setString("Ready");
+            });
+        } catch (Exception e) {
+            if (lease != null) lease.close();
+            IJ.handleException(e);
+            resetUIState();
+        }
+    }
+
+    /**
+     * The model chosen in the window, or null (after showing an error) if the custom file is missing.
+     */
+    private ModelSource selectedModel() {
+        if (rbBuiltIn.isSelected()) return ModelSource.builtIn(BUILT_IN_MODEL_NAME);
+        String p = txtCustomPath.getText();
+        if (p == null || p.isEmpty() || !new File(p).exists()) {
+            IJ.error("Error", "Model not found.");
+            return null;
+        }
+        return ModelSource.file(p);
+    }
+
+    /**
+     * Writes <name>_nia_metrics.csv / .json next to the output (streaming) or the source file.
+     */
+    private void exportMetrics(RunMetrics metrics, ImagePlus imp, File outFile, boolean showLog) {
+        File csv = reportFile(imp, outFile, "_nia_metrics.csv");
+        File json = reportFile(imp, outFile, "_nia_metrics.json");
+        try {
+            metrics.writeCsv(csv);
+            metrics.writeJson(json);
+            if (showLog) IJ.log("Metrics: " + csv + ", " + json.getName());
+        } catch (IOException e) {
+            IJ.log("Could not write metrics to " + csv.getParent() + ": " + e.getMessage());
         }
     }
 
+    /**
+     * Runs options.profilePlanes planes through a separate profiling session and writes the operator table to
+     * <name>_nia_profile.txt, with the raw ONNX Runtime trace beside it. A failure is logged and the run goes on.
+     */
+    private void profileOperators(ModelSource model, ImagePlus imp, Normalization.Result norm, int tileSize,
+                                  int tileOverlap, File outFile) {
+        File table = reportFile(imp, outFile, "_nia_profile.txt");
+        File trace = reportFile(imp, outFile, "_nia_profile_trace.json");
+        try {
+            OperatorProfile profile = OperatorProfile.profile(model, options.toEngineOptions(), imp,
+                    norm.planeFactors(), tileSize, tileOverlap, options.profilePlanes, trace);
+            IJ.log(profile.table());
+            profile.write(table);
+            IJ.log("Operator profile: " + table);
+        } catch (Exception e) {
+            IJ.log("⚠️ Operator profiling failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Report files sit next to the output (streaming) or the source file;
+     * images that were never saved use the temp directory.
+     */
+    private static File reportFile(ImagePlus imp, File outFile, String suffix) {
+        FileInfo fi = imp.getOriginalFileInfo();
+        if (outFile != null) {
+            return new File(outFile.getParentFile(), outFile.getName().replaceFirst("\\.[^.]*$", "") + suffix);
+        } else if (fi != null && fi.directory != null && !fi.directory.isEmpty()) {
+            return new File(fi.directory, imp.getShortTitle() + suffix);
+        }
+        return new File(IJ.getDirectory("temp"), imp.getShortTitle() + suffix);
+    }
+
     private void resetUIState() {
         SwingUtilities.invokeLater(() -> {
             btnRun.setEnabled(true);
@@ -456,16 +715,6 @@ public class Nia_Plugin implements PlugIn {
         } catch (Exception e) { return "Unknown"; }
     }
 
-    private String extractResourceToTemp(String resourceName) throws IOException {
-        InputStream is = getClass().getClassLoader().getResourceAsStream(resourceName);
-        if (is == null) is = getClass().getResourceAsStream("/" + resourceName);
-        if (is == null) throw new FileNotFoundException("Built-in model not found: " + resourceName);
-        File tempFile = File.createTempFile("nia_model_", ".onnx");
-        tempFile.deleteOnExit();
-        Files.copy(is, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        return tempFile.getAbsolutePath();
-    }
-
     public static void main(String[] args) {
         new ij.ImageJ();
         new Nia_Plugin().run("");
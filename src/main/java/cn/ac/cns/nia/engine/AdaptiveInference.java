@@ -0,0 +1,402 @@
+package cn.ac.cns.nia.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 自适应推理：跳过空背景块 (归一化空间)
+ * 平面按 blockSize 分块，每块打分：score = sqrt(max(0, 方差 - σ²) + (均值 - 背景)²) / σ，
+ * 即去掉噪声后块内结构 (起伏 + 高出背景的亮度) 的 RMS，以噪声 σ 为单位。
+ * σ 由相邻像素差的 MAD 估计 (对结构不敏感)，背景取各块均值的 10% 分位数。
+ * 纯背景块的 score 接近 0，score < threshold 的块不进模型，改用 5x5 均值滤波 (或原样保留)；
+ * 其余块合并成矩形 (边长不超过 tileSize，与分块推理的内存上限一致)，连同四周 margin 像素的上下文裁成窗口
+ * 送入模型 (同尺寸的窗口打包成 batch)，只取回核心区。
+ * margin 不小于网络感受野的一半时 (内置 DnCNN 为 17 像素)，被推理的块与整帧推理基本一致。
+ * 统计跳过的块数与实际计算的像素 (含 margin)，前 verifyPlanes 个平面另做一次整帧推理，记录与之的误差。
+ * 多个推理线程可以共用一个实例。
+ */
+public final class AdaptiveInference {
+
+    public enum Fallback {
+        /** 5x5 均值滤波 */
+        SMOOTH,
+        /** 原样输出 */
+        KEEP
+    }
+
+    // 每次调用最多送入的像素 (限制激活内存)：约 8 个 128 像素块加 32 像素上下文的窗口
+    private static final int MAX_PIXELS_PER_CALL = 8 * 192 * 192;
+    // 窗口数组的下标：核心区 [X0, X1) x [Y0, Y1)，窗口左上角 (OX, OY) 与尺寸 WW x WH
+    private static final int X0 = 0, X1 = 1, Y0 = 2, Y1 = 3, OX = 4, OY = 5, WW = 6, WH = 7;
+    private static final int NOISE_SAMPLES = 1 << 16;
+    private static final double BACKGROUND_PERCENTILE = 0.1;
+    private static final int SMOOTH_RADIUS = 2;
+
+    private final int blockSize;
+    private final int margin;
+    private final double threshold;
+    private final Fallback fallback;
+    private final int verifyPlanes;
+
+    private final AtomicLong planes = new AtomicLong();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong skippedBlocks = new AtomicLong();
+    private final AtomicLong totalPixels = new AtomicLong();
+    private final AtomicLong computedPixels = new AtomicLong();
+    private final AtomicInteger verifyClaims = new AtomicInteger();
+    // 与整帧推理的比较 (归一化空间，峰值 = 1)
+    private int verified;
+    private double squaredError;
+    private long comparedPixels;
+    private double maxAbsError;
+
+    /**
+     * @param blockSize    块边长 (像素)
+     * @param margin       推理窗口每侧的上下文宽度 (像素)
+     * @param threshold    score 低于该值的块跳过推理
+     * @param verifyPlanes 前几个平面另做整帧推理以测量误差 (0 = 不测)
+     */
+    public AdaptiveInference(int blockSize, int margin, double threshold, Fallback fallback, int verifyPlanes) {
+        this.blockSize = Math.max(16, blockSize);
+        this.margin = Math.max(0, margin);
+        this.threshold = threshold;
+        this.fallback = fallback;
+        this.verifyPlanes = Math.max(0, verifyPlanes);
+    }
+
+    /**
+     * 影响结果的参数 (用于结果缓存 / 断点的 key)
+     */
+    public String settings() {
+        return "adaptive=" + blockSize + "/" + margin + "/" + threshold + "/" + fallback;
+    }
+
+    /**
+     * 推理一个归一化后的平面；所有块都有内容时按 tileSize / overlap 整帧 (分块) 推理
+     */
+    public float[] infer(PlaneInference engine, float[] pixels, int width, int height, int tileSize, int overlap,
+                         RunMetrics.Sample sample) throws Exception {
+        float[] expected = null;
+        if (verifyClaims.getAndIncrement() < verifyPlanes) {
+            expected = engine.inferTiled(pixels.clone(), width, height, tileSize, overlap, null);
+        }
+        float[] result = inferBlocks(engine, pixels, width, height, tileSize, overlap, sample);
+        if (expected != null) compare(expected, result);
+        return result;
+    }
+
+    private float[] inferBlocks(PlaneInference engine, float[] pixels, int width, int height, int tileSize,
+                                int overlap, RunMetrics.Sample sample) throws Exception {
+        int[] xBounds = InferenceEngine.tileBounds(width, blockSize);
+        int[] yBounds = InferenceEngine.tileBounds(height, blockSize);
+        int nx = xBounds.length - 1;
+        int ny = yBounds.length - 1;
+
+        boolean[] informative = score(pixels, width, height, xBounds, yBounds);
+        int count = 0;
+        for (boolean b : informative) if (b) count++;
+        List<int[]> windows = windows(informative, nx, ny, xBounds, yBounds, width, height, tileSize);
+        long windowPixels = 0;
+        for (int[] w : windows) windowPixels += (long) w[WW] * w[WH];
+
+        planes.incrementAndGet();
+        blocks.addAndGet(nx * ny);
+        skippedBlocks.addAndGet(nx * ny - count);
+        totalPixels.addAndGet((long) width * height);
+
+        // 窗口的总面积不比整帧小时，直接整帧推理更省
+        if (windowPixels >= (long) width * height) {
+            computedPixels.addAndGet((long) width * height);
+            return engine.inferTiled(pixels, width, height, tileSize, overlap, sample);
+        }
+        computedPixels.addAndGet(windowPixels);
+
+        float[] result = new float[width * height];
+        for (int by = 0; by < ny; by++) {
+            for (int bx = 0; bx < nx; bx++) {
+                if (informative[by * nx + bx]) continue;
+                fillSkipped(pixels, result, width, height, xBounds[bx], xBounds[bx + 1], yBounds[by], yBounds[by + 1]);
+            }
+        }
+        // 同样大小的窗口打包成一个 batch，每次调用的像素数有上限
+        windows.sort(Comparator.<int[]>comparingInt(w -> w[WW]).thenComparingInt(w -> w[WH]));
+        for (int i = 0; i < windows.size(); ) {
+            int[] first = windows.get(i);
+            int limit = Math.max(1, Math.min(engine.getMaxBatchSize(), MAX_PIXELS_PER_CALL / (first[WW] * first[WH])));
+            int j = i + 1;
+            while (j < windows.size() && j - i < limit
+                    && windows.get(j)[WW] == first[WW] && windows.get(j)[WH] == first[WH]) {
+                j++;
+            }
+            if (tileSize > 0 && (first[X1] - first[X0] > tileSize || first[Y1] - first[Y0] > tileSize)) {
+                // 单个块就比 tileSize 大 (blockSize > tileSize)：窗口逐个分块推理
+                for (int k = i; k < j; k++) inferTiledWindow(engine, pixels, result, width, windows.get(k), tileSize, sample);
+            } else {
+                inferWindows(engine, pixels, result, width, windows.subList(i, j), sample);
+            }
+            i = j;
+        }
+        return result;
+    }
+
+    /**
+     * 把有内容的块贪心地合并成矩形 (先向右延伸，再整行向下延伸)，相邻块共用上下文，
+     * 每个矩形四周加 margin 成为一个推理窗口 (靠边时往里挪，尺寸不变)。
+     * tileSize > 0 时矩形的宽高不超过 tileSize (至少一个块)，窗口因此不比分块推理的块大，
+     * 内存规划或 OOM 退避缩小 tileSize 时窗口也随之变小。
+     */
+    private List<int[]> windows(boolean[] informative, int nx, int ny, int[] xBounds, int[] yBounds,
+                                int width, int height, int tileSize) {
+        int maxSpan = tileSize > 0 ? tileSize : Integer.MAX_VALUE;
+        boolean[] covered = new boolean[informative.length];
+        List<int[]> windows = new ArrayList<>();
+        for (int by = 0; by < ny; by++) {
+            for (int bx = 0; bx < nx; bx++) {
+                if (!informative[by * nx + bx] || covered[by * nx + bx]) continue;
+                int bx1 = bx + 1;
+                while (bx1 < nx && informative[by * nx + bx1] && !covered[by * nx + bx1]
+                        && xBounds[bx1 + 1] - xBounds[bx] <= maxSpan) {
+                    bx1++;
+                }
+                int by1 = by + 1;
+                while (by1 < ny && rowFree(informative, covered, by1 * nx, bx, bx1)
+                        && yBounds[by1 + 1] - yBounds[by] <= maxSpan) {
+                    by1++;
+                }
+                for (int y = by; y < by1; y++) Arrays.fill(covered, y * nx + bx, y * nx + bx1, true);
+
+                int x0 = xBounds[bx];
+                int x1 = xBounds[bx1];
+                int y0 = yBounds[by];
+                int y1 = yBounds[by1];
+                int ww = Math.min(width, x1 - x0 + 2 * margin);
+                int wh = Math.min(height, y1 - y0 + 2 * margin);
+                int ox = Math.max(0, Math.min(x0 - margin, width - ww));
+                int oy = Math.max(0, Math.min(y0 - margin, height - wh));
+                windows.add(new int[]{x0, x1, y0, y1, ox, oy, ww, wh});
+            }
+        }
+        return windows;
+    }
+
+    private static boolean rowFree(boolean[] informative, boolean[] covered, int row, int bx0, int bx1) {
+        for (int bx = bx0; bx < bx1; bx++) {
+            if (!informative[row + bx] || covered[row + bx]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 同样大小的窗口一起推理，结果只写回各自矩形的核心区
+     */
+    private static void inferWindows(PlaneInference engine, float[] pixels, float[] result, int width,
+                                     List<int[]> windows, RunMetrics.Sample sample) throws Exception {
+        int n = windows.size();
+        int ww = windows.get(0)[WW];
+        int wh = windows.get(0)[WH];
+        int windowSize = ww * wh;
+        float[] packed = new float[n * windowSize];
+        for (int i = 0; i < n; i++) {
+            int[] w = windows.get(i);
+            for (int y = 0; y < wh; y++) {
+                System.arraycopy(pixels, (w[OY] + y) * width + w[OX], packed, i * windowSize + y * ww, ww);
+            }
+        }
+        float[] out = engine.inferPlanes(packed, n, ww, wh, sample);
+        for (int i = 0; i < n; i++) {
+            int[] w = windows.get(i);
+            for (int y = w[Y0]; y < w[Y1]; y++) {
+                int src = i * windowSize + (y - w[OY]) * ww + (w[X0] - w[OX]);
+                System.arraycopy(out, src, result, y * width + w[X0], w[X1] - w[X0]);
+            }
+        }
+    }
+
+    /**
+     * 比 tileSize 大的窗口：裁出来分块推理 (块间上下文同 margin)，只写回核心区
+     */
+    private void inferTiledWindow(PlaneInference engine, float[] pixels, float[] result, int width, int[] w,
+                                  int tileSize, RunMetrics.Sample sample) throws Exception {
+        int ww = w[WW];
+        int wh = w[WH];
+        float[] window = new float[ww * wh];
+        for (int y = 0; y < wh; y++) {
+            System.arraycopy(pixels, (w[OY] + y) * width + w[OX], window, y * ww, ww);
+        }
+        float[] out = engine.inferTiled(window, ww, wh, tileSize, margin, sample);
+        for (int y = w[Y0]; y < w[Y1]; y++) {
+            System.arraycopy(out, (y - w[OY]) * ww + (w[X0] - w[OX]), result, y * width + w[X0], w[X1] - w[X0]);
+        }
+    }
+
+    // ==========================================
+    // 打分
+    // ==========================================
+
+    private boolean[] score(float[] pixels, int width, int height, int[] xBounds, int[] yBounds) {
+        int nx = xBounds.length - 1;
+        int ny = yBounds.length - 1;
+        double[] means = new double[nx * ny];
+        double[] variances = new double[nx * ny];
+        for (int by = 0; by < ny; by++) {
+            for (int bx = 0; bx < nx; bx++) {
+                double sum = 0;
+                double sumSq = 0;
+                for (int y = yBounds[by]; y < yBounds[by + 1]; y++) {
+                    int row = y * width;
+                    for (int x = xBounds[bx]; x < xBounds[bx + 1]; x++) {
+                        double v = pixels[row + x];
+                        sum += v;
+                        sumSq += v * v;
+                    }
+                }
+                long n = (long) (xBounds[bx + 1] - xBounds[bx]) * (yBounds[by + 1] - yBounds[by]);
+                double mean = sum / n;
+                means[by * nx + bx] = mean;
+                variances[by * nx + bx] = Math.max(0, sumSq / n - mean * mean);
+            }
+        }
+        double sigma = Math.max(noiseSigma(pixels, width, height), 1e-6);
+        double[] sorted = means.clone();
+        Arrays.sort(sorted);
+        double background = sorted[(int) (BACKGROUND_PERCENTILE * (sorted.length - 1))];
+
+        boolean[] informative = new boolean[means.length];
+        for (int i = 0; i < means.length; i++) {
+            double structure = Math.max(0, variances[i] - sigma * sigma);
+            double offset = means[i] - background;
+            informative[i] = Math.sqrt(structure + offset * offset) / sigma >= threshold;
+        }
+        return informative;
+    }
+
+    /**
+     * 噪声 σ：水平相邻像素差的 MAD (白噪声的差的标准差是 σ√2)，最多取 NOISE_SAMPLES 个样本
+     */
+    static double noiseSigma(float[] pixels, int width, int height) {
+        long pairs = (long) (width - 1) * height;
+        if (pairs <= 0) return 0;
+        int stride = (int) Math.max(1, pairs / NOISE_SAMPLES);
+        float[] diffs = new float[(int) ((pairs + stride - 1) / stride)];
+        int n = 0;
+        for (long k = 0; k < pairs && n < diffs.length; k += stride) {
+            int y = (int) (k / (width - 1));
+            int x = (int) (k % (width - 1));
+            diffs[n++] = Math.abs(pixels[y * width + x + 1] - pixels[y * width + x]);
+        }
+        Arrays.sort(diffs, 0, n);
+        // 差值以 0 为中心，|d| 的中位数即 MAD
+        return 1.4826 * diffs[n / 2] / Math.sqrt(2);
+    }
+
+    private void fillSkipped(float[] pixels, float[] result, int width, int height, int x0, int x1, int y0, int y1) {
+        if (fallback == Fallback.KEEP) {
+            for (int y = y0; y < y1; y++) System.arraycopy(pixels, y * width + x0, result, y * width + x0, x1 - x0);
+            return;
+        }
+        // 可分离的 5x5 均值：先对块上下各扩 r 行做水平求和，再竖直求和；图像边缘按截断的窗口平均
+        int r = SMOOTH_RADIUS;
+        int top = Math.max(0, y0 - r);
+        int bottom = Math.min(height, y1 + r);
+        int w = x1 - x0;
+        float[] rows = new float[(bottom - top) * w];
+        for (int y = top; y < bottom; y++) {
+            int row = y * width;
+            for (int x = x0; x < x1; x++) {
+                int from = Math.max(0, x - r);
+                int to = Math.min(width - 1, x + r);
+                float sum = 0;
+                for (int k = from; k <= to; k++) sum += pixels[row + k];
+                rows[(y - top) * w + (x - x0)] = sum / (to - from + 1);
+            }
+        }
+        for (int y = y0; y < y1; y++) {
+            int from = Math.max(top, y - r);
+            int to = Math.min(bottom - 1, y + r);
+            for (int x = 0; x < w; x++) {
+                float sum = 0;
+                for (int k = from; k <= to; k++) sum += rows[(k - top) * w + x];
+                result[y * width + x0 + x] = sum / (to - from + 1);
+            }
+        }
+    }
+
+    private synchronized void compare(float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            double d = actual[i] - expected[i];
+            squaredError += d * d;
+            maxAbsError = Math.max(maxAbsError, Math.abs(d));
+        }
+        comparedPixels += expected.length;
+        verified++;
+    }
+
+    // ==========================================
+    // 统计
+    // ==========================================
+
+    public double skippedBlockFraction() {
+        long b = blocks.get();
+        return b > 0 ? skippedBlocks.get() / (double) b : 0;
+    }
+
+    /**
+     * 省下的计算量：1 - 实际送入模型的像素 (含上下文) / 平面总像素
+     */
+    public double savedComputeFraction() {
+        long total = totalPixels.get();
+        return total > 0 ? 1 - computedPixels.get() / (double) total : 0;
+    }
+
+    /**
+     * 与整帧推理比较的 PSNR (峰值为归一化后的 1.0)；没有比较过时为 NaN
+     */
+    public synchronized double psnr() {
+        if (comparedPixels == 0) return Double.NaN;
+        double mse = squaredError / comparedPixels;
+        return mse > 0 ? -10 * Math.log10(mse) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * 与整帧推理的最大绝对误差 (归一化空间)；峰值为 1.0，所以同时也是占峰值的比例
+     */
+    public synchronized double maxAbsError() {
+        return maxAbsError;
+    }
+
+    /**
+     * 例："Adaptive: 412/640 blocks skipped as background (64%), 51% less compute; vs full inference (2 planes):
+     * PSNR 48.2 dB, max error 0.91% of peak"
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+                "Adaptive: %d/%d blocks skipped as background (%.0f%%), %.0f%% less compute",
+                skippedBlocks.get(), blocks.get(), 100 * skippedBlockFraction(), 100 * savedComputeFraction()));
+        synchronized (this) {
+            if (verified > 0) {
+                double psnr = psnr();
+                sb.append(String.format(Locale.ROOT, "; vs full inference (%d %s): PSNR %s dB, max error %.2g%% of peak",
+                        verified, verified == 1 ? "plane" : "planes",
+                        Double.isInfinite(psnr) ? "inf" : String.format(Locale.ROOT, "%.1f", psnr),
+                        100 * maxAbsError));
+            }
+        }
+        return sb.toString();
+    }
+
+    public synchronized String toJson() {
+        double psnr = psnr();
+        return String.format(Locale.ROOT, "{\"planes\": %d, \"blocks\": %d, \"skippedBlocks\": %d, "
+                        + "\"savedComputeFraction\": %.4f, \"verifiedPlanes\": %d, \"psnrDb\": %s, "
+                        + "\"maxRelativeError\": %.6g}",
+                planes.get(), blocks.get(), skippedBlocks.get(), savedComputeFraction(), verified,
+                Double.isNaN(psnr) || Double.isInfinite(psnr) ? "null" : String.format(Locale.ROOT, "%.3f", psnr),
+                maxAbsError());
+    }
+}
@@ -0,0 +1,53 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * 推理取消标记 (一次请求一个，取消后不能复用)
+ * cancel() 之后：正在执行的 session.run 通过 RunOptions 的 terminate 标志尽快退出，
+ * 分块推理在下一块开始前停止；被取消的调用抛出 CancellationException。
+ * 由发起请求的一方在推理返回后 close()，cancel() 可以在任意线程调用。
+ */
+public final class CancelToken implements AutoCloseable {
+
+    private final OrtSession.RunOptions runOptions;
+    private volatile boolean cancelled;
+    private boolean closed;
+
+    public CancelToken() throws OrtException {
+        this.runOptions = new OrtSession.RunOptions();
+    }
+
+    public synchronized void cancel() {
+        if (cancelled) return;
+        cancelled = true;
+        if (closed) return;
+        try {
+            runOptions.setTerminate(true);
+        } catch (OrtException e) {
+            // 只是不能打断当前这次 run，下一块之前仍会停止
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void check() {
+        if (cancelled) throw new CancellationException("Inference cancelled");
+    }
+
+    OrtSession.RunOptions runOptions() {
+        return runOptions;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        runOptions.close();
+    }
+}
@@ -0,0 +1,420 @@
+package cn.ac.cns.nia.engine;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 惰性去噪视图 (非破坏性)
+ * 原栈只读；某个平面第一次被显示 / 读取时才推理，结果放进按字节数限制大小的 LRU 缓存。
+ * 每次访问后在后台预取 Z / T 方向上相邻的平面，拖动滑块时下一张通常已经算好；
+ * 滑块移走后，还没开始的预取任务被取消 (已经开始的算完后照常进缓存)。
+ * 5000 帧的电影打开后立即可以浏览，只有看过的平面 (和少量预取) 才会花推理时间。
+ * 视图关闭时必须调用 close()，停止预取线程并释放缓存。
+ */
+public class DenoisedVirtualStack extends VirtualStack implements AutoCloseable {
+
+    private final EnginePool pool;
+    private final ImageStack source;
+    private final double[] planeFactors; // 按栈索引 (1-based)
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int size;
+
+    private int tileSize = 0;
+    private int tileOverlap = 0;
+    private long cacheBytes = 256L << 20;
+    private int prefetch = 2;
+    private int nChannels = 1;
+    private int nSlices = 1;
+    private int nFrames = 1;
+
+    // 访问顺序的 LRU：最久未用的平面最先淘汰
+    private final LinkedHashMap<Integer, Object> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private final Map<Integer, PlaneTask> pending = new HashMap<>();
+    private final ExecutorService prefetcher;
+    private volatile boolean closed;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger prefetched = new AtomicInteger();
+
+    /**
+     * @param planeFactors 每个栈索引 (1-based，长度 size + 1) 的归一化系数，见 Normalization.Result
+     */
+    public DenoisedVirtualStack(EnginePool pool, ImageStack source, double[] planeFactors) {
+        super(source.getWidth(), source.getHeight(), source.getSize());
+        this.pool = pool;
+        this.source = source;
+        this.planeFactors = planeFactors;
+        this.width = source.getWidth();
+        this.height = source.getHeight();
+        this.bitDepth = source.getBitDepth();
+        this.size = source.getSize();
+        this.nFrames = size;
+        setColorModel(source.getColorModel());
+
+        // 预取线程数与推理 worker 数相同；显示中的平面在调用线程上算，不排在预取后面
+        AtomicInteger threadId = new AtomicInteger();
+        this.prefetcher = Executors.newFixedThreadPool(pool.getWorkers(), r -> {
+            Thread t = new Thread(r, "NIA-Prefetch-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        });
+    }
+
+    /**
+     * 超过 tileSize 的平面分块推理，参数同 InferenceEngine#inferTiled
+     */
+    public DenoisedVirtualStack setTiling(int tileSize, int overlap) {
+        this.tileSize = tileSize;
+        this.tileOverlap = overlap;
+        return this;
+    }
+
+    /**
+     * 缓存上限 (MB)；至少保留一个平面
+     */
+    public DenoisedVirtualStack setCacheSize(int megabytes) {
+        this.cacheBytes = Math.max(0, megabytes) * (1L << 20);
+        return this;
+    }
+
+    /**
+     * 每次访问后沿 Z / T 两个方向各预取几张，0 表示不预取
+     */
+    public DenoisedVirtualStack setPrefetch(int planes) {
+        this.prefetch = Math.max(0, planes);
+        return this;
+    }
+
+    /**
+     * 超栈维度，用于确定 "相邻" 的平面 (同一通道的上一层 / 下一帧)；不设置时按栈索引相邻
+     */
+    public DenoisedVirtualStack setDimensions(int channels, int slices, int frames) {
+        if (channels * slices * frames == size) {
+            this.nChannels = channels;
+            this.nSlices = slices;
+            this.nFrames = frames;
+        }
+        return this;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return source.getSliceLabel(n);
+    }
+
+    /**
+     * 返回去噪结果的副本 (调用方可以随意修改，不影响缓存)
+     */
+    @Override
+    public Object getPixels(int n) {
+        if (n < 1 || n > size) throw new IllegalArgumentException("Argument out of range: " + n);
+        Object pixels = plane(n);
+        schedulePrefetch(n);
+        return copy(pixels);
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Object pixels = getPixels(n);
+        switch (bitDepth) {
+            case 8: return new ByteProcessor(width, height, (byte[]) pixels);
+            case 16: return new ShortProcessor(width, height, (short[]) pixels, null);
+            case 32: return new FloatProcessor(width, height, (float[]) pixels);
+            default: return new ColorProcessor(width, height, (int[]) pixels);
+        }
+    }
+
+    /**
+     * 结果是只读视图，修改不会保存
+     */
+    @Override
+    public void setPixels(Object pixels, int n) {
+    }
+
+    @Override
+    public int saveChanges(int n) {
+        return -1;
+    }
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException("Denoised view is read-only");
+    }
+
+    @Override
+    public void deleteLastSlice() {
+        throw new UnsupportedOperationException("Denoised view is read-only");
+    }
+
+    public boolean isCached(int n) {
+        synchronized (this) {
+            return cache.containsKey(n);
+        }
+    }
+
+    /**
+     * 命中率 / 预取统计，用于日志
+     */
+    public String getStats() {
+        int h = hits.get();
+        int m = misses.get();
+        int cachedPlanes;
+        long bytes;
+        synchronized (this) {
+            cachedPlanes = cache.size();
+            bytes = cachedBytes;
+        }
+        return String.format(Locale.ROOT, "Denoised view: %d hits, %d misses (%.0f%% hit rate), %d planes prefetched, "
+                        + "%d planes cached (%.0fMB)", h, m, (h + m) > 0 ? 100.0 * h / (h + m) : 0,
+                prefetched.get(), cachedPlanes, bytes / (1024.0 * 1024));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        prefetcher.shutdownNow();
+        synchronized (this) {
+            for (PlaneTask task : pending.values()) task.cancel(false);
+            pending.clear();
+            cache.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    // ==========================================
+    // 缓存 / 预取
+    // ==========================================
+
+    /**
+     * 缓存命中直接返回；正在预取的平面等它算完 (拿到结果才算命中)；否则在调用线程上推理，记为未命中
+     */
+    private Object plane(int n) {
+        PlaneTask task;
+        synchronized (this) {
+            Object pixels = cache.get(n);
+            if (pixels != null) {
+                hits.incrementAndGet();
+                return pixels;
+            }
+            task = pending.get(n);
+            if (task != null && task.claim()) {
+                // 还在排队的预取不如直接算
+                pending.remove(n);
+                task.cancel(false);
+                task = null;
+            }
+        }
+
+        if (task != null) {
+            try {
+                Object pixels = task.get();
+                if (pixels != null) {
+                    hits.incrementAndGet();
+                    return pixels;
+                }
+            } catch (Exception e) {
+                // 预取失败，下面重新算一次 (错误会再次抛出)
+            }
+        }
+
+        misses.incrementAndGet();
+        if (closed) return blankPixels();
+        try {
+            Object pixels = denoise(n);
+            put(n, pixels);
+            return pixels;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while denoising plane " + n, e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Denoising plane " + n + " failed: " + e.getMessage(), e);
+        }
+    }
+
+    private void schedulePrefetch(int n) {
+        if (prefetch == 0 || closed) return;
+        List<Integer> wanted = neighbours(n);
+        synchronized (this) {
+            // 滑块已经移走：取消不在新窗口里、还没开始的预取
+            Iterator<Map.Entry<Integer, PlaneTask>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, PlaneTask> e = it.next();
+                if (!wanted.contains(e.getKey()) && e.getValue().claim()) {
+                    e.getValue().cancel(false);
+                    it.remove();
+                }
+            }
+            // 预取不把刚看过的平面挤出缓存：最多填满缓存的一半
+            long budget = cacheBytes / 2 / planeBytes();
+            int scheduled = 0;
+            for (int index : wanted) {
+                if (scheduled >= budget) break;
+                if (cache.containsKey(index) || pending.containsKey(index)) continue;
+                PlaneTask task = new PlaneTask(index);
+                pending.put(index, task);
+                try {
+                    prefetcher.execute(task);
+                } catch (RejectedExecutionException e) {
+                    pending.remove(index);
+                    return;
+                }
+                scheduled++;
+            }
+        }
+    }
+
+    /**
+     * 同一通道内沿 Z、T 方向的相邻平面，由近到远，向前的优先 (通常是往后翻)
+     */
+    private List<Integer> neighbours(int n) {
+        int i = n - 1;
+        int c = i % nChannels;
+        int z = (i / nChannels) % nSlices;
+        int t = i / (nChannels * nSlices);
+        List<Integer> out = new ArrayList<>();
+        for (int d = 1; d <= prefetch; d++) {
+            for (int sign : new int[]{1, -1}) {
+                if (nFrames > 1) addIndex(out, c, z, t + sign * d);
+                if (nSlices > 1) addIndex(out, c, z + sign * d, t);
+            }
+        }
+        return out;
+    }
+
+    private void addIndex(List<Integer> out, int c, int z, int t) {
+        if (z < 0 || z >= nSlices || t < 0 || t >= nFrames) return;
+        out.add(1 + c + z * nChannels + t * nChannels * nSlices);
+    }
+
+    private synchronized void put(int n, Object pixels) {
+        if (closed) return;
+        if (cache.put(n, pixels) == null) cachedBytes += planeBytes();
+        Iterator<Map.Entry<Integer, Object>> it = cache.entrySet().iterator();
+        while (cachedBytes > cacheBytes && cache.size() > 1 && it.hasNext()) {
+            if (it.next().getKey() == n) continue;
+            it.remove();
+            cachedBytes -= planeBytes();
+        }
+    }
+
+    private Object denoise(int n) throws Exception {
+        ImageProcessor ip;
+        // 虚拟源栈按需读文件，串行读取更稳妥 (相对推理很快)
+        synchronized (source) {
+            ip = source.getProcessor(n);
+        }
+        double factor = planeFactors[n];
+        InferenceEngine engine = pool.acquire();
+        float[] data;
+        try {
+            data = engine.preprocess(ip, factor);
+            data = engine.inferTiled(data, width, height, tileSize, tileOverlap);
+        } finally {
+            pool.release(engine);
+        }
+
+        Object pixels = blankPixels();
+        if (PixelKernels.isSupported(pixels)) {
+            InferenceEngine.denormalizeInto(data, 0, pixels, factor);
+            return pixels;
+        }
+        InferenceEngine.denormalize(data, factor);
+        return new FloatProcessor(width, height, data).convertToRGB().getPixels();
+    }
+
+    private Object blankPixels() {
+        int n = width * height;
+        switch (bitDepth) {
+            case 8: return new byte[n];
+            case 16: return new short[n];
+            case 32: return new float[n];
+            default: return new int[n];
+        }
+    }
+
+    private long planeBytes() {
+        int bytesPerPixel = (bitDepth == 8) ? 1 : (bitDepth == 16) ? 2 : 4;
+        return (long) width * height * bytesPerPixel;
+    }
+
+    private static Object copy(Object pixels) {
+        if (pixels instanceof byte[]) return ((byte[]) pixels).clone();
+        if (pixels instanceof short[]) return ((short[]) pixels).clone();
+        if (pixels instanceof float[]) return ((float[]) pixels).clone();
+        return ((int[]) pixels).clone();
+    }
+
+    /**
+     * 一次预取。开始推理前先 claim()；排队期间被调用线程或新的预取窗口抢先 claim 的任务直接跳过
+     */
+    private final class PlaneTask extends FutureTask<Object> {
+        private final int index;
+        private final AtomicBoolean claimed;
+
+        PlaneTask(int n) {
+            this(n, new AtomicBoolean());
+        }
+
+        private PlaneTask(int n, AtomicBoolean claimed) {
+            super(() -> {
+                if (!claimed.compareAndSet(false, true)) return null;
+                Object pixels = denoise(n);
+                put(n, pixels);
+                prefetched.incrementAndGet();
+                return pixels;
+            });
+            this.index = n;
+            this.claimed = claimed;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        protected void done() {
+            synchronized (DenoisedVirtualStack.this) {
+                if (pending.get(index) == this) pending.remove(index);
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.OrtException;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 进程级引擎缓存
+ * 同一个模型 + 同一套配置只创建一次 EnginePool，之后每次点击 "Start Denoising" 直接复用 (热启动)。
+ * 1. 只保留一个模型：请求不同模型 / 配置时，旧的引擎池被淘汰；
+ * 2. 堆内存超过阈值 (GC 后仍占用 85% 以上) 时淘汰，让出内存；阈值只设在还没有人设置过的堆内存池上，
+ *    别的插件 / 监控工具已设置的阈值保持不变，shutdown() 时把自己设的恢复为 0 (关闭)；
+ * 3. 正在使用中的引擎池 (有未关闭的 Lease) 不会立即关闭，等最后一个使用者归还后再释放；
+ * 4. JVM 退出 (关闭 ImageJ) 时通过 shutdown hook 释放 Native 资源。
+ */
+public final class EngineCache {
+
+    private static final double MEMORY_PRESSURE_THRESHOLD = 0.85;
+    private static final EngineCache INSTANCE = new EngineCache();
+
+    private final ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "NIA-WarmUp");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Entry current;
+    private boolean shutdown;
+
+    // 由本类设置了 collection usage 阈值的内存池 → 设置的值
+    private final Map<MemoryPoolMXBean, Long> thresholds = new LinkedHashMap<>();
+    private NotificationListener memoryListener;
+
+    private EngineCache() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "NIA-EngineCache-Shutdown"));
+        installMemoryListener();
+    }
+
+    public static EngineCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * 借用引擎池，用完必须关闭 Lease (try-with-resources)
+     */
+    public Lease acquire(ModelSource model, EngineOptions options, int sessions, boolean shared) throws OrtException {
+        String key = key(model, options, sessions, shared);
+        Entry entry;
+        synchronized (this) {
+            if (shutdown) throw new IllegalStateException("Engine cache has been shut down");
+            if (current != null && !current.key.equals(key)) {
+                retire(current);
+                current = null;
+            }
+            if (current == null) current = new Entry(key);
+            entry = current;
+            entry.refCount++;
+        }
+
+        // 在锁外创建 Session，避免阻塞其他线程；同一个 Entry 只创建一次
+        boolean warm;
+        try {
+            warm = !entry.ensureLoaded(model, options, sessions, shared);
+        } catch (OrtException | RuntimeException e) {
+            synchronized (this) {
+                if (current == entry) current = null;
+                release(entry);
+            }
+            throw e;
+        }
+        return new Lease(entry, warm);
+    }
+
+    /**
+     * 后台预热 (插件窗口打开时调用)：提前创建 Session 并跑一次小图
+     */
+    public Future<?> warmUpAsync(ModelSource model, EngineOptions options, int sessions, boolean shared) {
+        return warmUpExecutor.submit(() -> {
+            try (Lease lease = acquire(model, options, sessions, shared)) {
+                lease.pool().primary().warmUp();
+            } catch (Exception e) {
+                System.err.println("NIA warm-up failed: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 当前缓存的模型 (日志用)，没有时返回 null
+     */
+    public synchronized String currentKey() {
+        return (current == null) ? null : current.key;
+    }
+
+    /**
+     * 主动淘汰当前缓存 (模型变更 / 内存紧张)
+     */
+    public synchronized void evict() {
+        if (current != null) {
+            retire(current);
+            current = null;
+        }
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        evict();
+        warmUpExecutor.shutdownNow();
+        removeMemoryListener();
+    }
+
+    private static String key(ModelSource model, EngineOptions options, int sessions, boolean shared) {
+        return model.key() + "|" + options + "|workers=" + sessions + (shared ? "|shared" : "");
+    }
+
+    // 调用方需持有锁
+    private void retire(Entry entry) {
+        entry.retired = true;
+        if (entry.refCount == 0) entry.close();
+    }
+
+    // 调用方需持有锁
+    private void release(Entry entry) {
+        entry.refCount--;
+        if (entry.refCount == 0 && entry.retired) entry.close();
+    }
+
+    private void installMemoryListener() {
+        try {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                        && pool.getUsage().getMax() > 0 && pool.getCollectionUsageThreshold() == 0) {
+                    long threshold = (long) (pool.getUsage().getMax() * MEMORY_PRESSURE_THRESHOLD);
+                    pool.setCollectionUsageThreshold(threshold);
+                    thresholds.put(pool, threshold);
+                }
+            }
+            // 别人设的阈值可能更低，收到通知后再按自己的比例判断一次
+            memoryListener = (notification, handback) -> {
+                if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())
+                        && underPressure(MemoryNotificationInfo.from((CompositeData) notification.getUserData()))) {
+                    evict();
+                }
+            };
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(memoryListener, null, null);
+        } catch (Exception e) {
+            // 某些 JVM 不支持内存阈值通知，忽略即可 (仍然会在模型变更时淘汰)
+        }
+    }
+
+    private static boolean underPressure(MemoryNotificationInfo info) {
+        MemoryUsage usage = info.getUsage();
+        return usage.getMax() <= 0 || usage.getUsed() >= usage.getMax() * MEMORY_PRESSURE_THRESHOLD;
+    }
+
+    // 调用方需持有锁；期间被别人改过的阈值不动
+    private void removeMemoryListener() {
+        for (Map.Entry<MemoryPoolMXBean, Long> t : thresholds.entrySet()) {
+            try {
+                if (t.getKey().getCollectionUsageThreshold() == t.getValue()) t.getKey().setCollectionUsageThreshold(0);
+            } catch (RuntimeException e) {
+                // 内存池已失效
+            }
+        }
+        thresholds.clear();
+        if (memoryListener == null) return;
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(memoryListener);
+        } catch (ListenerNotFoundException e) {
+            // 已经移除
+        }
+        memoryListener = null;
+    }
+
+    /**
+     * 一次借用；close() 归还
+     */
+    public final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private final boolean warm;
+        private boolean closed;
+
+        private Lease(Entry entry, boolean warm) {
+            this.entry = entry;
+            this.warm = warm;
+        }
+
+        public EnginePool pool() {
+            return entry.pool;
+        }
+
+        /**
+         * 本次借用是否直接拿到了已经加载好的 Session
+         */
+        public boolean wasWarm() {
+            return warm;
+        }
+
+        @Override
+        public void close() {
+            synchronized (EngineCache.this) {
+                if (closed) return;
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        int refCount;
+        boolean retired;
+        volatile EnginePool pool;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return true 表示本次调用新建了 Session (冷启动)
+         */
+        synchronized boolean ensureLoaded(ModelSource model, EngineOptions options, int sessions, boolean shared) throws OrtException {
+            if (pool != null) return false;
+            pool = new EnginePool(model, options, sessions, shared);
+            return true;
+        }
+
+        void close() {
+            EnginePool p = pool;
+            pool = null;
+            if (p != null) p.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+import java.io.File;
+
+/**
+ * Session 配置 (线程 / 执行模式 / 优化级别)
+ * 默认值与原来的构造函数一致：BASIC_OPT，线程数交给 ONNX Runtime 自己决定。
+ * 吞吐优先：多个 Session 各开少量 intra-op 线程；延迟优先：单 Session 占满所有核。
+ */
+public class EngineOptions {
+
+    /** intra-op 线程数 (单个算子内部并行)，0 = ORT 默认 (物理核数) */
+    public int intraOpThreads = 0;
+
+    /** inter-op 线程数 (PARALLEL 模式下算子之间并行)，0 = ORT 默认 */
+    public int interOpThreads = 0;
+
+    /** true = ExecutionMode.PARALLEL，false = SEQUENTIAL (DnCNN 这种线性图用 SEQUENTIAL 更快) */
+    public boolean parallelExecution = false;
+
+    /** 线程池空闲时是否自旋等待；关掉可以在多 Session 并发时少抢 CPU */
+    public boolean allowSpinning = true;
+
+    public OrtSession.SessionOptions.OptLevel optLevel = OrtSession.SessionOptions.OptLevel.BASIC_OPT;
+
+    /** 把优化后的图存到磁盘，之后的 Session 直接加载 (见 OptimizedModelCache) */
+    public boolean cacheOptimizedModel = false;
+
+    /** 用 FP16 版本的模型推理 (输入 / 输出 / 权重都是 float16)，精度见 Fp16Report */
+    public boolean fp16 = false;
+
+    /** 优化模型缓存目录，null = OptimizedModelCache.defaultDirectory() */
+    public File cacheDirectory = null;
+
+    /**
+     * 形状分桶：宽高不是该值整数倍的输入先镜像填充到下一个整数倍再推理，输出裁回原尺寸 (0 = 关闭)。
+     * 各种尺寸的整帧 / 边缘块 / 自适应窗口落到少数几种形状上，Tensor 缓冲区和 ORT 的内存规划可以复用；
+     * 代价是填充部分的计算量，边缘像素也会因填充方式不同有细微差别。
+     */
+    public int shapeBucket = 0;
+
+    /** 开启 ORT 算子级 profiling，trace 写到 "前缀_日期.json" (null = 关闭)；只给 OperatorProfile 的独立 Session 用 */
+    public String profilePrefix = null;
+
+    public EngineOptions copy() {
+        EngineOptions o = new EngineOptions();
+        o.intraOpThreads = intraOpThreads;
+        o.interOpThreads = interOpThreads;
+        o.parallelExecution = parallelExecution;
+        o.allowSpinning = allowSpinning;
+        o.optLevel = optLevel;
+        o.cacheOptimizedModel = cacheOptimizedModel;
+        o.fp16 = fp16;
+        o.cacheDirectory = cacheDirectory;
+        o.shapeBucket = shapeBucket;
+        o.profilePrefix = profilePrefix;
+        return o;
+    }
+
+    /**
+     * 生成 ORT 的 SessionOptions，调用方负责关闭
+     */
+    public OrtSession.SessionOptions toSessionOptions() throws OrtException {
+        OrtSession.SessionOptions opts = toSessionOptions(optLevel);
+        // 只在推理用的 Session 上开；OptimizedModelCache 保存优化图的临时 Session 走下面的重载，不产生 trace
+        if (profilePrefix != null) opts.enableProfiling(profilePrefix);
+        return opts;
+    }
+
+    OrtSession.SessionOptions toSessionOptions(OrtSession.SessionOptions.OptLevel level) throws OrtException {
+        OrtSession.SessionOptions opts = new OrtSession.SessionOptions();
+        opts.setOptimizationLevel(level);
+        opts.setExecutionMode(parallelExecution
+                ? OrtSession.SessionOptions.ExecutionMode.PARALLEL
+                : OrtSession.SessionOptions.ExecutionMode.SEQUENTIAL);
+        if (intraOpThreads > 0) opts.setIntraOpNumThreads(intraOpThreads);
+        if (interOpThreads > 0) opts.setInterOpNumThreads(interOpThreads);
+
+        String spin = allowSpinning ? "1" : "0";
+        opts.addConfigEntry("session.intra_op.allow_spinning", spin);
+        opts.addConfigEntry("session.inter_op.allow_spinning", spin);
+        return opts;
+    }
+
+    @Override
+    public String toString() {
+        return "intra=" + (intraOpThreads > 0 ? intraOpThreads : "auto")
+                + ", inter=" + (interOpThreads > 0 ? interOpThreads : "auto")
+                + ", mode=" + (parallelExecution ? "parallel" : "sequential")
+                + ", spinning=" + (allowSpinning ? "on" : "off")
+                + ", opt=" + optLevel
+                + (fp16 ? ", fp16" : "")
+                + (shapeBucket > 0 ? ", bucket=" + shapeBucket : "")
+                + (cacheOptimizedModel ? ", cache=" + (cacheDirectory != null ? cacheDirectory.getPath() : "on") : "");
+    }
+}
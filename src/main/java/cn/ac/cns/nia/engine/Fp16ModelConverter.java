@@ -0,0 +1,330 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.platform.Fp16Conversions;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * ONNX 模型 FP32 → FP16 转换 (不依赖 protobuf 库，直接改写 wire format)
+ * 1. 所有 float 权重 (initializer、Constant 节点、子图) 改存为 float16；
+ * 2. 图的输入 / 输出 / 中间值 (value_info) 的元素类型 float 改为 float16；
+ * 3. Cast(to=float) 改为 Cast(to=float16)。
+ * 其余字段按原样复制。CPU 上没有 FP16 实现的算子由 ORT 自动在两侧插入 Cast。
+ * 对 DnCNN 这类纯卷积网络足够；依赖 float 类型约束的算子 (例如 Resize 的 scales) 会在建 Session 时报错。
+ */
+final class Fp16ModelConverter {
+
+    // onnx.proto 字段编号
+    private static final int MODEL_GRAPH = 7;
+    private static final int MODEL_FUNCTIONS = 25;
+    private static final int GRAPH_NODE = 1;
+    private static final int GRAPH_INITIALIZER = 5;
+    private static final int GRAPH_INPUT = 11;
+    private static final int GRAPH_OUTPUT = 12;
+    private static final int GRAPH_VALUE_INFO = 13;
+    private static final int NODE_OP_TYPE = 4;
+    private static final int NODE_ATTRIBUTE = 5;
+    private static final int ATTR_NAME = 1;
+    private static final int ATTR_I = 3;
+    private static final int ATTR_T = 5;
+    private static final int ATTR_G = 6;
+    private static final int ATTR_TENSORS = 10;
+    private static final int ATTR_GRAPHS = 11;
+    private static final int FUNCTION_NODE = 7;
+    private static final int TENSOR_DATA_TYPE = 2;
+    private static final int TENSOR_FLOAT_DATA = 4;
+    private static final int TENSOR_RAW_DATA = 9;
+    private static final int TENSOR_DATA_LOCATION = 14;
+    private static final int VALUE_INFO_TYPE = 2;
+    private static final int TYPE_TENSOR = 1;
+    private static final int TYPE_SEQUENCE = 4;
+    private static final int TYPE_MAP = 5;
+    private static final int TYPE_OPTIONAL = 9;
+    private static final int SEQUENCE_ELEM = 1;
+    private static final int MAP_VALUE = 2;
+    private static final int OPTIONAL_ELEM = 1;
+    private static final int TENSOR_TYPE_ELEM = 1;
+
+    private static final int FLOAT = 1;
+    private static final int FLOAT16 = 10;
+
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int BYTES = 2;
+    private static final int FIXED32 = 5;
+
+    private Fp16ModelConverter() {
+    }
+
+    static byte[] convert(byte[] model) {
+        Writer out = new Writer();
+        for (Field f : new Reader(model)) {
+            if (f.number == MODEL_GRAPH) out.bytes(f.number, graph(f.bytes));
+            else if (f.number == MODEL_FUNCTIONS) out.bytes(f.number, function(f.bytes));
+            else out.copy(f);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] graph(byte[] graph) {
+        Writer out = new Writer();
+        for (Field f : new Reader(graph)) {
+            switch (f.number) {
+                case GRAPH_NODE: out.bytes(f.number, node(f.bytes)); break;
+                case GRAPH_INITIALIZER: out.bytes(f.number, tensor(f.bytes)); break;
+                case GRAPH_INPUT:
+                case GRAPH_OUTPUT:
+                case GRAPH_VALUE_INFO: out.bytes(f.number, valueInfo(f.bytes)); break;
+                default: out.copy(f);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] function(byte[] function) {
+        Writer out = new Writer();
+        for (Field f : new Reader(function)) {
+            if (f.number == FUNCTION_NODE && f.wireType == BYTES) out.bytes(f.number, node(f.bytes));
+            else out.copy(f);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] node(byte[] node) {
+        String opType = "";
+        for (Field f : new Reader(node)) {
+            if (f.number == NODE_OP_TYPE) opType = new String(f.bytes, java.nio.charset.StandardCharsets.UTF_8);
+        }
+        Writer out = new Writer();
+        for (Field f : new Reader(node)) {
+            if (f.number == NODE_ATTRIBUTE) out.bytes(f.number, attribute(f.bytes, opType));
+            else out.copy(f);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] attribute(byte[] attribute, String opType) {
+        String name = "";
+        for (Field f : new Reader(attribute)) {
+            if (f.number == ATTR_NAME) name = new String(f.bytes, java.nio.charset.StandardCharsets.UTF_8);
+        }
+        boolean castTo = "Cast".equals(opType) && "to".equals(name);
+        Writer out = new Writer();
+        for (Field f : new Reader(attribute)) {
+            switch (f.number) {
+                case ATTR_I:
+                    if (castTo && f.varint == FLOAT) out.varint(f.number, FLOAT16);
+                    else out.copy(f);
+                    break;
+                case ATTR_T:
+                case ATTR_TENSORS: out.bytes(f.number, tensor(f.bytes)); break;
+                case ATTR_G:
+                case ATTR_GRAPHS: out.bytes(f.number, graph(f.bytes)); break;
+                default: out.copy(f);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] tensor(byte[] tensor) {
+        int dataType = 0;
+        boolean external = false;
+        for (Field f : new Reader(tensor)) {
+            if (f.number == TENSOR_DATA_TYPE) dataType = (int) f.varint;
+            if (f.number == TENSOR_DATA_LOCATION && f.varint == 1) external = true;
+        }
+        if (dataType != FLOAT) return tensor;
+        if (external) throw new IllegalArgumentException("FP16 conversion does not support external tensor data");
+
+        Writer out = new Writer();
+        ByteArrayOutputStream halfs = new ByteArrayOutputStream();
+        for (Field f : new Reader(tensor)) {
+            switch (f.number) {
+                case TENSOR_DATA_TYPE: out.varint(f.number, FLOAT16); break;
+                case TENSOR_FLOAT_DATA:
+                    if (f.wireType == BYTES) {
+                        ByteBuffer b = ByteBuffer.wrap(f.bytes).order(ByteOrder.LITTLE_ENDIAN);
+                        while (b.remaining() >= 4) putHalf(halfs, b.getFloat());
+                    } else {
+                        putHalf(halfs, Float.intBitsToFloat((int) f.varint));
+                    }
+                    break;
+                case TENSOR_RAW_DATA: {
+                    ByteBuffer b = ByteBuffer.wrap(f.bytes).order(ByteOrder.LITTLE_ENDIAN);
+                    while (b.remaining() >= 4) putHalf(halfs, b.getFloat());
+                    break;
+                }
+                default: out.copy(f);
+            }
+        }
+        out.bytes(TENSOR_RAW_DATA, halfs.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static void putHalf(ByteArrayOutputStream out, float v) {
+        short h = Fp16Conversions.floatToFp16(v);
+        out.write(h & 0xff);
+        out.write((h >> 8) & 0xff);
+    }
+
+    private static byte[] valueInfo(byte[] valueInfo) {
+        Writer out = new Writer();
+        for (Field f : new Reader(valueInfo)) {
+            if (f.number == VALUE_INFO_TYPE) out.bytes(f.number, type(f.bytes));
+            else out.copy(f);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] type(byte[] type) {
+        Writer out = new Writer();
+        for (Field f : new Reader(type)) {
+            switch (f.number) {
+                case TYPE_TENSOR: out.bytes(f.number, tensorType(f.bytes)); break;
+                case TYPE_SEQUENCE: out.bytes(f.number, nestedType(f.bytes, SEQUENCE_ELEM)); break;
+                case TYPE_MAP: out.bytes(f.number, nestedType(f.bytes, MAP_VALUE)); break;
+                case TYPE_OPTIONAL: out.bytes(f.number, nestedType(f.bytes, OPTIONAL_ELEM)); break;
+                default: out.copy(f);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] nestedType(byte[] message, int typeField) {
+        Writer out = new Writer();
+        for (Field f : new Reader(message)) {
+            if (f.number == typeField && f.wireType == BYTES) out.bytes(f.number, type(f.bytes));
+            else out.copy(f);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] tensorType(byte[] tensorType) {
+        Writer out = new Writer();
+        for (Field f : new Reader(tensorType)) {
+            if (f.number == TENSOR_TYPE_ELEM && f.varint == FLOAT) out.varint(f.number, FLOAT16);
+            else out.copy(f);
+        }
+        return out.toByteArray();
+    }
+
+    // ==========================================
+    // protobuf wire format
+    // ==========================================
+
+    private static final class Field {
+        int number;
+        int wireType;
+        long varint;  // VARINT / FIXED32 / FIXED64 的值
+        byte[] bytes; // BYTES 的内容
+    }
+
+    private static final class Reader implements Iterable<Field> {
+        private final byte[] data;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public java.util.Iterator<Field> iterator() {
+            return new java.util.Iterator<Field>() {
+                int pos = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return pos < data.length;
+                }
+
+                @Override
+                public Field next() {
+                    Field f = new Field();
+                    long tag = readVarint();
+                    f.number = (int) (tag >>> 3);
+                    f.wireType = (int) (tag & 7);
+                    switch (f.wireType) {
+                        case VARINT: f.varint = readVarint(); break;
+                        case FIXED64: f.varint = readFixed(8); break;
+                        case FIXED32: f.varint = readFixed(4); break;
+                        case BYTES: {
+                            int len = (int) readVarint();
+                            if (len < 0 || pos + len > data.length) throw new IllegalArgumentException("Truncated ONNX model");
+                            f.bytes = java.util.Arrays.copyOfRange(data, pos, pos + len);
+                            pos += len;
+                            break;
+                        }
+                        default: throw new IllegalArgumentException("Unsupported protobuf wire type " + f.wireType);
+                    }
+                    return f;
+                }
+
+                private long readVarint() {
+                    long v = 0;
+                    for (int shift = 0; shift < 64; shift += 7) {
+                        if (pos >= data.length) throw new IllegalArgumentException("Truncated ONNX model");
+                        byte b = data[pos++];
+                        v |= (long) (b & 0x7f) << shift;
+                        if ((b & 0x80) == 0) return v;
+                    }
+                    throw new IllegalArgumentException("Malformed varint");
+                }
+
+                private long readFixed(int n) {
+                    if (pos + n > data.length) throw new IllegalArgumentException("Truncated ONNX model");
+                    long v = 0;
+                    for (int i = 0; i < n; i++) v |= (long) (data[pos++] & 0xff) << (8 * i);
+                    return v;
+                }
+            };
+        }
+    }
+
+    private static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void copy(Field f) {
+            tag(f.number, f.wireType);
+            switch (f.wireType) {
+                case VARINT: writeVarint(f.varint); break;
+                case FIXED64: writeFixed(f.varint, 8); break;
+                case FIXED32: writeFixed(f.varint, 4); break;
+                default:
+                    writeVarint(f.bytes.length);
+                    out.write(f.bytes, 0, f.bytes.length);
+            }
+        }
+
+        void varint(int number, long value) {
+            tag(number, VARINT);
+            writeVarint(value);
+        }
+
+        void bytes(int number, byte[] value) {
+            tag(number, BYTES);
+            writeVarint(value.length);
+            out.write(value, 0, value.length);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private void tag(int number, int wireType) {
+            writeVarint(((long) number << 3) | wireType);
+        }
+
+        private void writeVarint(long v) {
+            while ((v & ~0x7fL) != 0) {
+                out.write((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        private void writeFixed(long v, int n) {
+            for (int i = 0; i < n; i++) out.write((int) (v >>> (8 * i)) & 0xff);
+        }
+    }
+}
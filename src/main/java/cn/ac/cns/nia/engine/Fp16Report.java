@@ -0,0 +1,212 @@
+package cn.ac.cns.nia.engine;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * FP16 精度报告：同一批平面分别用 FP32 和 FP16 模型推理，逐平面比较输出
+ * PSNR 的峰值取该平面的归一化系数 (模型输入的 1.0 对应的原始灰度)，误差以原始灰度为单位。
+ * 默认阈值 60 dB：RMS 误差为峰值的 0.1%，远低于显微图像本身的散粒噪声；
+ * 低于阈值时说明该模型对半精度敏感 (例如激活值超出 FP16 范围)，应继续使用 FP32。
+ */
+public final class Fp16Report {
+
+    public static final double DEFAULT_MIN_PSNR_DB = 60;
+
+    /**
+     * 单个平面的比较结果
+     */
+    public static final class Plane {
+        public final int index;
+        public final double peak;
+        public final double mse;
+        public final double maxAbsError;
+
+        Plane(int index, double peak, double mse, double maxAbsError) {
+            this.index = index;
+            this.peak = peak;
+            this.mse = mse;
+            this.maxAbsError = maxAbsError;
+        }
+
+        public double psnr() {
+            return psnrOf(mse / (peak * peak));
+        }
+    }
+
+    private final String model;
+    private final boolean fp16Active;
+    private final List<Plane> planes = new ArrayList<>();
+    private long fp32Nanos;
+    private long fp16Nanos;
+
+    private Fp16Report(String model, boolean fp16Active) {
+        this.model = model;
+        this.fp16Active = fp16Active;
+    }
+
+    /**
+     * 比较 imp 中最多 maxPlanes 个平面 (均匀抽样，<= 0 表示全部)
+     *
+     * @param planeFactors 每个栈索引 (1-based) 的归一化系数，见 Normalization.Result#planeFactors
+     * @param tileSize     分块大小，0 表示整帧
+     */
+    public static Fp16Report compare(ModelSource model, EngineOptions options, ImagePlus imp, double[] planeFactors,
+                                     int tileSize, int overlap, int maxPlanes) throws Exception {
+        EngineOptions fp32Options = options.copy();
+        fp32Options.fp16 = false;
+        EngineOptions fp16Options = options.copy();
+        fp16Options.fp16 = true;
+
+        try (InferenceEngine fp32 = new InferenceEngine(model, fp32Options);
+             InferenceEngine fp16 = new InferenceEngine(model, fp16Options)) {
+            Fp16Report report = new Fp16Report(model.displayName(), fp16.isFp16());
+            fp32.warmUp();
+            fp16.warmUp();
+
+            ImageStack stack = imp.getStack();
+            int width = stack.getWidth();
+            int height = stack.getHeight();
+            int n = stack.getSize();
+            int count = (maxPlanes <= 0) ? n : Math.min(n, maxPlanes);
+            for (int k = 0; k < count; k++) {
+                int index = 1 + (int) ((long) k * n / count);
+                double factor = planeFactors[index];
+                float[] input = fp32.preprocess(stack.getProcessor(index), factor);
+
+                long t0 = System.nanoTime();
+                float[] expected = fp32.inferTiled(input.clone(), width, height, tileSize, overlap);
+                long t1 = System.nanoTime();
+                float[] actual = fp16.inferTiled(input, width, height, tileSize, overlap);
+                long t2 = System.nanoTime();
+                report.fp32Nanos += t1 - t0;
+                report.fp16Nanos += t2 - t1;
+
+                InferenceEngine.denormalize(expected, factor);
+                InferenceEngine.denormalize(actual, factor);
+                double sum = 0;
+                double max = 0;
+                for (int i = 0; i < expected.length; i++) {
+                    double d = actual[i] - expected[i];
+                    sum += d * d;
+                    max = Math.max(max, Math.abs(d));
+                }
+                double peak = (factor > 0) ? factor : 1;
+                report.planes.add(new Plane(index, peak, sum / expected.length, max));
+            }
+            return report;
+        }
+    }
+
+    public List<Plane> getPlanes() {
+        return planes;
+    }
+
+    /**
+     * FP16 模型是否真的生效 (转换或加载失败时两边都是 FP32，报告没有意义)
+     */
+    public boolean isFp16Active() {
+        return fp16Active;
+    }
+
+    /**
+     * 所有平面合并计算的 PSNR (各平面误差先按自身峰值归一化)
+     */
+    public double psnr() {
+        if (planes.isEmpty()) return Double.POSITIVE_INFINITY;
+        double sum = 0;
+        for (Plane p : planes) sum += p.mse / (p.peak * p.peak);
+        return psnrOf(sum / planes.size());
+    }
+
+    public double minPsnr() {
+        double min = Double.POSITIVE_INFINITY;
+        for (Plane p : planes) min = Math.min(min, p.psnr());
+        return min;
+    }
+
+    public double maxAbsError() {
+        double max = 0;
+        for (Plane p : planes) max = Math.max(max, p.maxAbsError);
+        return max;
+    }
+
+    /**
+     * 最大误差占峰值的比例
+     */
+    public double maxRelativeError() {
+        double max = 0;
+        for (Plane p : planes) max = Math.max(max, p.maxAbsError / p.peak);
+        return max;
+    }
+
+    /**
+     * FP32 推理耗时 / FP16 推理耗时
+     */
+    public double speedup() {
+        return (fp16Nanos > 0) ? (double) fp32Nanos / fp16Nanos : 0;
+    }
+
+    public boolean isAcceptable(double minPsnrDb) {
+        return fp16Active && minPsnr() >= minPsnrDb;
+    }
+
+    /**
+     * 写进 Log 的一行结论
+     */
+    @Override
+    public String toString() {
+        if (!fp16Active) return "FP16 report for " + model + ": FP16 model unavailable, nothing to compare";
+        return String.format(Locale.ROOT,
+                "FP16 vs FP32 (%s, %d planes): PSNR %s dB (min %s dB), max error %.4g (%.3g%% of peak), "
+                        + "speed x%.2f -> %s",
+                model, planes.size(), db(psnr()), db(minPsnr()), maxAbsError(), 100 * maxRelativeError(), speedup(),
+                isAcceptable(DEFAULT_MIN_PSNR_DB) ? "safe" : "keep FP32");
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"fp16Active\": ").append(fp16Active);
+        sb.append(", \"planes\": ").append(planes.size());
+        sb.append(", \"psnrDb\": ").append(jsonDb(psnr()));
+        sb.append(", \"minPsnrDb\": ").append(jsonDb(minPsnr()));
+        sb.append(", \"maxAbsError\": ").append(num(maxAbsError()));
+        sb.append(", \"maxRelativeError\": ").append(String.format(Locale.ROOT, "%.6g", maxRelativeError()));
+        sb.append(", \"fp32Ms\": ").append(num(fp32Nanos / 1e6));
+        sb.append(", \"fp16Ms\": ").append(num(fp16Nanos / 1e6));
+        sb.append(", \"speedup\": ").append(num(speedup()));
+        sb.append(", \"thresholdDb\": ").append(num(DEFAULT_MIN_PSNR_DB));
+        sb.append(", \"acceptable\": ").append(isAcceptable(DEFAULT_MIN_PSNR_DB));
+        sb.append(", \"perPlane\": [");
+        for (int i = 0; i < planes.size(); i++) {
+            Plane p = planes.get(i);
+            if (i > 0) sb.append(", ");
+            sb.append("{\"plane\": ").append(p.index)
+                    .append(", \"peak\": ").append(num(p.peak))
+                    .append(", \"psnrDb\": ").append(jsonDb(p.psnr()))
+                    .append(", \"maxAbsError\": ").append(num(p.maxAbsError)).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static double psnrOf(double normalizedMse) {
+        return (normalizedMse > 0) ? -10 * Math.log10(normalizedMse) : Double.POSITIVE_INFINITY;
+    }
+
+    private static String db(double v) {
+        return Double.isInfinite(v) ? "inf" : String.format(Locale.ROOT, "%.1f", v);
+    }
+
+    // JSON 没有 Infinity，完全一致时写 null
+    private static String jsonDb(double v) {
+        return Double.isInfinite(v) ? "null" : num(v);
+    }
+
+    private static String num(double v) {
+        return String.format(Locale.ROOT, "%.3f", v);
+    }
+}
@@ -1,41 +1,140 @@
 package cn.ac.cns.nia.engine;
 
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
 import ai.onnxruntime.OnnxTensor;
 import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
 import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+import ai.onnxruntime.platform.Fp16Conversions;
 import ij.IJ;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 /**
  * 优化后的推理引擎
  * 1. 实现了 AutoCloseable，必须显式关闭以释放显存/内存。
  * 2. 模型只加载一次，而不是每张图加载一次。
+ * 3. 支持分块推理 (runTiled)：超大图按块送入模型，峰值 Native 内存只取决于块大小。
+ * 4. 支持批量推理 (runBatch)：K 张同尺寸平面打包成 [K, H, W, 1] 一次送入模型。
+ * 5. 输入 / 输出 Tensor 使用可复用的 Direct FloatBuffer，同形状平面之间零分配。
+ * 6. FP16 模式 (EngineOptions.fp16)：加载 FP16 版本的模型，Tensor 以 float16 传递，
+ *    跨 JNI 的数据量和激活内存减半；对外接口仍是 float[]，转换在填充 / 取出 Tensor 时完成。
+ * 7. 形状分桶 (EngineOptions.shapeBucket)：输入镜像填充到分桶尺寸再推理、输出裁回，
+ *    尺寸各异的平面和块共用少数几组 Tensor 缓冲区。
  */
-public class InferenceEngine implements AutoCloseable {
+public class InferenceEngine implements PlaneInference, AutoCloseable {
 
     private final OrtEnvironment env;
     private final OrtSession session;
     private final String inputName;
+    private final String outputName;
+    private final int fixedBatchSize; // <= 0 表示动态 batch 维度
+    private final boolean halfInput;
+    private final boolean halfOutput;
+    private final int shapeBucket; // <= 0 表示不分桶
+
+    // 空闲的 Tensor 缓冲区，按形状分组；最多保留几种形状 (整帧的几种 batch + 分块的块形状 + 预热)，超出后淘汰最久未用的
+    private static final int MAX_BUFFER_SHAPES = 6;
+    private final LinkedHashMap<String, ArrayDeque<TensorBuffers>> idleBuffers = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile boolean pinnedOutput = true;
 
     // 构造函数：只在这里加载模型 (耗时操作只做一次)
     public InferenceEngine(String modelPath) throws OrtException {
+        this(modelPath, new EngineOptions());
+    }
+
+    public InferenceEngine(String modelPath, EngineOptions options) throws OrtException {
+        this(ModelSource.file(modelPath), options);
+    }
+
+    public InferenceEngine(ModelSource model, EngineOptions options) throws OrtException {
         // 1. 获取环境
         this.env = OrtEnvironment.getEnvironment();
         
-        // 2. 配置选项
-        OrtSession.SessionOptions opts = new OrtSession.SessionOptions();
-        opts.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.BASIC_OPT);
-        // 如果有 GPU 支持，可以在这里添加: opts.addCUDA(); 
-
-        // 3. 创建 Session (加载模型)
-        this.session = env.createSession(modelPath, opts);
+        // 2. 配置选项 (线程数 / 执行模式 / 优化级别见 EngineOptions)
+        // 如果有 GPU 支持，可以在 toSessionOptions 里添加: opts.addCUDA();
+        // 3. 创建 Session (加载模型)；FP16 模式先转换模型，转换或加载失败时退回 FP32
+        OrtSession created = null;
+        if (options.fp16) {
+            try {
+                created = createSession(env, ModelSource.fp16(model), options);
+            } catch (OrtException | RuntimeException e) {
+                IJ.log("⚠️ FP16 model unavailable (" + e.getMessage() + "), falling back to FP32");
+            }
+        }
+        this.session = (created != null) ? created : createSession(env, model, options);
         
         // 4. 缓存输入节点名称，避免每次推理都去查询
         this.inputName = session.getInputNames().iterator().next();
+        this.outputName = session.getOutputNames().iterator().next();
+        this.halfInput = isFloat16(session.getInputInfo().get(inputName));
+        this.halfOutput = isFloat16(session.getOutputInfo().get(outputName));
+
+        this.shapeBucket = options.shapeBucket;
+
+        // 5. 读取 batch 维度：-1 表示动态，可以任意打包；固定值 (通常是 1) 则只能按该值送入
+        this.fixedBatchSize = readBatchDim(session.getInputInfo().get(inputName));
+    }
+
+    /**
+     * 开启缓存时优先加载磁盘上已优化好的图
+     */
+    private static OrtSession createSession(OrtEnvironment env, ModelSource model, EngineOptions options) throws OrtException {
+        if (options.cacheOptimizedModel && options.optLevel != OrtSession.SessionOptions.OptLevel.NO_OPT) {
+            return OptimizedModelCache.createSession(env, model, options);
+        }
+        try (OrtSession.SessionOptions opts = options.toSessionOptions()) {
+            return model.createSession(env, opts);
+        }
+    }
+
+    /**
+     * 模型是否以 float16 接收输入 (FP16 模式且转换成功)
+     */
+    public boolean isFp16() {
+        return halfInput;
+    }
+
+    /**
+     * 结束 profiling 并写出 trace (Session 需以 EngineOptions.profilePrefix 创建)，返回 trace 文件路径
+     */
+    public String endProfiling() throws OrtException {
+        return session.endProfiling();
+    }
+
+    /**
+     * 输入 + 输出 Tensor 每个像素占的字节数 (按声明的通道数和元素类型，NHWC；动态维度按 1 计)
+     */
+    int tensorBytesPerPixel() throws OrtException {
+        return bytesPerPixel(session.getInputInfo().get(inputName)) + bytesPerPixel(session.getOutputInfo().get(outputName));
+    }
+
+    /**
+     * 模型一次最多能接受多少张平面。动态 batch 维度返回 Integer.MAX_VALUE。
+     */
+    @Override
+    public int getMaxBatchSize() {
+        return (fixedBatchSize > 0) ? fixedBatchSize : Integer.MAX_VALUE;
+    }
+
+    /**
+     * 预热：用一张小的全零图跑一次，让 ORT 完成首次调用时的内存分配和 kernel 选择
+     */
+    public void warmUp() throws OrtException {
+        int size = 32;
+        infer(new float[size * size], size, size, null);
     }
 
     /**
@@ -47,63 +146,554 @@ public class InferenceEngine implements AutoCloseable {
             int height = inputIp.getHeight();
 
             // --- 1. 预处理 (Pre-processing) ---
-            float[] pixels = (float[]) inputIp.convertToFloat().getPixels();
-            float normScale = (float) normalizationFactor;
-            if (normScale <= 0) normScale = 1.0f;
-
-            // 归一化
-            for (int i = 0; i < pixels.length; i++) {
-                pixels[i] /= normScale;
-            }
-
-            // --- 2. 创建 Tensor ---
-            // 注意：这里假设模型输入是 [1, H, W, 1] (NHWC)
-            // 如果你的模型是 PyTorch 导出的，通常需要 [1, 1, H, W] (NCHW)
-            // 下面是针对 NHWC 的代码：
-            long[] shape = new long[]{1, height, width, 1};
-
-            // 使用 try-with-resources 自动关闭 Tensor，防止内存泄漏
-            try (OnnxTensor inputTensor = OnnxTensor.createTensor(env, FloatBuffer.wrap(pixels), shape)) {
-                
-                // --- 3. 推理 (Inference) ---
-                try (OrtSession.Result result = session.run(Collections.singletonMap(inputName, inputTensor))) {
-                    
-                    // --- 4. 解析结果 (Post-processing) ---
-                    OnnxTensor outputTensor = (OnnxTensor) result.get(0);
-                    float[][][][] outputData = (float[][][][]) outputTensor.getValue();
-                    
-                    // 假设输出也是 [1, H, W, 1]
-                    int outH = outputData[0].length;
-                    int outW = outputData[0][0].length;
-                    
-                    float[] resultPixels = new float[outW * outH];
-                    
-                    // 反归一化
-                    for (int y = 0; y < outH; y++) {
-                        for (int x = 0; x < outW; x++) {
-                            // 对应 NHWC: [batch][y][x][channel]
-                            float val = outputData[0][y][x][0] * normScale;
-                            if (val < 0) val = 0;
-                            resultPixels[y * outW + x] = val;
-                        }
-                    }
-                    
-                    return new ij.process.FloatProcessor(outW, outH, resultPixels);
+            float[] pixels = preprocess(inputIp, normalizationFactor);
+
+            // --- 2~4. 推理 + 解析结果 ---
+            float[] resultPixels = infer(pixels, width, height, null);
+
+            // 反归一化
+            denormalize(resultPixels, normalizationFactor);
+            return new FloatProcessor(width, height, resultPixels);
+
+        } catch (Exception e) {
+            IJ.log("❌ Inference Error: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 分块推理 (Tiled)，参数含义见 {@link #inferTiled}。出错时返回 null。
+     */
+    public ImageProcessor runTiled(ImageProcessor inputIp, double normalizationFactor, int tileSize, int overlap) {
+        try {
+            int width = inputIp.getWidth();
+            int height = inputIp.getHeight();
+
+            float[] pixels = preprocess(inputIp, normalizationFactor);
+            float[] resultPixels = inferTiled(pixels, width, height, tileSize, overlap);
+
+            denormalize(resultPixels, normalizationFactor);
+            return new FloatProcessor(width, height, resultPixels);
+
+        } catch (Exception e) {
+            IJ.log("❌ Tiled Inference Error: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 批量推理，打包规则见 {@link #inferPlanes}。
+     * 结果顺序与输入一致；出错时返回 null。
+     */
+    public ImageProcessor[] runBatch(ImageProcessor[] inputs, double normalizationFactor) {
+        if (inputs.length == 0) return new ImageProcessor[0];
+        try {
+            int width = inputs[0].getWidth();
+            int height = inputs[0].getHeight();
+            int planeSize = width * height;
+
+            float[] packed = new float[inputs.length * planeSize];
+            for (int b = 0; b < inputs.length; b++) {
+                if (inputs[b].getWidth() != width || inputs[b].getHeight() != height) {
+                    throw new IllegalArgumentException("Batch planes must share the same size");
                 }
+                preprocessInto(inputs[b], packed, b * planeSize, normalizationFactor);
+            }
+
+            float[] out = inferPlanes(packed, inputs.length, width, height);
+
+            ImageProcessor[] outputs = new ImageProcessor[inputs.length];
+            for (int b = 0; b < inputs.length; b++) {
+                float[] resultPixels = Arrays.copyOfRange(out, b * planeSize, (b + 1) * planeSize);
+                denormalize(resultPixels, normalizationFactor);
+                outputs[b] = new FloatProcessor(width, height, resultPixels);
             }
+            return outputs;
 
         } catch (Exception e) {
-            IJ.log("❌ Inference Error: " + e.getMessage());
+            IJ.log("❌ Batch Inference Error: " + e.getMessage());
             e.printStackTrace();
             return null;
         }
     }
 
+    // ==========================================
+    // 分阶段接口 (供 StackPipeline 等流水线使用)
+    // 输入输出都是归一化后的 float 像素，调用方负责预处理和写回
+    // ==========================================
+
+    /**
+     * 预处理：转成 float 并除以归一化系数，返回新数组 (不修改原图)
+     */
+    public float[] preprocess(ImageProcessor inputIp, double normalizationFactor) {
+        float[] pixels = new float[inputIp.getWidth() * inputIp.getHeight()];
+        preprocessInto(inputIp, pixels, 0, normalizationFactor);
+        return pixels;
+    }
+
+    /**
+     * 预处理到指定位置 (批量打包时直接写进 packed 数组)
+     * 8/16/32-bit 走 PixelKernels 的一遍式内核；其他类型 (RGB) 仍按 convertToFloat 转换。
+     */
+    public void preprocessInto(ImageProcessor inputIp, float[] dst, int offset, double normalizationFactor) {
+        normalizeInto(inputIp, dst, offset, normalizationFactor);
+    }
+
+    /**
+     * 同 preprocessInto，不需要 Session (推理在其他进程时协调端用它预处理)
+     */
+    public static void normalizeInto(ImageProcessor inputIp, float[] dst, int offset, double normalizationFactor) {
+        float normScale = normScale(normalizationFactor);
+        Object raw = inputIp.getPixels();
+        if (PixelKernels.isSupported(raw)) {
+            PixelKernels.normalize(raw, dst, offset, normScale);
+            return;
+        }
+
+        float[] pixels = (float[]) inputIp.convertToFloat().getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            dst[offset + i] = pixels[i] / normScale;
+        }
+    }
+
+    /**
+     * 反归一化 (原地)：乘回归一化系数，并把负值截断为 0
+     */
+    public static void denormalize(float[] values, double normalizationFactor) {
+        PixelKernels.denormalize(values, 0, values, normScale(normalizationFactor));
+    }
+
+    /**
+     * 反归一化并直接写进目标像素数组 (byte[] / short[] / float[])，取整规则同 ImageJ 的无缩放转换
+     */
+    public static void denormalizeInto(float[] values, int offset, Object dstPixels, double normalizationFactor) {
+        PixelKernels.denormalize(values, offset, dstPixels, normScale(normalizationFactor));
+    }
+
+    /**
+     * 批量推理 (归一化空间)
+     * 把 count 张同尺寸平面 (依次排在 packed 中) 打包成 [K, H, W, 1] Tensor 送入模型，再拆回单张。
+     * count 超过模型支持的 batch 大小时自动分成多次调用 (固定 batch=1 的模型即逐张推理)；
+     * 固定 batch>1 的模型在最后一组不足时补零平面，结果丢弃。
+     * 为避免再分配，结果直接覆盖 packed 并返回。
+     */
+    public float[] inferPlanes(float[] packed, int count, int width, int height) throws OrtException {
+        return inferPlanes(packed, count, width, height, null);
+    }
+
+    /**
+     * 同上，并把填充 Tensor / session.run / 取出结果的耗时累加到 sample (可为 null)
+     */
+    @Override
+    public float[] inferPlanes(float[] packed, int count, int width, int height, RunMetrics.Sample sample) throws OrtException {
+        int planeSize = width * height;
+        int maxBatch = getMaxBatchSize();
+        if (count <= maxBatch && fixedBatchSize <= 0) {
+            return infer(packed, count, width, height, sample);
+        }
+
+        float[] chunk = null;
+        for (int start = 0; start < count; start += maxBatch) {
+            int k = Math.min(maxBatch, count - start);
+            int n = (fixedBatchSize > 0) ? fixedBatchSize : k;
+
+            if (chunk == null || chunk.length != n * planeSize) chunk = new float[n * planeSize];
+            else Arrays.fill(chunk, k * planeSize, chunk.length, 0f);
+            System.arraycopy(packed, start * planeSize, chunk, 0, k * planeSize);
+
+            float[] out = infer(chunk, n, width, height, sample);
+            System.arraycopy(out, 0, packed, start * planeSize, k * planeSize);
+        }
+        return packed;
+    }
+
+    /**
+     * 分块推理 (归一化空间)
+     * 每个块的核心区约为 tileSize x tileSize，四周再带 overlap 像素的上下文 (halo)；
+     * 图像边缘的块窗口向内平移到同样大小，所有块共用一种形状。
+     * 相邻块在边界两侧各 overlap/2 像素内做线性羽化融合，权重处处和为 1，因此没有拼接缝；
+     * 外侧的另一半 halo 只提供上下文，不参与输出。
+     * 内置 DnCNN 实测 (1000x900, tileSize=256)：overlap=32 时与整帧推理的最大差异
+     * < 1e-4 * normalizationFactor，overlap=64 时已到 float 舍入量级。
+     *
+     * @param tileSize 块核心边长 (像素)，<= 0 或不小于整帧时退化为整帧推理
+     * @param overlap  每侧的上下文宽度 (像素)，建议不小于 32
+     */
+    public float[] inferTiled(float[] pixels, int width, int height, int tileSize, int overlap) throws OrtException {
+        return inferTiled(pixels, width, height, tileSize, overlap, null);
+    }
+
+    /**
+     * 同上，各块的耗时累加到 sample (可为 null)
+     */
+    @Override
+    public float[] inferTiled(float[] pixels, int width, int height, int tileSize, int overlap,
+                              RunMetrics.Sample sample) throws OrtException {
+        return inferTiled(pixels, width, height, tileSize, overlap, sample, null);
+    }
+
+    /**
+     * 同上，可以通过 token 中途取消 (可为 null)：取消后抛出 CancellationException
+     */
+    public float[] inferTiled(float[] pixels, int width, int height, int tileSize, int overlap,
+                              RunMetrics.Sample sample, CancelToken token) throws OrtException {
+        if (tileSize <= 0 || (width <= tileSize && height <= tileSize)) {
+            return infer(pixels, width, height, sample, token);
+        }
+
+        float[] resultPixels = new float[width * height];
+
+        int[] xBounds = tileBounds(width, tileSize);
+        int[] yBounds = tileBounds(height, tileSize);
+        int halo = Math.max(0, overlap);
+        // 羽化半宽取 halo 的一半；也不能超过最小块的一半，否则同一块两侧的渐变会重叠
+        int rampX = Math.min(halo / 2, minSpan(xBounds) / 2);
+        int rampY = Math.min(halo / 2, minSpan(yBounds) / 2);
+
+        // 所有块的窗口同样大 (最大的块 + 两侧 halo)：边缘块向内平移，多出的是真实像素，
+        // 一个平面只用一种形状的 Tensor 缓冲区，块数组也只分配一次
+        int tw = Math.min(width, maxSpan(xBounds) + 2 * halo);
+        int th = Math.min(height, maxSpan(yBounds) + 2 * halo);
+        float[] tile = new float[tw * th];
+
+        for (int ty = 0; ty < yBounds.length - 1; ty++) {
+            int y0 = windowStart(yBounds[ty], halo, th, height);
+            float[] wy = rampWeights(y0, y0 + th, yBounds, ty, rampY);
+
+            for (int tx = 0; tx < xBounds.length - 1; tx++) {
+                int x0 = windowStart(xBounds[tx], halo, tw, width);
+                float[] wx = rampWeights(x0, x0 + tw, xBounds, tx, rampX);
+
+                for (int y = 0; y < th; y++) {
+                    System.arraycopy(pixels, (y0 + y) * width + x0, tile, y * tw, tw);
+                }
+
+                if (token != null) token.check();
+                float[] out = infer(tile, tw, th, sample, token);
+
+                for (int y = 0; y < th; y++) {
+                    float rowWeight = wy[y];
+                    if (rowWeight == 0) continue;
+                    int dst = (y0 + y) * width + x0;
+                    for (int x = 0; x < tw; x++) {
+                        float w = rowWeight * wx[x];
+                        if (w != 0) resultPixels[dst + x] += out[y * tw + x] * w;
+                    }
+                }
+            }
+        }
+        return resultPixels;
+    }
+
+    /**
+     * 长度为 window 的窗口起点：尽量从 start - halo 开始，但不越出 [0, size)。
+     * window 不小于块长 + 2 * halo，所以窗口总能盖住块及其 (图像内的) halo。
+     */
+    static int windowStart(int start, int halo, int window, int size) {
+        return Math.max(0, Math.min(start - halo, size - window));
+    }
+
+    private float[] infer(float[] pixels, int width, int height, RunMetrics.Sample sample) throws OrtException {
+        return infer(pixels, width, height, sample, null);
+    }
+
+    private float[] infer(float[] pixels, int width, int height, RunMetrics.Sample sample, CancelToken token)
+            throws OrtException {
+        if (fixedBatchSize <= 1) return infer(pixels, 1, width, height, sample, token);
+
+        // 固定 batch>1 的模型：补零平面后只取第一张
+        int planeSize = width * height;
+        float[] padded = new float[fixedBatchSize * planeSize];
+        System.arraycopy(pixels, 0, padded, 0, planeSize);
+        return Arrays.copyOf(infer(padded, fixedBatchSize, width, height, sample, token), planeSize);
+    }
+
+    /**
+     * 单次 Session 调用：输入已归一化的 [N, H, W] 像素，返回同尺寸的模型输出 (仍是归一化值)
+     */
+    private float[] infer(float[] pixels, int batch, int width, int height, RunMetrics.Sample sample) throws OrtException {
+        return infer(pixels, batch, width, height, sample, null);
+    }
+
+    private float[] infer(float[] pixels, int batch, int width, int height, RunMetrics.Sample sample,
+                          CancelToken token) throws OrtException {
+        // --- 2. 取出 (或创建) 该形状对应的 Tensor ---
+        // 注意：这里假设模型输入是 [N, H, W, 1] (NHWC)
+        // 如果你的模型是 PyTorch 导出的，通常需要 [N, 1, H, W] (NCHW)
+        int bucketWidth = bucketSize(width);
+        int bucketHeight = bucketSize(height);
+        if (bucketWidth != width || bucketHeight != height) {
+            return inferPadded(pixels, batch, width, height, bucketWidth, bucketHeight, sample, token);
+        }
+        int n = batch * height * width;
+        TensorBuffers buf = borrowBuffers(batch, height, width);
+        try {
+            return infer(buf, pixels, n, batch, height, width, sample, token);
+        } finally {
+            returnBuffers(buf);
+        }
+    }
+
+    /**
+     * 形状分桶：镜像填充到 paddedWidth x paddedHeight 推理，再把左上角的原尺寸区域裁回 pixels
+     */
+    private float[] inferPadded(float[] pixels, int batch, int width, int height, int paddedWidth, int paddedHeight,
+                                RunMetrics.Sample sample, CancelToken token) throws OrtException {
+        long t0 = System.nanoTime();
+        float[] padded = reflectPad(pixels, batch, width, height, paddedWidth, paddedHeight);
+        if (sample != null) sample.add(RunMetrics.Stage.PREPROCESS, System.nanoTime() - t0);
+
+        int n = batch * paddedHeight * paddedWidth;
+        TensorBuffers buf = borrowBuffers(batch, paddedHeight, paddedWidth);
+        try {
+            infer(buf, padded, n, batch, paddedHeight, paddedWidth, sample, token);
+        } finally {
+            returnBuffers(buf);
+        }
+
+        long t1 = System.nanoTime();
+        for (int b = 0; b < batch; b++) {
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(padded, (b * paddedHeight + y) * paddedWidth, pixels, (b * height + y) * width, width);
+            }
+        }
+        if (sample != null) sample.add(RunMetrics.Stage.EXTRACT, System.nanoTime() - t1);
+        return pixels;
+    }
+
+    /**
+     * 向上取到 shapeBucket 的整数倍 (不分桶时原样返回)
+     */
+    private int bucketSize(int size) {
+        if (shapeBucket <= 0) return size;
+        return (size + shapeBucket - 1) / shapeBucket * shapeBucket;
+    }
+
+    /**
+     * 每张平面向右、向下镜像填充 (不重复边缘像素，与 numpy 的 reflect 模式相同)；
+     * 填充宽度超过原尺寸时来回折返。
+     */
+    static float[] reflectPad(float[] pixels, int batch, int width, int height, int paddedWidth, int paddedHeight) {
+        float[] padded = new float[batch * paddedWidth * paddedHeight];
+        for (int b = 0; b < batch; b++) {
+            for (int y = 0; y < paddedHeight; y++) {
+                int src = (b * height + reflect(y, height)) * width;
+                int dst = (b * paddedHeight + y) * paddedWidth;
+                System.arraycopy(pixels, src, padded, dst, width);
+                for (int x = width; x < paddedWidth; x++) {
+                    padded[dst + x] = pixels[src + reflect(x, width)];
+                }
+            }
+        }
+        return padded;
+    }
+
+    private static int reflect(int i, int size) {
+        if (size == 1) return 0;
+        int period = 2 * (size - 1);
+        i %= period;
+        return (i < size) ? i : period - i;
+    }
+
+    private float[] infer(TensorBuffers buf, float[] pixels, int n, int batch, int height, int width,
+                          RunMetrics.Sample sample, CancelToken token) throws OrtException {
+        // 堆数组 → 可复用的 Direct Buffer (ORT 直接读取，不再额外复制)
+        long t0 = System.nanoTime();
+        buf.write(pixels, n);
+        long t1 = System.nanoTime();
+        if (sample != null) sample.add(RunMetrics.Stage.PREPROCESS, t1 - t0);
+
+        // --- 3. 推理 (Inference) ---
+        if (pinnedOutput) {
+            try {
+                // 输出直接写进预分配的 Direct Buffer (output binding)，不产生 float[][][][] 对象图
+                if (token == null) {
+                    session.run(Collections.singletonMap(inputName, buf.inputTensor),
+                            Collections.singletonMap(outputName, buf.outputTensor)).close();
+                } else {
+                    session.run(Collections.singletonMap(inputName, buf.inputTensor), Collections.emptySet(),
+                            Collections.singletonMap(outputName, buf.outputTensor), token.runOptions()).close();
+                }
+                long t2 = System.nanoTime();
+
+                // --- 4. 解析结果：批量拷回 (结果覆盖传入的数组) ---
+                buf.read(pixels, n);
+                if (sample != null) {
+                    sample.add(RunMetrics.Stage.INFERENCE, t2 - t1);
+                    sample.add(RunMetrics.Stage.EXTRACT, System.nanoTime() - t2);
+                }
+                return pixels;
+            } catch (OrtException e) {
+                // 被取消的 run 也会抛 OrtException，不能据此关掉预绑定
+                if (token != null) token.check();
+                // 内存不足与预绑定无关，交给调用方退避 (见 MemoryPlanner)
+                if (MemoryPlanner.isAllocationFailure(e)) throw e;
+                // 输出形状与输入不同的自定义模型无法预绑定，退回普通模式
+                pinnedOutput = false;
+                IJ.log("Output binding unavailable (" + e.getMessage() + "), using fallback path");
+            }
+        }
+
+        t1 = System.nanoTime();
+        try (OrtSession.Result result = (token == null)
+                ? session.run(Collections.singletonMap(inputName, buf.inputTensor))
+                : session.run(Collections.singletonMap(inputName, buf.inputTensor), token.runOptions())) {
+            long t2 = System.nanoTime();
+            OnnxTensor outputTensor = (OnnxTensor) result.get(0);
+            long[] outShape = outputTensor.getInfo().getShape();
+            // 假设输出也是 [N, H, W, 1]
+            if (outShape.length != 4 || outShape[0] != batch || outShape[1] != height || outShape[2] != width) {
+                throw new IllegalStateException("Model output " + Arrays.toString(outShape)
+                        + " does not match input [" + batch + ", " + height + ", " + width + ", 1]");
+            }
+            // float16 输出也由 getFloatBuffer 转成 float
+            outputTensor.getFloatBuffer().get(pixels, 0, n);
+            if (sample != null) {
+                sample.add(RunMetrics.Stage.INFERENCE, t2 - t1);
+                sample.add(RunMetrics.Stage.EXTRACT, System.nanoTime() - t2);
+            }
+            return pixels;
+        } catch (OrtException e) {
+            if (token != null) token.check();
+            throw e;
+        }
+    }
+
+    /**
+     * 借出该形状的输入 / 输出 Tensor。共享 Session 时多个线程并发调用，每个调用独占一组缓冲区。
+     */
+    private TensorBuffers borrowBuffers(int batch, int height, int width) throws OrtException {
+        String key = batch + "x" + height + "x" + width;
+        synchronized (idleBuffers) {
+            ArrayDeque<TensorBuffers> idle = idleBuffers.get(key);
+            if (idle != null && !idle.isEmpty()) return idle.pop();
+        }
+        return new TensorBuffers(env, key, new long[]{batch, height, width, 1}, halfInput, halfOutput);
+    }
+
+    private void returnBuffers(TensorBuffers buf) {
+        synchronized (idleBuffers) {
+            ArrayDeque<TensorBuffers> idle = idleBuffers.get(buf.key);
+            if (idle == null) {
+                idle = new ArrayDeque<>();
+                idleBuffers.put(buf.key, idle);
+            }
+            idle.push(buf);
+
+            Iterator<ArrayDeque<TensorBuffers>> it = idleBuffers.values().iterator();
+            while (idleBuffers.size() > MAX_BUFFER_SHAPES && it.hasNext()) {
+                for (TensorBuffers old : it.next()) old.close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 当前保留的缓冲区形状数
+     */
+    int bufferShapes() {
+        synchronized (idleBuffers) {
+            return idleBuffers.size();
+        }
+    }
+
+    private static int readBatchDim(NodeInfo inputInfo) {
+        if (inputInfo == null || !(inputInfo.getInfo() instanceof TensorInfo)) return 1;
+        long[] shape = ((TensorInfo) inputInfo.getInfo()).getShape();
+        if (shape.length == 0) return 1;
+        return (int) shape[0];
+    }
+
+    private static int bytesPerPixel(NodeInfo info) {
+        int element = isFloat16(info) ? 2 : 4;
+        if (info == null || !(info.getInfo() instanceof TensorInfo)) return element;
+        long[] shape = ((TensorInfo) info.getInfo()).getShape();
+        return (shape.length == 4 && shape[3] > 1) ? element * (int) shape[3] : element;
+    }
+
+    private static boolean isFloat16(NodeInfo info) {
+        return info != null && info.getInfo() instanceof TensorInfo
+                && ((TensorInfo) info.getInfo()).type == OnnxJavaType.FLOAT16;
+    }
+
+    private static float normScale(double normalizationFactor) {
+        float normScale = (float) normalizationFactor;
+        return (normScale <= 0) ? 1.0f : normScale;
+    }
+
+    /**
+     * 把 [0, size) 均分成 ceil(size / tileSize) 段，返回各段边界 (含 0 与 size)
+     */
+    static int[] tileBounds(int size, int tileSize) {
+        int n = Math.max(1, (size + tileSize - 1) / tileSize);
+        int[] bounds = new int[n + 1];
+        for (int i = 0; i <= n; i++) {
+            bounds[i] = (int) ((long) size * i / n);
+        }
+        return bounds;
+    }
+
+    private static int maxSpan(int[] bounds) {
+        int max = 0;
+        for (int i = 0; i < bounds.length - 1; i++) {
+            max = Math.max(max, bounds[i + 1] - bounds[i]);
+        }
+        return max;
+    }
+
+    private static int minSpan(int[] bounds) {
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < bounds.length - 1; i++) {
+            min = Math.min(min, bounds[i + 1] - bounds[i]);
+        }
+        return min;
+    }
+
+    /**
+     * 一维融合权重：块 i 在边界 b 两侧 [b - ramp, b + ramp) 内线性渐变，
+     * 与相邻块的权重互补 (和为 1)；图像边缘一侧保持 1。
+     *
+     * @param from 该块窗口的起点
+     * @param to   该块窗口的终点 (不含)
+     */
+    static float[] rampWeights(int from, int to, int[] bounds, int i, int ramp) {
+        int start = bounds[i];
+        int end = bounds[i + 1];
+        boolean first = (i == 0);
+        boolean last = (i == bounds.length - 2);
+        float[] w = new float[to - from];
+        for (int p = from; p < to; p++) {
+            float left;
+            float right;
+            if (ramp == 0) {
+                left = (first || p >= start) ? 1f : 0f;
+                right = (last || p < end) ? 1f : 0f;
+            } else {
+                left = first ? 1f : clamp01((p - (start - ramp) + 0.5f) / (2f * ramp));
+                right = last ? 1f : clamp01(((end + ramp) - p - 0.5f) / (2f * ramp));
+            }
+            w[p - from] = left * right;
+        }
+        return w;
+    }
+
+    private static float clamp01(float v) {
+        return (v < 0) ? 0 : (v > 1 ? 1 : v);
+    }
+
     /**
      * 必须实现的方法：释放 Native 内存
      */
     @Override
-    public void close() throws Exception {
+    public void close() throws OrtException {
+        synchronized (idleBuffers) {
+            for (ArrayDeque<TensorBuffers> idle : idleBuffers.values()) {
+                for (TensorBuffers buf : idle) buf.close();
+            }
+            idleBuffers.clear();
+        }
         if (session != null) {
             session.close();
         }
@@ -111,4 +701,70 @@ public class InferenceEngine implements AutoCloseable {
             env.close();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 一种形状的 Direct Buffer 及包装它的 Tensor，跨平面复用
+     * float16 的一侧用 ShortBuffer 视图 (每像素 2 字节)，写入 / 读出时与 float 互转。
+     */
+    private static final class TensorBuffers implements AutoCloseable {
+        final String key;
+        private final FloatBuffer input;
+        private final FloatBuffer output;
+        private final ShortBuffer halfInput;
+        private final ShortBuffer halfOutput;
+        final OnnxTensor inputTensor;
+        final OnnxTensor outputTensor;
+        private boolean closed;
+
+        TensorBuffers(OrtEnvironment env, String key, long[] shape, boolean halfIn, boolean halfOut) throws OrtException {
+            this.key = key;
+            int n = (int) (shape[0] * shape[1] * shape[2] * shape[3]);
+            if (halfIn) {
+                ByteBuffer bytes = ByteBuffer.allocateDirect(n * 2).order(ByteOrder.nativeOrder());
+                this.input = null;
+                this.halfInput = bytes.asShortBuffer();
+                this.inputTensor = OnnxTensor.createTensor(env, bytes, shape, OnnxJavaType.FLOAT16);
+            } else {
+                this.input = ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+                this.halfInput = null;
+                this.inputTensor = OnnxTensor.createTensor(env, input, shape);
+            }
+            if (halfOut) {
+                ByteBuffer bytes = ByteBuffer.allocateDirect(n * 2).order(ByteOrder.nativeOrder());
+                this.output = null;
+                this.halfOutput = bytes.asShortBuffer();
+                this.outputTensor = OnnxTensor.createTensor(env, bytes, shape, OnnxJavaType.FLOAT16);
+            } else {
+                this.output = ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+                this.halfOutput = null;
+                this.outputTensor = OnnxTensor.createTensor(env, output, shape);
+            }
+        }
+
+        void write(float[] src, int n) {
+            if (halfInput != null) {
+                for (int i = 0; i < n; i++) halfInput.put(i, Fp16Conversions.floatToFp16(src[i]));
+            } else {
+                input.clear();
+                input.put(src, 0, n);
+            }
+        }
+
+        void read(float[] dst, int n) {
+            if (halfOutput != null) {
+                for (int i = 0; i < n; i++) dst[i] = Fp16Conversions.fp16ToFloat(halfOutput.get(i));
+            } else {
+                output.clear();
+                output.get(dst, 0, n);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            inputTensor.close();
+            outputTensor.close();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package cn.ac.cns.nia.engine;
+
+/**
+ * 推理 worker 池：EnginePool (本进程的 Session) 或 RemoteWorkerPool (独立的 worker 进程)
+ */
+public interface InferencePool {
+
+    /**
+     * 建议的并发 worker 数
+     */
+    int getWorkers();
+
+    /**
+     * 所有 worker 共用一个 Session
+     */
+    boolean isShared();
+
+    /**
+     * 模型实际以 FP16 运行 (FP16 转换失败时会退回 FP32)
+     */
+    boolean isFp16();
+
+    int getMaxBatchSize();
+
+    /**
+     * 借出一个 worker；没有空闲 worker 时阻塞
+     */
+    PlaneInference acquire() throws InterruptedException;
+
+    void release(PlaneInference worker);
+}
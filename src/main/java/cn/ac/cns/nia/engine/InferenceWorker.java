@@ -0,0 +1,214 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 推理 worker 进程 (由 RemoteWorkerPool 启动，不直接使用)
+ * 启动后加载模型并预热，然后连回协调端的本地端口 (只用回环地址)，
+ * 握手时发送从 stdin 读到的令牌，之后逐个处理请求，直到收到 QUIT 或连接断开 (协调端退出时 worker 随之退出)。
+ *
+ * 协议 (DataStream，大端)：
+ *   握手     worker → HELLO, 令牌 (UTF), worker 编号, 最大 batch, 是否 FP16
+ *   请求     op (PLANES / TILED / QUIT), count, width, height, tileSize, overlap, count*width*height 个 float
+ *   响应     OK + 同样数量的 float，或 ERROR + 错误信息 (UTF)
+ * --mock 时不加载 ORT，原样返回输入 (测试传输、调度与重试用)；--crash-after N 在第 N 个请求后直接退出，模拟 Native 崩溃。
+ */
+public final class InferenceWorker {
+
+    static final int HELLO = 0x4e494157; // "NIAW"
+    static final int OP_PLANES = 1;
+    static final int OP_TILED = 2;
+    static final int OP_QUIT = 3;
+    static final int OK = 0;
+    static final int ERROR = 1;
+
+    private InferenceWorker() {
+    }
+
+    public static void main(String[] args) {
+        try {
+            run(args);
+            System.exit(0);
+        } catch (Throwable t) {
+            System.err.println("Worker failed: " + t);
+            System.exit(1);
+        }
+    }
+
+    private static void run(String[] args) throws Exception {
+        int port = 0;
+        int id = 0;
+        int crashAfter = 0;
+        boolean mock = false;
+        String modelSpec = null;
+        EngineOptions options = new EngineOptions();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--id": id = Integer.parseInt(args[++i]); break;
+                case "--model": modelSpec = args[++i]; break;
+                case "--mock": mock = true; break;
+                case "--crash-after": crashAfter = Integer.parseInt(args[++i]); break;
+                case "--intra": options.intraOpThreads = Integer.parseInt(args[++i]); break;
+                case "--inter": options.interOpThreads = Integer.parseInt(args[++i]); break;
+                case "--parallel": options.parallelExecution = true; break;
+                case "--no-spin": options.allowSpinning = false; break;
+                case "--opt": options.optLevel = OptLevel.valueOf(args[++i]); break;
+                case "--model-cache": options.cacheOptimizedModel = true; break;
+                case "--cache-dir": options.cacheDirectory = new File(args[++i]); break;
+                case "--fp16": options.fp16 = true; break;
+                case "--bucket": options.shapeBucket = Integer.parseInt(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        // 令牌走 stdin，不出现在命令行 (ps 可见) 里
+        String token = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+        if (token == null) throw new EOFException("No token on stdin");
+
+        PlaneInference engine;
+        boolean fp16 = false;
+        if (mock) {
+            engine = new MockEngine();
+        } else {
+            InferenceEngine e = new InferenceEngine(ModelSource.fromSpec(modelSpec), options);
+            e.warmUp();
+            fp16 = e.isFp16();
+            engine = e;
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            out.writeInt(HELLO);
+            out.writeUTF(token);
+            out.writeInt(id);
+            out.writeInt(engine.getMaxBatchSize());
+            out.writeBoolean(fp16);
+            out.flush();
+            serve(engine, in, out, crashAfter);
+        } finally {
+            if (engine instanceof InferenceEngine) ((InferenceEngine) engine).close();
+        }
+    }
+
+    private static void serve(PlaneInference engine, DataInputStream in, DataOutputStream out, int crashAfter)
+            throws IOException {
+        FloatCodec codec = new FloatCodec();
+        int requests = 0;
+        while (true) {
+            int op;
+            try {
+                op = in.readInt();
+            } catch (EOFException e) {
+                return; // 协调端已关闭
+            }
+            if (op == OP_QUIT) return;
+            int count = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            int tileSize = in.readInt();
+            int overlap = in.readInt();
+            float[] data = codec.read(in, count * width * height);
+
+            if (crashAfter > 0 && ++requests > crashAfter) Runtime.getRuntime().halt(134);
+
+            float[] result;
+            try {
+                result = (op == OP_TILED)
+                        ? engine.inferTiled(data, width, height, tileSize, overlap, null)
+                        : engine.inferPlanes(data, count, width, height, null);
+            } catch (Exception | OutOfMemoryError e) {
+                // 堆不足也报告给协调端 (由它退避重试)，worker 本身继续服务
+                out.writeInt(ERROR);
+                out.writeUTF(e instanceof OutOfMemoryError ? e.toString() : String.valueOf(e.getMessage()));
+                out.flush();
+                continue;
+            }
+            out.writeInt(OK);
+            codec.write(out, result, count * width * height);
+            out.flush();
+        }
+    }
+
+    /**
+     * 生成启动参数 (与 run 中的解析对应)
+     */
+    static List<String> args(ModelSource model, EngineOptions options) {
+        List<String> args = new ArrayList<>();
+        args.add("--model");
+        args.add(model.spec());
+        if (options.intraOpThreads > 0) { args.add("--intra"); args.add(String.valueOf(options.intraOpThreads)); }
+        if (options.interOpThreads > 0) { args.add("--inter"); args.add(String.valueOf(options.interOpThreads)); }
+        if (options.parallelExecution) args.add("--parallel");
+        if (!options.allowSpinning) args.add("--no-spin");
+        args.add("--opt");
+        args.add(options.optLevel.name());
+        if (options.cacheOptimizedModel) args.add("--model-cache");
+        if (options.cacheDirectory != null) { args.add("--cache-dir"); args.add(options.cacheDirectory.getPath()); }
+        if (options.fp16) args.add("--fp16");
+        if (options.shapeBucket > 0) { args.add("--bucket"); args.add(String.valueOf(options.shapeBucket)); }
+        return args;
+    }
+
+    /**
+     * float[] ↔ 字节，复用缓冲区 (一个连接一个)
+     */
+    static final class FloatCodec {
+        private byte[] bytes = new byte[0];
+
+        float[] read(DataInputStream in, int n) throws IOException {
+            float[] values = new float[n];
+            in.readFully(buffer(n), 0, n * 4);
+            ByteBuffer.wrap(bytes, 0, n * 4).asFloatBuffer().get(values);
+            return values;
+        }
+
+        void write(DataOutputStream out, float[] values, int n) throws IOException {
+            ByteBuffer.wrap(buffer(n), 0, n * 4).asFloatBuffer().put(values, 0, n);
+            out.write(bytes, 0, n * 4);
+        }
+
+        private byte[] buffer(int n) {
+            if (bytes.length < n * 4) bytes = new byte[n * 4];
+            return bytes;
+        }
+    }
+
+    /**
+     * 恒等 "模型"：不依赖 ORT
+     */
+    private static final class MockEngine implements PlaneInference {
+        @Override
+        public int getMaxBatchSize() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public float[] inferPlanes(float[] packed, int count, int width, int height, RunMetrics.Sample sample) {
+            return packed;
+        }
+
+        @Override
+        public float[] inferTiled(float[] pixels, int width, int height, int tileSize, int overlap,
+                                  RunMetrics.Sample sample) {
+            return pixels;
+        }
+    }
+}
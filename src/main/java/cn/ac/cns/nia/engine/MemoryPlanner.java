@@ -0,0 +1,324 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.OrtException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 内存预算规划：在栈循环开始前选定分块大小、batch、并发 worker 数和队列深度，避免跑到一半才内存不足
+ * 1. 标定：借池里的一个 Session 跑一张 PROBE_SIZE² 的全零平面 (不另建 Session)，按进程驻留内存 (RSS) 的增量
+ *    得到每像素的 Native 内存 (ORT 的中间激活 + Tensor 缓冲区)。内置 DnCNN 实测 128² 与 1024² 的每像素值相差不到 5%，
+ *    按面积线性外推即可。同一模型 / 引擎选项只标定一次，通常就在引擎池刚加载之后；
+ *    Session 之前跑过更大的平面时 arena 已经够用、RSS 不再增长，这时和读不到 RSS (非 Linux)
+ *    或推理不在本进程 (worker 进程) 时一样，按模型声明的输入 / 输出形状加上保守的激活估计。
+ * 2. 预算：Java 堆取 maxMemory 中尚未使用的部分，Native 取系统可用内存 (MemAvailable，容器里再受 cgroup 上限约束；
+ *    非 Linux 不限制)，各留 20% 余量；同时处理多个文件时按份数平分堆预算 (它们共用池里的 worker，Native 并发不变)。
+ * 3. 只在用户设置的基础上往小调：Native 超预算时依次减小 batch、分块 (不小于 256)、worker 数、分块 (不小于 64)；
+ *    堆超预算时依次减小 batch、队列深度、worker 数。
+ * 实际运行中仍然分配失败时，StackPipeline 按 isAllocationFailure 判断并退避重试。
+ */
+public final class MemoryPlanner {
+
+    private static final int PROBE_SIZE = 128;
+    // ORT 的 arena 为每种输入形状 (整帧、分块、边缘块) 各自保留内存，连续跑多种形状时峰值约为单次的 1.3 倍
+    private static final double SAFETY = 1.5;
+    private static final double BUDGET_FRACTION = 0.8;
+    // 无法标定时假定的每像素激活内存 (内置 DnCNN 实测约 0.53 KB)
+    private static final long ASSUMED_ACTIVATION_BYTES = 1024;
+    // 默认的 Tensor 缓冲区：单通道 float 输入 + 输出
+    private static final int DEFAULT_TENSOR_BYTES = 8;
+    private static final int PREFERRED_MIN_TILE = 256;
+    static final int MIN_TILE = 64;
+
+    private static final Map<String, MemoryPlanner> PROFILES = new HashMap<>();
+
+    private final double bytesPerPixel;
+    private final boolean measured;
+
+    private MemoryPlanner(double bytesPerPixel, boolean measured) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.measured = measured;
+    }
+
+    /**
+     * 标定 model 在 options 下的每像素 Native 内存 (结果按模型 + 选项缓存)；pool 是按同样的模型和选项加载的引擎池
+     */
+    public static MemoryPlanner calibrate(ModelSource model, EngineOptions options, EnginePool pool)
+            throws OrtException, InterruptedException {
+        String key = model.spec() + " " + options;
+        synchronized (PROFILES) {
+            MemoryPlanner planner = PROFILES.get(key);
+            if (planner == null) {
+                InferenceEngine engine = pool.acquire();
+                try {
+                    planner = probe(engine);
+                } finally {
+                    pool.release(engine);
+                }
+                PROFILES.put(key, planner);
+            }
+            return planner;
+        }
+    }
+
+    /**
+     * 不标定，按默认形状和保守的激活估计 (推理在 worker 进程里时使用)
+     */
+    public static MemoryPlanner assumed() {
+        return new MemoryPlanner(DEFAULT_TENSOR_BYTES + ASSUMED_ACTIVATION_BYTES, false);
+    }
+
+    private static MemoryPlanner probe(InferenceEngine engine) throws OrtException {
+        int tensorBytes = engine.tensorBytesPerPixel();
+        // 预热后线程池、kernel 选择等固定开销已经计入，之后的增量只随像素数增长
+        engine.warmUp();
+        long before = RunMetrics.readRss();
+        engine.inferPlanes(new float[PROBE_SIZE * PROBE_SIZE], 1, PROBE_SIZE, PROBE_SIZE);
+        long after = RunMetrics.readRss();
+        if (before < 0 || after <= before) {
+            return new MemoryPlanner(tensorBytes + ASSUMED_ACTIVATION_BYTES, false);
+        }
+        return new MemoryPlanner(Math.max(tensorBytes, (after - before) / (double) (PROBE_SIZE * PROBE_SIZE)), true);
+    }
+
+    public double getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * 为 planes 张 width x height 的平面选定参数。tileSize / batchSize / queueDepth 是用户设置的上限，
+     * shares 是同时运行的任务数 (批处理的并行文件数)：各自的平面在堆上，但共用池里的 worker，所以只平分堆预算。
+     */
+    public Plan plan(InferencePool pool, int width, int height, int planes, int tileSize, int overlap,
+                     int batchSize, int queueDepth, int shares) {
+        long heapBudget = heapBudget() / Math.max(1, shares);
+        long nativeBudget = nativeBudget();
+
+        int tile = isTiled(tileSize, width, height) ? tileSize : 0;
+        int batch = tile > 0 ? 1 : Math.max(1, Math.min(Math.min(batchSize, pool.getMaxBatchSize()), planes));
+        int workers = pool.getWorkers();
+        int queue = Math.max(0, queueDepth);
+        String requested = describe(tile, batch, workers, queue);
+
+        boolean fits;
+        while (true) {
+            long heap = heapBytes(width, height, planes, tile, overlap, batch, workers, queue);
+            long nat = nativeBytes(width, height, tile, overlap, batch, workers);
+            boolean heapOk = heap <= heapBudget;
+            boolean nativeOk = nat <= nativeBudget;
+            fits = heapOk && nativeOk;
+            if (fits) break;
+            int smaller;
+            if (batch > 1) {
+                batch /= 2;
+            } else if (!nativeOk && (smaller = smallerTile(tile, width, height, PREFERRED_MIN_TILE)) > 0) {
+                tile = smaller;
+            } else if (!heapOk && queue > 1) {
+                queue--;
+            } else if (workers > 1) {
+                workers--;
+            } else if (!nativeOk && (smaller = smallerTile(tile, width, height, MIN_TILE)) > 0) {
+                tile = smaller;
+            } else if (!heapOk && queue > 0) {
+                queue--;
+            } else {
+                break;
+            }
+        }
+        String chosen = describe(tile, batch, workers, queue);
+        return new Plan(tile, overlap, batch, workers, queue,
+                heapBytes(width, height, planes, tile, overlap, batch, workers, queue),
+                nativeBytes(width, height, tile, overlap, batch, workers),
+                heapBudget, nativeBudget, fits, chosen.equals(requested) ? null : requested, this);
+    }
+
+    /**
+     * 推理时同时存在的 Native 内存：每个 worker 一次调用的像素数 x 每像素内存
+     */
+    private long nativeBytes(int width, int height, int tile, int overlap, int batch, int workers) {
+        long pixelsPerCall = tile > 0 ? tilePixels(width, height, tile, overlap) : (long) width * height * batch;
+        return (long) (workers * pixelsPerCall * bytesPerPixel * SAFETY);
+    }
+
+    /**
+     * 流水线里在途的 float 数据：两个队列 + 每个 worker 一个 + 预处理和写回各一个批次；
+     * 每个 worker 还有结果数组 (分块时是整帧结果加一个块的输入 / 输出)
+     */
+    private static long heapBytes(int width, int height, int planes, int tile, int overlap, int batch, int workers,
+                                  int queue) {
+        long plane = (long) width * height * 4;
+        long chunks = (planes + batch - 1) / batch;
+        long inFlight = queue == 0 ? 1 : Math.min(chunks, 2L * queue + workers + 2);
+        long perWorker = tile > 0 ? plane + 2 * 4 * tilePixels(width, height, tile, overlap) : batch * plane;
+        return inFlight * batch * plane + (queue == 0 ? 1 : workers) * perWorker;
+    }
+
+    private static long tilePixels(int width, int height, int tile, int overlap) {
+        return (long) Math.min(width, tile + 2 * overlap) * Math.min(height, tile + 2 * overlap);
+    }
+
+    private static boolean isTiled(int tileSize, int width, int height) {
+        return tileSize > 0 && (width > tileSize || height > tileSize);
+    }
+
+    /**
+     * 下一档更小的分块 (约减半，取 64 的倍数)；不分块时从整帧的一半开始。已到 minTile 时返回 -1
+     */
+    static int smallerTile(int tileSize, int width, int height, int minTile) {
+        int current = isTiled(tileSize, width, height) ? tileSize : Math.max(width, height);
+        int next = Math.max(minTile, current / 2 / 64 * 64);
+        return next < current ? next : -1;
+    }
+
+    /**
+     * 是否是内存分配失败：Java 的 OutOfMemoryError，或 ORT / worker 进程报告的分配错误
+     */
+    public static boolean isAllocationFailure(Throwable t) {
+        for (Throwable c = t; c != null; c = c.getCause()) {
+            if (c instanceof OutOfMemoryError) return true;
+            String message = c.getMessage();
+            if (message == null) continue;
+            String m = message.toLowerCase(Locale.ROOT);
+            if (m.contains("bad_alloc") || m.contains("bad allocation") || m.contains("failed to allocate")
+                    || m.contains("out of memory") || m.contains("outofmemory") || m.contains("cannot allocate memory")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ==========================================
+    // 预算
+    // ==========================================
+
+    static long heapBudget() {
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        return (long) (Math.max(0, free) * BUDGET_FRACTION);
+    }
+
+    /**
+     * 可用物理内存 (/proc/meminfo 的 MemAvailable，受 cgroup 限制时取较小者)；
+     * 非 Linux 读不到时不限制 Native 内存，只规划堆
+     */
+    static long nativeBudget() {
+        long available = readMemInfo("MemAvailable:");
+        long cgroup = cgroupHeadroom();
+        if (cgroup >= 0 && (available < 0 || cgroup < available)) available = cgroup;
+        return available < 0 ? Long.MAX_VALUE : (long) (available * BUDGET_FRACTION);
+    }
+
+    private static long readMemInfo(String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/meminfo"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith(field)) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (Exception e) {
+            // 非 Linux
+        }
+        return -1;
+    }
+
+    /**
+     * cgroup v2 的 memory.max - memory.current；没有限制或不在容器里时返回 -1
+     */
+    private static long cgroupHeadroom() {
+        try {
+            Path dir = Paths.get("/sys/fs/cgroup");
+            String max = new String(Files.readAllBytes(dir.resolve("memory.max")), StandardCharsets.US_ASCII).trim();
+            if (max.equals("max")) return -1;
+            String current = new String(Files.readAllBytes(dir.resolve("memory.current")), StandardCharsets.US_ASCII).trim();
+            return Math.max(0, Long.parseLong(max) - Long.parseLong(current));
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static String describe(int tile, int batch, int workers, int queue) {
+        return (tile > 0 ? "tile " + tile + "px" : "whole planes") + ", batch " + batch + ", "
+                + workers + (workers == 1 ? " worker" : " workers") + ", queue depth " + queue;
+    }
+
+    private static String size(long bytes) {
+        if (bytes == Long.MAX_VALUE) return "?";
+        return bytes >= (1L << 30) ? String.format(Locale.ROOT, "%.1f GB", bytes / (double) (1L << 30))
+                : String.format(Locale.ROOT, "%d MB", bytes >> 20);
+    }
+
+    /**
+     * 规划结果；apply 把它设置到流水线上
+     */
+    public static final class Plan {
+        public final int tileSize;
+        public final int tileOverlap;
+        public final int batchSize;
+        public final int workers;
+        public final int queueDepth;
+        public final long heapBytes;
+        public final long nativeBytes;
+        public final long heapBudget;
+        public final long nativeBudget;
+        private final boolean fits;
+        private final String requested;
+        private final MemoryPlanner planner;
+
+        private Plan(int tileSize, int tileOverlap, int batchSize, int workers, int queueDepth, long heapBytes,
+                     long nativeBytes, long heapBudget, long nativeBudget, boolean fits, String requested,
+                     MemoryPlanner planner) {
+            this.tileSize = tileSize;
+            this.tileOverlap = tileOverlap;
+            this.batchSize = batchSize;
+            this.workers = workers;
+            this.queueDepth = queueDepth;
+            this.heapBytes = heapBytes;
+            this.nativeBytes = nativeBytes;
+            this.heapBudget = heapBudget;
+            this.nativeBudget = nativeBudget;
+            this.fits = fits;
+            this.requested = requested;
+            this.planner = planner;
+        }
+
+        /**
+         * 即使调到最小也超出预算 (仍会尝试运行，分配失败时退避)
+         */
+        public boolean fits() {
+            return fits;
+        }
+
+        /**
+         * 是否改动了用户的设置
+         */
+        public boolean isReduced() {
+            return requested != null;
+        }
+
+        public StackPipeline apply(StackPipeline pipeline) {
+            return pipeline.setTiling(tileSize, tileOverlap)
+                    .setBatchSize(batchSize)
+                    .setWorkers(workers)
+                    .setQueueDepth(queueDepth);
+        }
+
+        /**
+         * 例："Memory plan: tile 512px, batch 1, 2 workers, queue depth 2 (reduced from whole planes, batch 4, ...);
+         * native ~1.1 GB of 4.3 GB, heap ~210 MB of 1.2 GB, 0.53 KB/px measured"
+         */
+        @Override
+        public String toString() {
+            return (fits ? "" : "⚠️ ") + "Memory plan: " + describe(tileSize, batchSize, workers, queueDepth)
+                    + (requested != null ? " (reduced from " + requested + ")" : "")
+                    + "; native ~" + size(nativeBytes) + " of " + size(nativeBudget)
+                    + ", heap ~" + size(heapBytes) + " of " + size(heapBudget)
+                    + String.format(Locale.ROOT, ", %.2f KB/px %s", planner.bytesPerPixel / 1024,
+                    planner.measured ? "measured" : "assumed")
+                    + (fits ? "" : " — may run out of memory");
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 模型来源：内置资源 (直接从 jar 读字节，不写临时文件) 或磁盘上的 .onnx 文件
+ * key() 用来识别"同一个模型"：内置模型按资源名，外部文件按路径 + 修改时间 + 大小，
+ * 文件被覆盖后 key 会变化，缓存自然失效。
+ * fp16() 把任一来源包装成 FP16 版本 (见 Fp16ModelConverter)，key 加 "fp16:" 前缀，与 FP32 版本分开缓存。
+ */
+public abstract class ModelSource {
+
+    public abstract String key();
+
+    /**
+     * 简短名称，用于日志
+     */
+    public abstract String displayName();
+
+    abstract OrtSession createSession(OrtEnvironment env, OrtSession.SessionOptions opts) throws OrtException;
+
+    /**
+     * 模型内容的 SHA-256 (十六进制)，用于优化模型缓存的文件名和断点续跑的校验
+     */
+    public abstract String contentHash() throws IOException;
+
+    /**
+     * 模型文件的全部字节 (FP16 转换用)
+     */
+    abstract byte[] readBytes() throws IOException;
+
+    /**
+     * 在另一个进程里重建同一个来源用的字符串 (worker 进程的启动参数，见 fromSpec)
+     */
+    abstract String spec();
+
+    static ModelSource fromSpec(String spec) {
+        if (spec.startsWith("fp16:")) return fp16(fromSpec(spec.substring(5)));
+        if (spec.startsWith("builtin:")) return builtIn(spec.substring(8));
+        if (spec.startsWith("file:")) return file(spec.substring(5));
+        throw new IllegalArgumentException("Unknown model spec: " + spec);
+    }
+
+    public static ModelSource builtIn(String resourceName) {
+        return new BuiltIn(resourceName);
+    }
+
+    public static ModelSource file(String path) {
+        return new FileModel(path);
+    }
+
+    /**
+     * 同一个模型的 FP16 版本 (权重和输入 / 输出都是 float16)，第一次建 Session 时在内存中转换
+     */
+    public static ModelSource fp16(ModelSource model) {
+        return (model instanceof Fp16Model) ? model : new Fp16Model(model);
+    }
+
+    @Override
+    public String toString() {
+        return key();
+    }
+
+    static String sha256(InputStream in) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) digest.update(buf, 0, n);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class BuiltIn extends ModelSource {
+        private final String resourceName;
+        private volatile byte[] bytes;
+        private volatile String hash;
+
+        BuiltIn(String resourceName) {
+            this.resourceName = resourceName;
+        }
+
+        @Override
+        public String key() {
+            return "builtin:" + resourceName;
+        }
+
+        @Override
+        public String displayName() {
+            return resourceName + " (built-in)";
+        }
+
+        @Override
+        String spec() {
+            return "builtin:" + resourceName;
+        }
+
+        @Override
+        OrtSession createSession(OrtEnvironment env, OrtSession.SessionOptions opts) throws OrtException {
+            try {
+                return env.createSession(readBytes(), opts);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String contentHash() throws IOException {
+            if (hash == null) hash = sha256(new ByteArrayInputStream(readBytes()));
+            return hash;
+        }
+
+        @Override
+        byte[] readBytes() throws IOException {
+            if (bytes != null) return bytes;
+            InputStream is = ModelSource.class.getClassLoader().getResourceAsStream(resourceName);
+            if (is == null) is = ModelSource.class.getResourceAsStream("/" + resourceName);
+            if (is == null) throw new FileNotFoundException("Built-in model not found: " + resourceName);
+            try (InputStream in = is) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+                bytes = out.toByteArray();
+            }
+            return bytes;
+        }
+    }
+
+    private static final class FileModel extends ModelSource {
+        private final File file;
+        private String hash;
+        private String hashedKey;
+
+        FileModel(String path) {
+            this.file = new File(path);
+        }
+
+        @Override
+        public String key() {
+            return "file:" + file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+        }
+
+        @Override
+        public String displayName() {
+            return file.getName();
+        }
+
+        @Override
+        String spec() {
+            return "file:" + file.getAbsolutePath();
+        }
+
+        @Override
+        OrtSession createSession(OrtEnvironment env, OrtSession.SessionOptions opts) throws OrtException {
+            return env.createSession(file.getAbsolutePath(), opts);
+        }
+
+        @Override
+        public synchronized String contentHash() throws IOException {
+            // 文件被覆盖后 key 变化，重新计算
+            String key = key();
+            if (hash == null || !key.equals(hashedKey)) {
+                try (InputStream in = new FileInputStream(file)) {
+                    hash = sha256(in);
+                }
+                hashedKey = key;
+            }
+            return hash;
+        }
+
+        @Override
+        byte[] readBytes() throws IOException {
+            return Files.readAllBytes(file.toPath());
+        }
+    }
+
+    private static final class Fp16Model extends ModelSource {
+        private static final String CONVERTER_VERSION = "fp16-v1";
+        private final ModelSource fp32;
+        private byte[] bytes;
+        private String bytesKey;
+
+        Fp16Model(ModelSource fp32) {
+            this.fp32 = fp32;
+        }
+
+        @Override
+        public String key() {
+            return "fp16:" + fp32.key();
+        }
+
+        @Override
+        public String displayName() {
+            return fp32.displayName() + " [FP16]";
+        }
+
+        @Override
+        String spec() {
+            return "fp16:" + fp32.spec();
+        }
+
+        @Override
+        OrtSession createSession(OrtEnvironment env, OrtSession.SessionOptions opts) throws OrtException {
+            try {
+                return env.createSession(readBytes(), opts);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String contentHash() throws IOException {
+            // 转换是确定的：原模型的哈希 + 转换器版本即可，不必对转换结果再算一遍
+            return sha256(new ByteArrayInputStream(
+                    (fp32.contentHash() + CONVERTER_VERSION).getBytes(StandardCharsets.US_ASCII)));
+        }
+
+        @Override
+        synchronized byte[] readBytes() throws IOException {
+            // 原模型文件被覆盖后 key 变化，重新转换
+            String key = fp32.key();
+            if (bytes == null || !key.equals(bytesKey)) {
+                bytes = Fp16ModelConverter.convert(fp32.readBytes());
+                bytesKey = key;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package cn.ac.cns.nia.engine;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+/**
+ * 归一化系数统计 (替代 StackStatistics 全栈扫描)
+ * 1. 并行单遍：各平面分到多个核上扫描，8/16-bit 直接累积整数直方图，最大值和分位数一遍得到；
+ * 2. 抽样：只取均匀分布的 samplePlanes 张平面，每张按 pixelStride 跳点采样 (确定性，重跑结果相同)；
+ * 3. 按通道分别计算 (perChannel)，或全栈共用一个系数；
+ * 4. MAX = 最大值 (与原来一致)，PERCENTILE = 分位数 (对热像素更稳健)。
+ * 32-bit 图的分位数需要先知道取值范围，因此对样本扫描两遍。
+ */
+public class Normalization {
+
+    public enum Mode { MAX, PERCENTILE }
+
+    private static final int FLOAT_BINS = 65536;
+
+    public Mode mode = Mode.MAX;
+    public double percentile = 99.9;
+    public boolean perChannel = false;
+    /** 参与统计的平面数上限，0 = 全部 */
+    public int samplePlanes = 0;
+    /** 平面内每隔多少像素取一个，1 = 全部 */
+    public int pixelStride = 1;
+
+    /**
+     * 后台计算，可以与引擎加载 / 预热并行。
+     * 不与推理本身重叠：MAX / PERCENTILE 的系数取决于整个栈 (或整个通道)，
+     * 第一个平面归一化之前必须拿到完整结果
+     */
+    public CompletableFuture<Result> computeAsync(ImagePlus imp) {
+        return CompletableFuture.supplyAsync(() -> compute(imp));
+    }
+
+    public Result compute(ImagePlus imp) {
+        long t0 = System.nanoTime();
+        ImageStack stack = imp.getStack();
+        int nChannels = perChannel ? imp.getNChannels() : 1;
+        int nPlanes = stack.getSize();
+        int[] planeChannel = new int[nPlanes + 1];
+        for (int i = 1; i <= nPlanes; i++) {
+            planeChannel[i] = perChannel ? imp.convertIndexToPosition(i)[0] - 1 : 0;
+        }
+
+        double[] factors = new double[nChannels];
+        int sampled = 0;
+        for (int c = 0; c < nChannels; c++) {
+            int[] planes = samplePlanes(planeChannel, c);
+            sampled += planes.length;
+            double value = (mode == Mode.MAX) ? max(stack, planes) : percentile(stack, planes);
+            factors[c] = (value <= 0) ? 1.0 : value;
+        }
+
+        double[] planeFactors = new double[nPlanes + 1];
+        for (int i = 1; i <= nPlanes; i++) planeFactors[i] = factors[planeChannel[i]];
+
+        return new Result(factors, planeFactors, describe(sampled, nPlanes, factors), System.nanoTime() - t0);
+    }
+
+    /**
+     * 某个通道 (或全部平面) 里均匀抽取的平面索引
+     */
+    private int[] samplePlanes(int[] planeChannel, int channel) {
+        int[] all = IntStream.range(1, planeChannel.length).filter(i -> planeChannel[i] == channel).toArray();
+        if (samplePlanes <= 0 || all.length <= samplePlanes) return all;
+        int[] picked = new int[samplePlanes];
+        for (int k = 0; k < samplePlanes; k++) {
+            picked[k] = all[(int) ((long) k * all.length / samplePlanes)];
+        }
+        return picked;
+    }
+
+    private double max(ImageStack stack, int[] planes) {
+        int stride = Math.max(1, pixelStride);
+        return IntStream.of(planes).parallel().mapToDouble(i -> {
+            Object p = stack.getPixels(i);
+            double m = Double.NEGATIVE_INFINITY;
+            if (p instanceof byte[]) {
+                byte[] a = (byte[]) p;
+                for (int j = 0; j < a.length; j += stride) m = Math.max(m, a[j] & 0xff);
+            } else if (p instanceof short[]) {
+                short[] a = (short[]) p;
+                for (int j = 0; j < a.length; j += stride) m = Math.max(m, a[j] & 0xffff);
+            } else if (p instanceof float[]) {
+                float[] a = (float[]) p;
+                for (int j = 0; j < a.length; j += stride) if (a[j] > m) m = a[j];
+            } else {
+                m = stack.getProcessor(i).getStatistics().max;
+            }
+            return m;
+        }).max().orElse(0);
+    }
+
+    private double percentile(ImageStack stack, int[] planes) {
+        if (planes.length == 0) return 0;
+        int stride = Math.max(1, pixelStride);
+        Object first = stack.getPixels(planes[0]);
+
+        if (first instanceof byte[] || first instanceof short[]) {
+            int bins = (first instanceof byte[]) ? 256 : 65536;
+            long[] hist = IntStream.of(planes).parallel().mapToObj(i -> {
+                long[] h = new long[bins];
+                Object p = stack.getPixels(i);
+                if (p instanceof byte[]) {
+                    byte[] a = (byte[]) p;
+                    for (int j = 0; j < a.length; j += stride) h[a[j] & 0xff]++;
+                } else {
+                    short[] a = (short[]) p;
+                    for (int j = 0; j < a.length; j += stride) h[a[j] & 0xffff]++;
+                }
+                return h;
+            }).reduce(new long[bins], Normalization::merge);
+            return quantile(hist, 0, 1, true);
+        }
+
+        // 32-bit：先求范围，再在 [min, max] 上建直方图
+        double lo = IntStream.of(planes).parallel().mapToDouble(i -> {
+            float[] a = floatPixels(stack, i);
+            double m = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < a.length; j += stride) if (a[j] < m) m = a[j];
+            return m;
+        }).min().orElse(0);
+        double hi = max(stack, planes);
+        if (!(hi > lo)) return hi;
+        double binWidth = (hi - lo) / FLOAT_BINS;
+
+        long[] hist = IntStream.of(planes).parallel().mapToObj(i -> {
+            long[] h = new long[FLOAT_BINS];
+            float[] a = floatPixels(stack, i);
+            for (int j = 0; j < a.length; j += stride) {
+                if (Float.isNaN(a[j])) continue;
+                int bin = (int) ((a[j] - lo) / binWidth);
+                h[Math.max(0, Math.min(FLOAT_BINS - 1, bin))]++;
+            }
+            return h;
+        }).reduce(new long[FLOAT_BINS], Normalization::merge);
+        return quantile(hist, lo, binWidth, false);
+    }
+
+    private static float[] floatPixels(ImageStack stack, int index) {
+        Object p = stack.getPixels(index);
+        return (p instanceof float[]) ? (float[]) p : (float[]) stack.getProcessor(index).convertToFloat().getPixels();
+    }
+
+    private static long[] merge(long[] a, long[] b) {
+        long[] out = new long[a.length];
+        for (int k = 0; k < a.length; k++) out[k] = a[k] + b[k];
+        return out;
+    }
+
+    /**
+     * 直方图上的分位数，返回所在 bin 的上沿 (整数直方图即像素值本身)
+     */
+    private double quantile(long[] hist, double lo, double binWidth, boolean integerBins) {
+        long total = 0;
+        for (long h : hist) total += h;
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long cum = 0;
+        for (int k = 0; k < hist.length; k++) {
+            cum += hist[k];
+            if (cum >= target && hist[k] > 0) {
+                return integerBins ? k : lo + (k + 1) * binWidth;
+            }
+        }
+        return lo + hist.length * binWidth;
+    }
+
+    private String describe(int sampled, int nPlanes, double[] factors) {
+        StringBuilder sb = new StringBuilder("Normalization: ");
+        sb.append(mode == Mode.MAX ? "max" : String.format(Locale.US, "p%.3g", percentile));
+        sb.append(perChannel ? ", per channel" : ", global");
+        sb.append(", ").append(sampled).append('/').append(nPlanes).append(" planes");
+        if (pixelStride > 1) sb.append(", pixel stride ").append(pixelStride);
+        sb.append(" → factor");
+        if (factors.length > 1) sb.append('s');
+        for (int c = 0; c < factors.length; c++) {
+            sb.append(c == 0 ? " " : ", ");
+            if (factors.length > 1) sb.append('C').append(c + 1).append('=');
+            sb.append(String.format(Locale.US, "%.6g", factors[c]));
+        }
+        return sb.toString();
+    }
+
+    public static final class Result {
+        private final double[] channelFactors;
+        private final double[] planeFactors;
+        private final String description;
+        private final long nanos;
+
+        Result(double[] channelFactors, double[] planeFactors, String description, long nanos) {
+            this.channelFactors = channelFactors;
+            this.planeFactors = planeFactors;
+            this.description = description;
+            this.nanos = nanos;
+        }
+
+        /**
+         * 每个栈索引 (1-based) 对应的归一化系数
+         */
+        public double[] planeFactors() {
+            return planeFactors;
+        }
+
+        public double[] channelFactors() {
+            return channelFactors;
+        }
+
+        public long elapsedNanos() {
+            return nanos;
+        }
+
+        /**
+         * 用于日志的完整说明 (方式、抽样、最终系数)，保证结果可复现
+         */
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+}
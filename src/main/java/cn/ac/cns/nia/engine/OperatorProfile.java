@@ -0,0 +1,472 @@
+package cn.ac.cns.nia.engine;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 算子级 profiling 报告：用开启 ORT profiling 的独立 Session 推理少量平面，解析 trace (Chrome trace 格式的 JSON)，
+ * 按算子类型和节点汇总 kernel 耗时、占比、输出 Tensor 的内存分配、执行后端 (provider) 和线程分配。
+ * 预热那次 run 不计入 (Session 初始化和首次内存规划会拉高它)。
+ * trace 文件保留下来，可以在 chrome://tracing 或 ui.perfetto.dev 里看完整时间线。
+ */
+public final class OperatorProfile {
+
+    /** 报告里列出的最慢节点数 */
+    static final int TOP_NODES = 10;
+
+    /**
+     * 一种算子类型或一个节点的汇总
+     */
+    public static final class Entry {
+        public final String name;
+        public final String opType;
+        private final Set<String> providers = new TreeSet<>();
+        private final Set<String> threadPools = new TreeSet<>();
+        private int maxThreads = 1;
+        private long calls;
+        private long micros;
+        private long outputBytes;
+        private String outputShape = "";
+
+        Entry(String name, String opType) {
+            this.name = name;
+            this.opType = opType;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public double millis() {
+            return micros / 1000.0;
+        }
+
+        /**
+         * 所有调用的输出 Tensor 字节数之和 (每次调用都要重新分配或从 arena 取)
+         */
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+
+        /**
+         * 执行后端，去掉 "ExecutionProvider" 后缀，如 CPU / CUDA
+         */
+        public String provider() {
+            return String.join("+", providers);
+        }
+
+        /**
+         * 线程分配：线程池名 (去掉 session-N- 前缀) 和最多同时参与的线程数；单线程时直接在调用线程上执行
+         */
+        public String threads() {
+            if (threadPools.isEmpty()) return "caller";
+            return String.join("+", threadPools) + " x" + maxThreads;
+        }
+    }
+
+    private final String model;
+    private final File traceFile;
+    private final Map<String, Entry> ops = new LinkedHashMap<>();
+    private final Map<String, Entry> nodes = new LinkedHashMap<>();
+    private int planes;
+    private int runs;
+    private long runMicros;
+    private long kernelMicros;
+    private long initMicros;
+
+    private OperatorProfile(String model, File traceFile) {
+        this.model = model;
+        this.traceFile = traceFile;
+    }
+
+    /**
+     * 推理 imp 中最多 maxPlanes 个平面 (均匀抽样，<= 0 表示全部) 并汇总 trace
+     *
+     * @param planeFactors 每个栈索引 (1-based) 的归一化系数，见 Normalization.Result#planeFactors
+     * @param tileSize     分块大小，0 表示整帧
+     * @param traceFile    trace 的保存位置 (ORT 生成的带日期的文件会移到这里)
+     */
+    public static OperatorProfile profile(ModelSource model, EngineOptions options, ImagePlus imp,
+                                          double[] planeFactors, int tileSize, int overlap, int maxPlanes,
+                                          File traceFile) throws Exception {
+        File target = traceFile.getAbsoluteFile();
+        EngineOptions profiled = options.copy();
+        profiled.profilePrefix = new File(target.getParentFile(),
+                target.getName().replaceFirst("\\.json$", "")).getPath();
+
+        int count;
+        String written;
+        try (InferenceEngine engine = new InferenceEngine(model, profiled)) {
+            engine.warmUp();
+            ImageStack stack = imp.getStack();
+            int width = stack.getWidth();
+            int height = stack.getHeight();
+            int n = stack.getSize();
+            count = (maxPlanes <= 0) ? n : Math.min(n, maxPlanes);
+            for (int k = 0; k < count; k++) {
+                int index = 1 + (int) ((long) k * n / count);
+                float[] input = engine.preprocess(stack.getProcessor(index), planeFactors[index]);
+                engine.inferTiled(input, width, height, tileSize, overlap);
+            }
+            written = engine.endProfiling();
+        }
+        Files.move(new File(written).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        OperatorProfile report = parse(model.displayName(), target);
+        report.planes = count;
+        return report;
+    }
+
+    /**
+     * 解析 ORT 写出的 trace：Session 类事件给出初始化和每次 run 的耗时，
+     * Node 类的 *_kernel_time 事件带算子类型、provider、输出大小和线程调度统计
+     */
+    static OperatorProfile parse(String model, File traceFile) throws IOException {
+        String text = new String(Files.readAllBytes(traceFile.toPath()), StandardCharsets.UTF_8);
+        Object root = new JsonReader(text).read();
+        if (!(root instanceof List)) throw new IOException("Not a profiling trace: " + traceFile);
+        List<?> events = (List<?>) root;
+
+        OperatorProfile report = new OperatorProfile(model, traceFile);
+        List<long[]> modelRuns = new ArrayList<>();
+        for (Object e : events) {
+            Map<?, ?> event = (Map<?, ?>) e;
+            if (!"Session".equals(event.get("cat"))) continue;
+            if ("model_run".equals(event.get("name"))) {
+                modelRuns.add(new long[]{number(event.get("ts")), number(event.get("dur"))});
+            } else if ("session_initialization".equals(event.get("name"))) {
+                report.initMicros += number(event.get("dur"));
+            }
+        }
+        // 第一次 run 是 warmUp，只有它一次时 (解析别处来的 trace) 才保留
+        modelRuns.sort(Comparator.comparingLong(r -> r[0]));
+        long warmUpEnd = modelRuns.size() > 1 ? modelRuns.get(0)[0] + modelRuns.get(0)[1] : Long.MIN_VALUE;
+        for (long[] run : modelRuns) {
+            if (run[0] < warmUpEnd) continue;
+            report.runs++;
+            report.runMicros += run[1];
+        }
+
+        for (Object e : events) {
+            Map<?, ?> event = (Map<?, ?>) e;
+            Object args = event.get("args");
+            if (!"Node".equals(event.get("cat")) || !(args instanceof Map)) continue;
+            Map<?, ?> a = (Map<?, ?>) args;
+            // fence_before / fence_after 事件只有 op_name
+            if (!a.containsKey("provider") || number(event.get("ts")) < warmUpEnd) continue;
+
+            String node = String.valueOf(event.get("name")).replaceFirst("_kernel_time$", "");
+            String opType = String.valueOf(a.get("op_name"));
+            long micros = number(event.get("dur"));
+            report.kernelMicros += micros;
+            for (Entry entry : new Entry[]{
+                    report.ops.computeIfAbsent(opType, k -> new Entry(k, k)),
+                    report.nodes.computeIfAbsent(node, k -> new Entry(k, opType))}) {
+                entry.calls++;
+                entry.micros += micros;
+                entry.outputBytes += number(a.get("output_size"));
+                entry.outputShape = shape(a.get("output_type_shape"));
+                entry.providers.add(String.valueOf(a.get("provider")).replace("ExecutionProvider", ""));
+                addThreads(entry, a.get("thread_scheduling_stats"));
+            }
+        }
+        return report;
+    }
+
+    /**
+     * 线程调度统计：main_thread 给出线程池，sub_threads 里 num_run > 0 的线程也参与了这个算子；
+     * 没有线程池 (intra-op 线程数为 1) 时是空字符串
+     */
+    private static void addThreads(Entry entry, Object stats) {
+        if (!(stats instanceof Map)) return;
+        Object main = ((Map<?, ?>) stats).get("main_thread");
+        if (main instanceof Map) {
+            Object pool = ((Map<?, ?>) main).get("thread_pool_name");
+            if (pool != null && !"".equals(pool)) entry.threadPools.add(String.valueOf(pool).replaceFirst("^session-\\d+-", ""));
+        }
+        int threads = 1;
+        Object subThreads = ((Map<?, ?>) stats).get("sub_threads");
+        if (subThreads instanceof Map) {
+            for (Object sub : ((Map<?, ?>) subThreads).values()) {
+                if (sub instanceof Map && number(((Map<?, ?>) sub).get("num_run")) > 0) threads++;
+            }
+        }
+        entry.maxThreads = Math.max(entry.maxThreads, threads);
+    }
+
+    // [{"float": [2, 64, 96, 128]}] -> float[2,64,96,128]
+    private static String shape(Object typeShapes) {
+        if (!(typeShapes instanceof List)) return "";
+        StringBuilder sb = new StringBuilder();
+        for (Object o : (List<?>) typeShapes) {
+            if (!(o instanceof Map)) continue;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+                if (sb.length() > 0) sb.append(' ');
+                sb.append(e.getKey()).append('[');
+                List<?> dims = e.getValue() instanceof List ? (List<?>) e.getValue() : new ArrayList<>();
+                for (int i = 0; i < dims.size(); i++) {
+                    if (i > 0) sb.append(',');
+                    sb.append(number(dims.get(i)));
+                }
+                sb.append(']');
+            }
+        }
+        return sb.toString();
+    }
+
+    // trace 里的数值有的是 JSON 数字，有的是字符串 (output_size 等)
+    private static long number(Object value) {
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 按总耗时从高到低
+     */
+    public List<Entry> getOps() {
+        return sorted(ops.values());
+    }
+
+    public List<Entry> getNodes() {
+        return sorted(nodes.values());
+    }
+
+    private static List<Entry> sorted(Collection<Entry> entries) {
+        List<Entry> list = new ArrayList<>(entries);
+        list.sort(Comparator.comparingLong((Entry e) -> e.micros).reversed());
+        return list;
+    }
+
+    public File getTraceFile() {
+        return traceFile;
+    }
+
+    /**
+     * kernel 耗时占 model_run 的比例；其余是框架开销 (调度、输入输出拷贝、内存分配)
+     */
+    public double kernelShare() {
+        return runMicros > 0 ? (double) kernelMicros / runMicros : 0;
+    }
+
+    /**
+     * 写进 Log 和报告文件的表格
+     */
+    public String table() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT,
+                "Operator profile (%s, %d planes, %d runs): model_run %s, kernels %s (%.1f%%), session init %s",
+                model, planes, runs, ms(runMicros), ms(kernelMicros), 100 * kernelShare(), ms(initMicros)));
+        List<Entry> opList = getOps();
+        int width = nameWidth(opList, "Op type");
+        sb.append('\n').append(String.format(Locale.ROOT, "  %-" + width + "s %7s %10s %7s %9s %12s  %-8s %s",
+                "Op type", "Calls", "Total ms", "Share", "Avg ms", "Alloc MB/run", "Provider", "Threads"));
+        for (Entry e : opList) {
+            sb.append('\n').append(String.format(Locale.ROOT, "  %-" + width + "s %7d %10.1f %6.1f%% %9.2f %12.1f  %-8s %s",
+                    e.name, e.calls, e.millis(), share(e), e.millis() / e.calls, perRunMb(e), e.provider(), e.threads()));
+        }
+
+        List<Entry> nodeList = getNodes();
+        nodeList = nodeList.subList(0, Math.min(TOP_NODES, nodeList.size()));
+        width = nameWidth(nodeList, "Slowest nodes");
+        int opWidth = 7;
+        for (Entry e : nodeList) opWidth = Math.max(opWidth, e.opType.length());
+        sb.append('\n').append(String.format(Locale.ROOT, "  %-" + width + "s %-" + opWidth + "s %10s %7s %12s  %-8s %-14s %s",
+                "Slowest nodes", "Op type", "Total ms", "Share", "Alloc MB/run", "Provider", "Threads", "Output"));
+        for (Entry e : nodeList) {
+            sb.append('\n').append(String.format(Locale.ROOT, "  %-" + width + "s %-" + opWidth + "s %10.1f %6.1f%% %12.1f  %-8s %-14s %s",
+                    e.name, e.opType, e.millis(), share(e), perRunMb(e), e.provider(), e.threads(), e.outputShape));
+        }
+        sb.append('\n').append("Trace: ").append(traceFile.getPath()).append(" (chrome://tracing or ui.perfetto.dev)");
+        return sb.toString();
+    }
+
+    public void write(File file) throws IOException {
+        try (Writer w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            w.write(table());
+            w.write("\n");
+        }
+    }
+
+    private double share(Entry e) {
+        return kernelMicros > 0 ? 100.0 * e.micros / kernelMicros : 0;
+    }
+
+    private double perRunMb(Entry e) {
+        return runs > 0 ? e.outputBytes / (double) runs / (1 << 20) : 0;
+    }
+
+    private static int nameWidth(List<Entry> entries, String header) {
+        int width = header.length();
+        for (Entry e : entries) width = Math.max(width, e.name.length());
+        return width;
+    }
+
+    private static String ms(long micros) {
+        return String.format(Locale.ROOT, "%.1fms", micros / 1000.0);
+    }
+
+    /**
+     * 只够读 trace 的 JSON 解析：对象 → LinkedHashMap，数组 → ArrayList，数字 → Long / Double
+     */
+    private static final class JsonReader {
+        private final String s;
+        private int pos;
+
+        JsonReader(String s) {
+            this.s = s;
+        }
+
+        Object read() throws IOException {
+            Object value = value();
+            skipSpace();
+            if (pos != s.length()) throw error("trailing data");
+            return value;
+        }
+
+        private Object value() throws IOException {
+            skipSpace();
+            if (pos >= s.length()) throw error("unexpected end");
+            char c = s.charAt(pos);
+            switch (c) {
+                case '{': return object();
+                case '[': return array();
+                case '"': return string();
+                case 't': return literal("true", Boolean.TRUE);
+                case 'f': return literal("false", Boolean.FALSE);
+                case 'n': return literal("null", null);
+                default: return number();
+            }
+        }
+
+        private Map<String, Object> object() throws IOException {
+            Map<String, Object> map = new LinkedHashMap<>();
+            pos++;
+            skipSpace();
+            if (peek() == '}') {
+                pos++;
+                return map;
+            }
+            while (true) {
+                skipSpace();
+                String key = string();
+                skipSpace();
+                expect(':');
+                map.put(key, value());
+                skipSpace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    return map;
+                }
+            }
+        }
+
+        private List<Object> array() throws IOException {
+            List<Object> list = new ArrayList<>();
+            pos++;
+            skipSpace();
+            if (peek() == ']') {
+                pos++;
+                return list;
+            }
+            while (true) {
+                list.add(value());
+                skipSpace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect(']');
+                    return list;
+                }
+            }
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) break;
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > s.length()) throw error("bad escape");
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private Object number() throws IOException {
+            int start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+            String token = s.substring(start, pos);
+            if (token.isEmpty()) throw error("unexpected character");
+            try {
+                return token.matches("-?\\d+") ? (Object) Long.parseLong(token) : (Object) Double.parseDouble(token);
+            } catch (NumberFormatException e) {
+                throw error("bad number " + token);
+            }
+        }
+
+        private Object literal(String word, Object value) throws IOException {
+            if (!s.startsWith(word, pos)) throw error("unexpected character");
+            pos += word.length();
+            return value;
+        }
+
+        private void expect(char c) throws IOException {
+            if (peek() != c) throw error("expected '" + c + "'");
+            pos++;
+        }
+
+        private char peek() {
+            return pos < s.length() ? s.charAt(pos) : 0;
+        }
+
+        private void skipSpace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        private IOException error(String message) {
+            return new IOException("Malformed trace JSON at " + pos + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 优化模型的磁盘缓存
+ * 第一次用某个模型时让 ORT 做图优化并把结果存成 .onnx (setOptimizedModelFilePath)，
+ * 之后的 Session 直接加载优化过的图，跳过常量折叠 / 算子融合等耗时步骤。
+ * 文件名 = 模型内容 SHA-256 + ORT 版本 + CPU 架构 + 保存时的优化级别，任何一项变化都会换一个文件 (旧文件自然失效)。
+ * ALL_OPT 里的布局变换 (NCHWc) 与具体 CPU 指令集相关，因此最多只保存 EXTENDED 级别的结果，
+ * 加载时再按请求的级别跑一遍 (只剩布局变换，很快)，同一个缓存目录可以在不同机器之间共享。
+ * 缓存文件损坏或不可用时退回普通加载，不影响推理。
+ */
+public final class OptimizedModelCache {
+
+    private static final String FORMAT_VERSION = "v1";
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private OptimizedModelCache() {
+    }
+
+    /**
+     * 默认目录：-Dnia.cache.dir，否则 ~/.nia/ort-cache
+     */
+    public static File defaultDirectory() {
+        String dir = System.getProperty("nia.cache.dir");
+        if (dir != null && !dir.isEmpty()) return new File(dir);
+        return new File(new File(System.getProperty("user.home"), ".nia"), "ort-cache");
+    }
+
+    static OrtSession createSession(OrtEnvironment env, ModelSource model, EngineOptions options) throws OrtException {
+        File cached = null;
+        try {
+            cached = cachedModel(env, model, options);
+        } catch (Exception e) {
+            IJ.log("Optimized model cache unavailable (" + e.getMessage() + "), optimizing in memory");
+        }
+
+        try (OrtSession.SessionOptions opts = options.toSessionOptions()) {
+            if (cached != null) {
+                try {
+                    return env.createSession(cached.getPath(), opts);
+                } catch (OrtException e) {
+                    IJ.log("Discarding unreadable optimized model " + cached.getName() + ": " + e.getMessage());
+                    delete(cached);
+                }
+            }
+            return model.createSession(env, opts);
+        }
+    }
+
+    /**
+     * 返回缓存文件；不存在时先生成。加锁避免多个 Session 同时生成同一个文件 (跨进程靠原子改名)
+     */
+    private static synchronized File cachedModel(OrtEnvironment env, ModelSource model, EngineOptions options)
+            throws IOException, OrtException {
+        OptLevel saveLevel = (options.optLevel == OptLevel.ALL_OPT) ? OptLevel.EXTENDED_OPT : options.optLevel;
+        File dir = options.cacheDirectory != null ? options.cacheDirectory : defaultDirectory();
+        String name = model.contentHash() + "-ort" + env.getVersion() + "-" + System.getProperty("os.arch")
+                + "-" + saveLevel.name().toLowerCase(Locale.ROOT) + "-" + FORMAT_VERSION + ".onnx";
+        File file = new File(dir, name);
+        if (file.isFile() && file.length() > 0) {
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        long t0 = System.nanoTime();
+        // 扩展名不是 .ort，ORT 按 ONNX 格式保存
+        File tmp = File.createTempFile(name, ".tmp", dir);
+        try {
+            try (OrtSession.SessionOptions opts = options.toSessionOptions(saveLevel)) {
+                opts.setOptimizedModelFilePath(tmp.getPath());
+                model.createSession(env, opts).close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            delete(tmp);
+        }
+        IJ.log("Optimized model cached: " + file + " (" + (System.nanoTime() - t0) / 1000000 + "ms)");
+        prune(dir, file);
+        return file;
+    }
+
+    /**
+     * 删除 30 天没用过的缓存 (每次使用都会刷新修改时间)
+     */
+    private static void prune(File dir, File keep) {
+        File[] files = dir.listFiles((d, n) -> n.endsWith(".onnx") || n.endsWith(".tmp"));
+        if (files == null) return;
+        long cutoff = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        for (File f : files) {
+            if (!f.equals(keep) && f.lastModified() < cutoff) delete(f);
+        }
+    }
+
+    private static void delete(File f) {
+        try {
+            Files.deleteIfExists(f.toPath());
+        } catch (IOException e) {
+            // 下次再清理
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package cn.ac.cns.nia.engine;
+
+import java.util.stream.IntStream;
+
+/**
+ * 像素预处理 / 后处理内核
+ * 按位深特化 (8-bit byte[] / 16-bit short[] / 32-bit float[])，一次遍历完成：
+ * - normalize：原始像素 → 归一化 float (直接写进目标数组，不经过 convertToFloat 的中间拷贝)；
+ * - denormalize：模型输出 → 乘回系数、截断、取整并窄化，直接写进栈里已有的像素数组。
+ * 取整规则与 ImageJ 的 convertToByte(false) / convertToShort(false) 完全一致，结果逐像素相同。
+ * 大图按块拆分到多个核上并行；用 -Pvector (JDK 17+) 构建并以
+ * --add-modules jdk.incubator.vector 启动时，自动切换到 Vector API 实现。
+ */
+public final class PixelKernels {
+
+    static final int CHUNK = 1 << 16;
+    static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    /**
+     * 一段 [from, to) 像素的内核实现 (标量或向量)
+     */
+    interface RangeKernels {
+        void normalize(Object src, int from, int to, float[] dst, int dstOffset, float scale);
+
+        void denormalize(float[] src, int srcOffset, Object dst, int from, int to, float scale);
+    }
+
+    private static final RangeKernels SCALAR = new Scalar();
+    private static final RangeKernels KERNELS = loadKernels();
+
+    private PixelKernels() {
+    }
+
+    /**
+     * 当前是否使用 Vector API 实现
+     */
+    public static boolean isVectorized() {
+        return KERNELS != SCALAR;
+    }
+
+    public static boolean isSupported(Object pixels) {
+        return pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[];
+    }
+
+    /**
+     * 归一化：dst[dstOffset + i] = pixels[i] / normScale
+     */
+    public static void normalize(Object pixels, float[] dst, int dstOffset, float normScale) {
+        int length = length(pixels);
+        forEachChunk(length, (from, to) -> KERNELS.normalize(pixels, from, to, dst, dstOffset, normScale));
+    }
+
+    /**
+     * 反归一化并写回：dstPixels[i] = narrow(max(0, src[srcOffset + i] * normScale))
+     */
+    public static void denormalize(float[] src, int srcOffset, Object dstPixels, float normScale) {
+        int length = length(dstPixels);
+        forEachChunk(length, (from, to) -> KERNELS.denormalize(src, srcOffset, dstPixels, from, to, normScale));
+    }
+
+    private interface RangeTask {
+        void run(int from, int to);
+    }
+
+    private static void forEachChunk(int length, RangeTask task) {
+        if (length < PARALLEL_THRESHOLD) {
+            task.run(0, length);
+            return;
+        }
+        int chunks = (length + CHUNK - 1) / CHUNK;
+        IntStream.range(0, chunks).parallel()
+                .forEach(c -> task.run(c * CHUNK, Math.min(length, (c + 1) * CHUNK)));
+    }
+
+    private static int length(Object pixels) {
+        if (pixels instanceof byte[]) return ((byte[]) pixels).length;
+        if (pixels instanceof short[]) return ((short[]) pixels).length;
+        if (pixels instanceof float[]) return ((float[]) pixels).length;
+        throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass().getSimpleName());
+    }
+
+    private static RangeKernels loadKernels() {
+        try {
+            Class<?> c = Class.forName("cn.ac.cns.nia.engine.VectorKernels");
+            return (RangeKernels) c.getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            // 没有用 -Pvector 构建，或运行时没有 jdk.incubator.vector 模块
+            return SCALAR;
+        }
+    }
+
+    /**
+     * 标量实现；向量实现也用它处理尾部
+     */
+    static final class Scalar implements RangeKernels {
+
+        @Override
+        public void normalize(Object src, int from, int to, float[] dst, int dstOffset, float scale) {
+            if (src instanceof byte[]) {
+                byte[] p = (byte[]) src;
+                for (int i = from; i < to; i++) dst[dstOffset + i] = (p[i] & 0xff) / scale;
+            } else if (src instanceof short[]) {
+                short[] p = (short[]) src;
+                for (int i = from; i < to; i++) dst[dstOffset + i] = (p[i] & 0xffff) / scale;
+            } else {
+                float[] p = (float[]) src;
+                for (int i = from; i < to; i++) dst[dstOffset + i] = p[i] / scale;
+            }
+        }
+
+        @Override
+        public void denormalize(float[] src, int srcOffset, Object dst, int from, int to, float scale) {
+            if (dst instanceof byte[]) {
+                // 同 ByteProcessor.setPixels(int, FloatProcessor)
+                byte[] p = (byte[]) dst;
+                for (int i = from; i < to; i++) {
+                    float v = src[srcOffset + i] * scale;
+                    if (v < 0) v = 0;
+                    v += 0.5f;
+                    if (v > 255f) v = 255f;
+                    p[i] = (byte) (int) v;
+                }
+            } else if (dst instanceof short[]) {
+                // 同 TypeConverter.convertFloatToShort (不缩放)
+                short[] p = (short[]) dst;
+                for (int i = from; i < to; i++) {
+                    float v = src[srcOffset + i] * scale;
+                    double value = (v < 0) ? 0 : v;
+                    if (value > 65535.0) value = 65535.0;
+                    p[i] = (short) (value + 0.5);
+                }
+            } else {
+                float[] p = (float[]) dst;
+                for (int i = from; i < to; i++) {
+                    float v = src[srcOffset + i] * scale;
+                    p[i] = (v < 0) ? 0 : v;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package cn.ac.cns.nia.engine;
+
+/**
+ * 归一化空间的平面推理 (StackPipeline 的推理阶段只依赖这个接口)
+ * 本进程内是 InferenceEngine，进程外是 RemoteWorkerPool 的一个 worker 进程。
+ */
+public interface PlaneInference {
+
+    /**
+     * 一次最多能送入的平面数，动态 batch 为 Integer.MAX_VALUE
+     */
+    int getMaxBatchSize();
+
+    /**
+     * count 张平面依次排在 packed 中，结果按同样的顺序返回 (可能直接覆盖 packed)
+     */
+    float[] inferPlanes(float[] packed, int count, int width, int height, RunMetrics.Sample sample) throws Exception;
+
+    /**
+     * 单张平面，超过 tileSize 时分块推理 (见 InferenceEngine.inferTiled)
+     */
+    float[] inferTiled(float[] pixels, int width, int height, int tileSize, int overlap,
+                       RunMetrics.Sample sample) throws Exception;
+}
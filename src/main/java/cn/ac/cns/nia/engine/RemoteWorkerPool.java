@@ -0,0 +1,448 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.OrtEnvironment;
+import ij.IJ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程外推理：每个 worker 是一个独立的 JVM (InferenceWorker)，各自持有一个预热好的 Session。
+ * ORT 的 Native 内存不占 ImageJ 进程，worker 崩溃 (Native OOM / 段错误) 也不会带走用户的 ImageJ 会话；
+ * 多路服务器上可以用 numactl 把每个 worker 绑到一个 NUMA 节点 (CPU + 内存)。
+ * 通信只走回环地址上的 socket，握手令牌通过 worker 的 stdin 传递。
+ * 调度与 EnginePool 相同 (StackPipeline 的每个推理线程借一个 worker)；结果按栈索引写回，完成顺序无关。
+ * worker 中途退出时重启它并重发同一批平面，同一批连续失败 MAX_ATTEMPTS 次才报错；
+ * worker 返回的推理错误 (模型本身的问题) 不重试。
+ */
+public final class RemoteWorkerPool implements InferencePool, AutoCloseable {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long START_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final String WORKER_CLASS = InferenceWorker.class.getName();
+
+    private static RemoteWorkerPool shared;
+    private static String sharedKey;
+    private static boolean hookInstalled;
+
+    private final List<String> workerArgs;
+    private final boolean pinNuma;
+    private final int numaNodes;
+    private final String token;
+    private final ServerSocket server;
+    private final Worker[] workers;
+    private final BlockingQueue<Worker> idle;
+    private volatile int maxBatchSize = Integer.MAX_VALUE;
+    private volatile boolean fp16;
+    private volatile boolean closed;
+
+    private RemoteWorkerPool(int processes, List<String> workerArgs, boolean pinNuma) throws IOException {
+        this.workerArgs = workerArgs;
+        this.numaNodes = pinNuma ? numaNodes() : 0;
+        this.pinNuma = numaNodes > 1 && hasNumactl();
+        if (pinNuma && !this.pinNuma) IJ.log("NUMA pinning unavailable (needs numactl and more than one node)");
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : random) sb.append(String.format("%02x", b));
+        this.token = sb.toString();
+        this.server = new ServerSocket(0, processes, InetAddress.getLoopbackAddress());
+        this.workers = new Worker[processes];
+        this.idle = new ArrayBlockingQueue<>(processes);
+        try {
+            // 所有 worker 同时启动 (各自加载模型)，再逐个等它们连回来
+            for (int i = 0; i < processes; i++) workers[i] = new Worker(i);
+            for (Worker w : workers) w.spawn();
+            for (Worker w : workers) w.connect();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        idle.addAll(Arrays.asList(workers));
+    }
+
+    /**
+     * 启动 processes 个 worker 进程，每个加载 model；pinNuma 时按编号轮流绑定到各 NUMA 节点
+     */
+    public static RemoteWorkerPool start(ModelSource model, EngineOptions options, int processes, boolean pinNuma)
+            throws IOException {
+        return new RemoteWorkerPool(Math.max(1, processes), InferenceWorker.args(model, options), pinNuma);
+    }
+
+    /**
+     * 恒等 worker (不加载模型)，用于测试传输与重试；crashAfter > 0 时每个 worker 处理这么多请求后崩溃
+     */
+    public static RemoteWorkerPool mock(int processes, int crashAfter) throws IOException {
+        List<String> args = new ArrayList<>(Arrays.asList("--mock"));
+        if (crashAfter > 0) {
+            args.add("--crash-after");
+            args.add(String.valueOf(crashAfter));
+        }
+        return new RemoteWorkerPool(Math.max(1, processes), args, false);
+    }
+
+    /**
+     * 进程级共享：同样的模型与配置直接复用已启动的 worker (热启动)，否则关闭旧的再启动新的
+     */
+    public static synchronized RemoteWorkerPool shared(ModelSource model, EngineOptions options, int processes,
+                                                       boolean pinNuma) throws IOException {
+        String key = model.key() + "|" + options + "|" + processes + "|" + pinNuma;
+        if (shared != null && key.equals(sharedKey) && shared.isAlive()) return shared;
+        if (shared != null) shared.close();
+        shared = null;
+        if (!hookInstalled) {
+            Runtime.getRuntime().addShutdownHook(new Thread(RemoteWorkerPool::shutdownShared, "NIA-Workers-Shutdown"));
+            hookInstalled = true;
+        }
+        shared = start(model, options, processes, pinNuma);
+        sharedKey = key;
+        return shared;
+    }
+
+    private static synchronized void shutdownShared() {
+        if (shared != null) shared.close();
+        shared = null;
+    }
+
+    private boolean isAlive() {
+        return !closed;
+    }
+
+    @Override
+    public int getWorkers() {
+        return workers.length;
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+
+    @Override
+    public boolean isFp16() {
+        return fp16;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    public PlaneInference acquire() throws InterruptedException {
+        return idle.take();
+    }
+
+    @Override
+    public void release(PlaneInference worker) {
+        if (worker != null) idle.offer((Worker) worker);
+    }
+
+    /**
+     * 例如 "4 worker processes pinned to 2 NUMA nodes, 1 restarts"
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(workers.length).append(" worker processes");
+        if (pinNuma) sb.append(" pinned to ").append(numaNodes).append(" NUMA nodes");
+        int restarts = getRestarts();
+        if (restarts > 0) sb.append(", ").append(restarts).append(" restarts");
+        return sb.toString();
+    }
+
+    /**
+     * 所有 worker 累计重启的次数
+     */
+    int getRestarts() {
+        int restarts = 0;
+        for (Worker w : workers) restarts += (w != null) ? w.restarts : 0;
+        return restarts;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        for (Worker w : workers) {
+            if (w != null) w.stop();
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
+
+    // ==========================================
+    // 启动参数
+    // ==========================================
+
+    private List<String> command(int index) {
+        List<String> cmd = new ArrayList<>();
+        if (pinNuma) {
+            int node = index % numaNodes;
+            cmd.addAll(Arrays.asList("numactl", "--cpunodebind=" + node, "--membind=" + node));
+        }
+        cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        cmd.add("-Djava.awt.headless=true");
+        cmd.add("-cp");
+        cmd.add(classPath());
+        cmd.add(WORKER_CLASS);
+        cmd.add("--port");
+        cmd.add(String.valueOf(server.getLocalPort()));
+        cmd.add("--id");
+        cmd.add(String.valueOf(index));
+        cmd.addAll(workerArgs);
+        return cmd;
+    }
+
+    /**
+     * 插件 jar、ORT、ImageJ 所在的位置 (ImageJ 的插件类加载器不在 java.class.path 里) + 当前 class path
+     */
+    private static String classPath() {
+        Set<String> entries = new LinkedHashSet<>();
+        for (Class<?> c : new Class<?>[]{InferenceWorker.class, OrtEnvironment.class, IJ.class}) {
+            try {
+                CodeSource source = c.getProtectionDomain().getCodeSource();
+                if (source != null) entries.add(new File(source.getLocation().toURI()).getPath());
+            } catch (Exception e) {
+                // 退回 java.class.path
+            }
+        }
+        for (String e : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            if (!e.isEmpty()) entries.add(e);
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static int numaNodes() {
+        File[] nodes = new File("/sys/devices/system/node").listFiles((d, n) -> n.matches("node\\d+"));
+        return nodes != null ? nodes.length : 0;
+    }
+
+    private static boolean hasNumactl() {
+        for (String dir : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+            if (new File(dir, "numactl").canExecute()) return true;
+        }
+        return false;
+    }
+
+    // ==========================================
+    // 单个 worker 进程
+    // ==========================================
+
+    private final class Worker implements PlaneInference {
+        private final int index;
+        private final InferenceWorker.FloatCodec codec = new InferenceWorker.FloatCodec();
+        private Process process;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private int restarts;
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        @Override
+        public float[] inferPlanes(float[] packed, int count, int width, int height, RunMetrics.Sample sample)
+                throws IOException {
+            return call(InferenceWorker.OP_PLANES, count, width, height, 0, 0, packed, sample);
+        }
+
+        @Override
+        public float[] inferTiled(float[] pixels, int width, int height, int tileSize, int overlap,
+                                  RunMetrics.Sample sample) throws IOException {
+            return call(InferenceWorker.OP_TILED, 1, width, height, tileSize, overlap, pixels, sample);
+        }
+
+        /**
+         * 发送一批平面并等待结果；连接断开 (进程退出) 时重启 worker 再重发
+         */
+        private float[] call(int op, int count, int width, int height, int tileSize, int overlap, float[] data,
+                             RunMetrics.Sample sample) throws IOException {
+            long t0 = System.nanoTime();
+            int n = count * width * height;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    if (socket == null) restart();
+                    out.writeInt(op);
+                    out.writeInt(count);
+                    out.writeInt(width);
+                    out.writeInt(height);
+                    out.writeInt(tileSize);
+                    out.writeInt(overlap);
+                    codec.write(out, data, n);
+                    out.flush();
+
+                    int status = in.readInt();
+                    if (status != InferenceWorker.OK) {
+                        throw new IllegalStateException("Worker " + index + ": " + in.readUTF());
+                    }
+                    float[] result = codec.read(in, n);
+                    if (sample != null) sample.add(RunMetrics.Stage.INFERENCE, System.nanoTime() - t0);
+                    return result;
+                } catch (IOException e) {
+                    String exit = describeExit();
+                    stop();
+                    if (closed) throw e;
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw new IOException("Worker " + index + " failed " + attempt + " times on the same "
+                                + count + " plane(s)" + exit, e);
+                    }
+                    IJ.log("⚠️ Worker " + index + " lost" + exit + ", restarting and retrying " + count + " plane(s)");
+                }
+            }
+        }
+
+        private void restart() throws IOException {
+            restarts++;
+            spawn();
+            connect();
+        }
+
+        private String describeExit() {
+            Process p = process;
+            if (p == null) return "";
+            try {
+                if (p.waitFor(500, TimeUnit.MILLISECONDS)) return " (exit code " + p.exitValue() + ")";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "";
+        }
+
+        void spawn() throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(command(index)).redirectErrorStream(true);
+            process = pb.start();
+            try (OutputStream stdin = process.getOutputStream()) {
+                stdin.write((token + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            // worker 的输出转到 ImageJ 日志
+            Process p = process;
+            Thread log = new Thread(() -> {
+                try (BufferedReader r = new BufferedReader(
+                        new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = r.readLine()) != null) IJ.log("[worker " + index + "] " + line);
+                } catch (IOException e) {
+                    // 进程已退出
+                }
+            }, "NIA-Worker-Log-" + index);
+            log.setDaemon(true);
+            log.start();
+        }
+
+        /**
+         * 等这个 worker 连回来。多个 worker 同时启动时先连上的可能是别的编号，交给对应的 Worker
+         */
+        void connect() throws IOException {
+            long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+            synchronized (server) {
+                while (socket == null) {
+                    if (!process.isAlive()) {
+                        throw new IOException("Worker " + index + " exited with code " + process.exitValue()
+                                + " before connecting");
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        process.destroyForcibly();
+                        throw new IOException("Worker " + index + " did not start within "
+                                + START_TIMEOUT_MILLIS / 1000 + "s");
+                    }
+                    server.setSoTimeout(500);
+                    Socket s;
+                    try {
+                        s = server.accept();
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    handshake(s);
+                }
+            }
+        }
+
+        void stop() {
+            try {
+                if (out != null && process != null && process.isAlive()) {
+                    out.writeInt(InferenceWorker.OP_QUIT);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // 已断开
+            }
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+            socket = null;
+            in = null;
+            out = null;
+            Process p = process;
+            if (p != null) {
+                try {
+                    if (!p.waitFor(2, TimeUnit.SECONDS)) p.destroyForcibly();
+                } catch (InterruptedException e) {
+                    p.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * 校验令牌并把连接交给对应编号的 worker；不认识的连接直接关闭
+     */
+    private void handshake(Socket s) {
+        try {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(10000);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+            if (in.readInt() != InferenceWorker.HELLO || !token.equals(in.readUTF())) throw new IOException("bad hello");
+            int id = in.readInt();
+            int batch = in.readInt();
+            boolean half = in.readBoolean();
+            if (id < 0 || id >= workers.length || workers[id].socket != null) throw new IOException("unexpected worker");
+            s.setSoTimeout(0);
+            Worker w = workers[id];
+            w.in = in;
+            w.out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+            w.socket = s;
+            maxBatchSize = Math.min(maxBatchSize, batch);
+            fp16 |= half;
+        } catch (IOException e) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // 忽略
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package cn.ac.cns.nia.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 推理结果的磁盘缓存 (按内容寻址)
+ * key = SHA-256(模型标识 + 分块参数 + 归一化系数 + 尺寸 + 输入平面像素)，值是反归一化后的最终像素 (Deflate 压缩)。
+ * 同一数据用同一模型重跑时直接读缓存，不调用 session.run。
+ * 总大小超过上限时按最近使用时间淘汰 (LRU)：内存里是按访问顺序排列的索引，
+ * 命中时刷新文件修改时间，下次打开时按修改时间重建顺序。
+ * 文件损坏 / 被其他进程删除都按未命中处理。
+ */
+public final class ResultCache {
+
+    private static final String FORMAT_VERSION = "v1";
+    private static final String EXTENSION = ".nrc";
+    private static final int MAGIC = 0x4e524331; // "NRC1"
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final ThreadLocal<ByteBuffer> hashBuffer = new ThreadLocal<>();
+
+    private ResultCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 打开 (必要时创建) 缓存目录，按修改时间重建 LRU 顺序，并立即按新的上限淘汰
+     */
+    public static ResultCache open(File directory, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+        ResultCache cache = new ResultCache(directory, maxBytes);
+        File[] files = directory.listFiles((d, n) -> n.endsWith(EXTENSION));
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File f : files) {
+                String name = f.getName();
+                cache.index.put(name.substring(0, name.length() - EXTENSION.length()), f.length());
+                cache.totalBytes += f.length();
+            }
+        }
+        synchronized (cache) {
+            cache.evict();
+        }
+        return cache;
+    }
+
+    /**
+     * 默认目录：-Dnia.result.cache.dir，否则 ~/.nia/result-cache
+     */
+    public static File defaultDirectory() {
+        String dir = System.getProperty("nia.result.cache.dir");
+        if (dir != null && !dir.isEmpty()) return new File(dir);
+        return new File(new File(System.getProperty("user.home"), ".nia"), "result-cache");
+    }
+
+    /**
+     * 一个平面的缓存 key。context 是对结果有影响的其余参数 (模型、精度、分块)，由调用方拼好。
+     */
+    public String key(String context, double factor, int width, int height, Object pixels) {
+        MessageDigest digest = sha256();
+        digest.update((FORMAT_VERSION + '\0' + context + '\0' + width + 'x' + height + '\0'
+                + Double.doubleToLongBits(factor)).getBytes(StandardCharsets.UTF_8));
+        ByteBuffer bytes = toBytes(pixels);
+        digest.update(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    /**
+     * 命中时返回一个新的像素数组 (与 like 同类型同长度)，否则 null
+     */
+    public Object get(String key, Object like) {
+        synchronized (this) {
+            if (index.get(key) == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        File f = file(key);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(f.toPath()))) {
+            if (in.readInt() != MAGIC) throw new IOException("bad header");
+            int type = in.readUnsignedByte();
+            int length = in.readInt();
+            if (type != typeOf(like) || length != Array.getLength(like)) {
+                throw new IOException("plane type mismatch");
+            }
+            Object pixels = read(new InflaterInputStream(in), type, length);
+            f.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return pixels;
+        } catch (IOException e) {
+            // 损坏或已被删除：当作未命中，写回时会重新生成
+            remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * 保存一个平面的最终像素；写临时文件后原子改名，并发写同一个 key 也安全
+     */
+    public void put(String key, Object pixels) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buf)) {
+            out.writeInt(MAGIC);
+            out.writeByte(typeOf(pixels));
+            out.writeInt(Array.getLength(pixels));
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream z = new DeflaterOutputStream(out, deflater, 64 * 1024)) {
+                write(z, pixels);
+            } finally {
+                deflater.end();
+            }
+        }
+        File f = file(key);
+        File tmp = File.createTempFile(key, ".tmp", directory);
+        try {
+            Files.write(tmp.toPath(), buf.toByteArray());
+            try {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        synchronized (this) {
+            Long old = index.put(key, (long) buf.size());
+            totalBytes += buf.size() - (old != null ? old : 0);
+            evict();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 例："Result cache: 12 hits, 28 misses (30% hit rate), 45.2/1024 MB, 3 evicted"
+     */
+    @Override
+    public String toString() {
+        long h = hits.get();
+        long m = misses.get();
+        return String.format(Locale.ROOT, "Result cache: %d hits, %d misses (%d%% hit rate), %.1f/%d MB%s",
+                h, m, h + m > 0 ? Math.round(100.0 * h / (h + m)) : 0,
+                getSizeBytes() / (double) (1 << 20), maxBytes >> 20,
+                evictions.get() > 0 ? ", " + evictions.get() + " evicted" : "");
+    }
+
+    // ==========================================
+    // 索引 / 淘汰
+    // ==========================================
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue();
+            evictions.incrementAndGet();
+            try {
+                Files.deleteIfExists(file(eldest.getKey()).toPath());
+            } catch (IOException e) {
+                // 下次打开时再按大小淘汰
+            }
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Long size = index.remove(key);
+        if (size != null) totalBytes -= size;
+        try {
+            Files.deleteIfExists(file(key).toPath());
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
+
+    private File file(String key) {
+        return new File(directory, key + EXTENSION);
+    }
+
+    // ==========================================
+    // 像素 ↔ 字节 (小端)
+    // ==========================================
+
+    private static int typeOf(Object pixels) {
+        if (pixels instanceof byte[]) return 1;
+        if (pixels instanceof short[]) return 2;
+        if (pixels instanceof float[]) return 3;
+        if (pixels instanceof int[]) return 4;
+        throw new IllegalArgumentException("Unsupported pixel type " + pixels.getClass());
+    }
+
+    private static int bytesPerPixel(int type) {
+        return type == 1 ? 1 : type == 2 ? 2 : 4;
+    }
+
+    /**
+     * 每个线程复用一个缓冲区 (只在算 key 时用)
+     */
+    private ByteBuffer toBytes(Object pixels) {
+        int type = typeOf(pixels);
+        int length = Array.getLength(pixels);
+        int size = length * bytesPerPixel(type);
+        ByteBuffer buf = hashBuffer.get();
+        if (buf == null || buf.capacity() < size) {
+            buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            hashBuffer.set(buf);
+        }
+        buf.clear();
+        fill(buf, pixels, type);
+        buf.position(0).limit(size);
+        return buf;
+    }
+
+    private static void fill(ByteBuffer buf, Object pixels, int type) {
+        switch (type) {
+            case 1: buf.put((byte[]) pixels); break;
+            case 2: buf.asShortBuffer().put((short[]) pixels); break;
+            case 3: buf.asFloatBuffer().put((float[]) pixels); break;
+            default: buf.asIntBuffer().put((int[]) pixels); break;
+        }
+    }
+
+    private static void write(OutputStream out, Object pixels) throws IOException {
+        int type = typeOf(pixels);
+        int length = Array.getLength(pixels);
+        ByteBuffer buf = ByteBuffer.allocate(length * bytesPerPixel(type)).order(ByteOrder.LITTLE_ENDIAN);
+        fill(buf, pixels, type);
+        out.write(buf.array());
+    }
+
+    private static Object read(InputStream in, int type, int length) throws IOException {
+        byte[] bytes = new byte[length * bytesPerPixel(type)];
+        new DataInputStream(in).readFully(bytes);
+        ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        switch (type) {
+            case 1: return bytes;
+            case 2: { short[] a = new short[length]; buf.asShortBuffer().get(a); return a; }
+            case 3: { float[] a = new float[length]; buf.asFloatBuffer().get(a); return a; }
+            default: { int[] a = new int[length]; buf.asIntBuffer().get(a); return a; }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
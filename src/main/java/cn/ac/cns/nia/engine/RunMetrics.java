@@ -0,0 +1,237 @@
+package cn.ac.cns.nia.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 单次运行的分阶段计时
+ * 每个平面记录一行：预处理 (归一化 + 填充 Tensor)、session.run、取出结果、写回，各自的耗时。
+ * 批量推理时一个批次的耗时按平面数平均分摊；分块推理时同一平面的所有块累加。
+ * 统计 (Normalization) 对整个栈只做一次，单独记总耗时，CSV 里按平面分摊。
+ * 同时记录峰值内存：进程 RSS 的最高水位 (VmHWM，包含 session.run 内部 ORT 的临时 Native 分配，仅 Linux)
+ * 和按批次采样的 JVM Direct Buffer。VmHWM 是整个进程的峰值，同一个 ImageJ 会话里之前的任务也算在内。
+ */
+public class RunMetrics {
+
+    public enum Stage {
+        STATISTICS("stats"), PREPROCESS("prep"), INFERENCE("session.run"), EXTRACT("extract"), WRITE("write");
+
+        public final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * 一个批次在各阶段累计的耗时；由流水线各阶段依次填写 (经队列交接，不会并发访问)
+     */
+    public static final class Sample {
+        private final long[] nanos = new long[STAGES.length];
+
+        public void add(Stage stage, long elapsedNanos) {
+            nanos[stage.ordinal()] += elapsedNanos;
+        }
+    }
+
+    private final List<Integer> planeIndices = new ArrayList<>();
+    private final List<long[]> planeNanos = new ArrayList<>();
+    private long statisticsNanos;
+    private long wallNanos;
+    private long peakRssBytes = -1;
+    private long peakDirectBytes;
+    private final BufferPoolMXBean directPool = directPool();
+
+    public synchronized void setStatisticsNanos(long nanos) {
+        this.statisticsNanos = nanos;
+    }
+
+    public synchronized void setWallNanos(long nanos) {
+        this.wallNanos = nanos;
+    }
+
+    /**
+     * 记下一个批次：耗时平均分给其中的每个平面，并顺便采样一次内存
+     */
+    public synchronized void record(Sample sample, int[] stackIndices) {
+        int n = stackIndices.length;
+        for (int index : stackIndices) {
+            long[] share = new long[STAGES.length];
+            for (int s = 0; s < share.length; s++) share[s] = sample.nanos[s] / n;
+            planeIndices.add(index);
+            planeNanos.add(share);
+        }
+        sampleMemory();
+    }
+
+    public synchronized int getPlanes() {
+        return planeNanos.size();
+    }
+
+    public synchronized double planesPerSecond() {
+        return wallNanos > 0 ? planeNanos.size() / (wallNanos / 1e9) : 0;
+    }
+
+    /**
+     * 某阶段每个平面耗时的分位数 (纳秒)，q 取 0..1
+     */
+    public synchronized long percentile(Stage stage, double q) {
+        long[] values = values(stage);
+        if (values.length == 0) return 0;
+        Arrays.sort(values);
+        int i = (int) Math.ceil(q * values.length) - 1;
+        return values[Math.max(0, Math.min(values.length - 1, i))];
+    }
+
+    public synchronized long total(Stage stage) {
+        if (stage == Stage.STATISTICS) return statisticsNanos;
+        long sum = 0;
+        for (long v : values(stage)) sum += v;
+        return sum;
+    }
+
+    public synchronized long getPeakRssBytes() {
+        return peakRssBytes;
+    }
+
+    public synchronized long getPeakDirectBytes() {
+        return peakDirectBytes;
+    }
+
+    /**
+     * 写进 Log 的多行报告
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Stage timings per plane (%d planes):", planeNanos.size()));
+        for (Stage stage : STAGES) {
+            sb.append('\n');
+            if (stage == Stage.STATISTICS) {
+                sb.append(String.format(Locale.ROOT, "  %-12s total %s (once per stack)", stage.label, ms(statisticsNanos)));
+                continue;
+            }
+            sb.append(String.format(Locale.ROOT, "  %-12s p50 %s  p95 %s  max %s  total %s", stage.label,
+                    ms(percentile(stage, 0.5)), ms(percentile(stage, 0.95)), ms(percentile(stage, 1.0)), ms(total(stage))));
+        }
+        sb.append('\n').append(String.format(Locale.ROOT, "Throughput: %.2f planes/s | process peak RSS %s | peak direct buffers %s",
+                planesPerSecond(), mb(peakRssBytes), mb(peakDirectBytes)));
+        return sb.toString();
+    }
+
+    /**
+     * 每个平面一行，单位毫秒
+     */
+    public synchronized void writeCsv(File file) throws IOException {
+        try (Writer w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            w.write("plane");
+            for (Stage stage : STAGES) w.write("," + stage.label + "_ms");
+            w.write("\n");
+            long statsShare = planeNanos.isEmpty() ? 0 : statisticsNanos / planeNanos.size();
+            for (int i = 0; i < planeNanos.size(); i++) {
+                long[] nanos = planeNanos.get(i);
+                StringBuilder sb = new StringBuilder().append(planeIndices.get(i));
+                for (Stage stage : STAGES) {
+                    long v = (stage == Stage.STATISTICS) ? statsShare : nanos[stage.ordinal()];
+                    sb.append(',').append(String.format(Locale.ROOT, "%.3f", v / 1e6));
+                }
+                w.write(sb.append('\n').toString());
+            }
+        }
+    }
+
+    public synchronized void writeJson(File file) throws IOException {
+        try (Writer w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            w.write(toJson());
+            w.write("\n");
+        }
+    }
+
+    /**
+     * 汇总 (不含逐平面数据)，也用于批处理的 summary
+     */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"planes\": ").append(planeNanos.size());
+        sb.append(", \"wallMs\": ").append(num(wallNanos / 1e6));
+        sb.append(", \"planesPerSecond\": ").append(num(planesPerSecond()));
+        sb.append(", \"peakRssBytes\": ").append(peakRssBytes);
+        sb.append(", \"peakDirectBytes\": ").append(peakDirectBytes);
+        sb.append(", \"stages\": {");
+        for (int s = 0; s < STAGES.length; s++) {
+            Stage stage = STAGES[s];
+            if (s > 0) sb.append(", ");
+            sb.append('"').append(stage.label).append("\": {\"totalMs\": ").append(num(total(stage) / 1e6));
+            if (stage != Stage.STATISTICS) {
+                sb.append(", \"p50Ms\": ").append(num(percentile(stage, 0.5) / 1e6))
+                        .append(", \"p95Ms\": ").append(num(percentile(stage, 0.95) / 1e6))
+                        .append(", \"maxMs\": ").append(num(percentile(stage, 1.0) / 1e6));
+            }
+            sb.append('}');
+        }
+        return sb.append("}}").toString();
+    }
+
+    private long[] values(Stage stage) {
+        long[] values = new long[planeNanos.size()];
+        for (int i = 0; i < values.length; i++) values[i] = planeNanos.get(i)[stage.ordinal()];
+        return values;
+    }
+
+    private void sampleMemory() {
+        if (directPool != null) peakDirectBytes = Math.max(peakDirectBytes, directPool.getMemoryUsed());
+        // 采样发生在 session.run 返回之后，读 VmRSS 会漏掉 run 内部的峰值，所以读最高水位
+        long peak = readStatus("VmHWM:");
+        if (peak >= 0) peakRssBytes = Math.max(peakRssBytes, peak);
+    }
+
+    /**
+     * 当前进程驻留内存 (/proc/self/status 的 VmRSS)，其他系统返回 -1
+     */
+    static long readRss() {
+        return readStatus("VmRSS:");
+    }
+
+    private static long readStatus(String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (Exception e) {
+            // 非 Linux
+        }
+        return -1;
+    }
+
+    private static BufferPoolMXBean directPool() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) return pool;
+        }
+        return null;
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+    }
+
+    private static String mb(long bytes) {
+        return bytes < 0 ? "n/a" : String.format(Locale.ROOT, "%.0fMB", bytes / (1024.0 * 1024));
+    }
+
+    private static String num(double v) {
+        return String.format(Locale.ROOT, "%.3f", v);
+    }
+}
@@ -0,0 +1,569 @@
+package cn.ac.cns.nia.engine;
+
+import ij.ImagePlus;
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 栈处理流水线 (Producer / Consumer)
+ * 预处理 → 推理 → 写回 三个阶段分别跑在独立线程上，中间用有界队列连接：
+ * 队列满时上游阻塞 (背压)，Java 侧的读图/归一化/类型转换与 Native 推理重叠执行。
+ * 每个平面经过的计算与顺序执行完全相同，因此结果逐像素一致。
+ * 推理阶段可以由 InferencePool 提供多个并发 worker (本进程的 EnginePool 或 worker 进程 RemoteWorkerPool)，
+ * 各自处理不相交的平面。
+ * queueDepth = 0 时退化为单线程顺序执行。
+ * 默认结果写回原栈；setOutput 之后改为交给 PlaneSink (例如流式写 TIFF)，原栈只读，
+ * 此时内存中最多只有 queueDepth 个批次在途，与栈大小无关 (配合 VirtualStack 可处理超大数据)。
+ * setResultCache 之后预处理阶段先查结果缓存，命中的平面不进推理阶段，未命中的在写回阶段存入缓存。
+ * 推理时内存分配失败会退避重试：多张平面拆成两半，单张平面换更小的分块；调小的 batch / 分块沿用到之后的批次
+ * (参数的初始值可以由 MemoryPlanner 按内存预算选定)。
+ * setAdaptive 之后逐平面跳过背景块，只推理有内容的块 (见 AdaptiveInference)。
+ */
+public class StackPipeline {
+
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+    }
+
+    /**
+     * 结果的去处。pixels 是复用的缓冲区，put 返回后即被覆盖，实现方必须立即消费。
+     */
+    public interface PlaneSink {
+        void put(int stackIndex, Object pixels) throws Exception;
+    }
+
+    private static final String[] STAGE_NAMES = {"prep", "infer", "write"};
+    private static final Chunk POISON = new Chunk(new int[0]);
+
+    private final InferencePool pool;
+    private final ImageStack stack;
+    private final double[] planeFactors; // 按栈索引 (1-based)
+
+    // 退避时由推理线程调小，预处理线程读取
+    private volatile int tileSize = 0;
+    private int tileOverlap = 0;
+    private volatile int batchSize = 1;
+    private int queueDepth = 2;
+    private int maxWorkers = 0;
+    private PlaneSink sink;
+    private Object sinkBuffer;
+    private RunMetrics metrics;
+    private ResultCache resultCache;
+    private AdaptiveInference adaptive;
+    private String modelId;
+    private String cacheContext;
+    private int cacheTileSize;
+
+    // 每个阶段的实际工作时间 (不含排队等待)，用于计算利用率
+    private final AtomicLongArray busyNanos = new AtomicLongArray(STAGE_NAMES.length);
+    private long wallNanos;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private boolean cacheWriteFailed;
+
+    public StackPipeline(InferenceEngine engine, ImageStack stack, double normFactor) {
+        this(EnginePool.of(engine, 1), stack, normFactor);
+    }
+
+    public StackPipeline(InferencePool pool, ImageStack stack, double normFactor) {
+        this(pool, stack, uniform(stack.getSize(), normFactor));
+    }
+
+    /**
+     * @param planeFactors 每个栈索引 (1-based，长度 size + 1) 的归一化系数，见 Normalization.Result
+     */
+    public StackPipeline(InferencePool pool, ImageStack stack, double[] planeFactors) {
+        this.pool = pool;
+        this.stack = stack;
+        this.planeFactors = planeFactors;
+    }
+
+    private static double[] uniform(int size, double normFactor) {
+        double[] factors = new double[size + 1];
+        Arrays.fill(factors, normFactor);
+        return factors;
+    }
+
+    /**
+     * 超过 tileSize 的平面逐张分块推理 (此时忽略 batchSize)
+     */
+    public StackPipeline setTiling(int tileSize, int overlap) {
+        this.tileSize = tileSize;
+        this.tileOverlap = overlap;
+        return this;
+    }
+
+    public StackPipeline setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * 每个阶段之间最多排队的批次数；0 表示不开线程，顺序执行
+     */
+    public StackPipeline setQueueDepth(int queueDepth) {
+        this.queueDepth = Math.max(0, queueDepth);
+        return this;
+    }
+
+    /**
+     * 最多同时使用的推理 worker 数 (不超过池的 worker 数)；0 表示全部
+     */
+    public StackPipeline setWorkers(int workers) {
+        this.maxWorkers = Math.max(0, workers);
+        return this;
+    }
+
+    /**
+     * 结果不写回原栈，而是交给 sink
+     */
+    public StackPipeline setOutput(PlaneSink sink) {
+        this.sink = sink;
+        return this;
+    }
+
+    /**
+     * 记录每个平面各阶段的耗时 (见 RunMetrics)；不设置则不计时
+     */
+    public StackPipeline setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * 用结果缓存跳过重复的平面。modelId 标识模型内容和精度 (分块参数由流水线自己加上)
+     */
+    public StackPipeline setResultCache(ResultCache cache, String modelId) {
+        this.resultCache = cache;
+        this.modelId = modelId;
+        return this;
+    }
+
+    /**
+     * 自适应推理：背景块不进模型 (此时逐平面处理，忽略 batchSize)
+     */
+    public StackPipeline setAdaptive(AdaptiveInference adaptive) {
+        this.adaptive = adaptive;
+        return this;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTileOverlap() {
+        return tileOverlap;
+    }
+
+    public boolean isTiled() {
+        return tileSize > 0 && (stack.getWidth() > tileSize || stack.getHeight() > tileSize);
+    }
+
+    /**
+     * 实际每次送入模型的平面数
+     */
+    public int getEffectiveBatchSize() {
+        return (isTiled() || adaptive != null) ? 1 : Math.max(1, Math.min(batchSize, pool.getMaxBatchSize()));
+    }
+
+    /**
+     * 实际并发的推理 worker 数
+     */
+    public int getWorkers() {
+        return maxWorkers > 0 ? Math.min(maxWorkers, pool.getWorkers()) : pool.getWorkers();
+    }
+
+    /**
+     * 按 C/Z/T 顺序排列的全部栈索引
+     */
+    public static int[] cztOrder(ImagePlus imp) {
+        int[] order = new int[imp.getStackSize()];
+        int n = 0;
+        for (int t = 1; t <= imp.getNFrames(); t++) {
+            for (int z = 1; z <= imp.getNSlices(); z++) {
+                for (int c = 1; c <= imp.getNChannels(); c++) {
+                    order[n++] = imp.getStackIndex(c, z, t);
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * 按 order 给出的栈索引 (1-based) 依次处理，结果写回原栈
+     */
+    public void run(int[] order, ProgressListener listener) throws Exception {
+        for (int i = 0; i < busyNanos.length(); i++) busyNanos.set(i, 0);
+        failure.set(null);
+        cacheContext = (resultCache == null) ? null
+                : modelId + (isTiled() ? " tiles=" + tileSize + "/" + tileOverlap : "")
+                + (adaptive != null ? " " + adaptive.settings() : "");
+        cacheTileSize = tileSize;
+        long start = System.nanoTime();
+        try {
+            if (queueDepth == 0) runSequential(order, listener);
+            else runPipelined(order, listener);
+        } finally {
+            wallNanos = System.nanoTime() - start;
+            if (metrics != null) metrics.setWallNanos(wallNanos);
+        }
+    }
+
+    private void runSequential(int[] order, ProgressListener listener) throws Exception {
+        int done = 0;
+        for (int start = 0, k; start < order.length; start += k) {
+            k = getEffectiveBatchSize();
+            Chunk chunk = newChunk(Arrays.copyOfRange(order, start, Math.min(order.length, start + k)));
+            timed(0, chunk, this::prepare);
+            PlaneInference worker = pool.acquire();
+            try {
+                timed(1, chunk, c -> infer(worker, c));
+            } finally {
+                pool.release(worker);
+            }
+            timed(2, chunk, this::write);
+            done += chunk.indices.length;
+            if (listener != null) listener.onProgress(done, order.length);
+        }
+    }
+
+    private void runPipelined(int[] order, ProgressListener listener) throws Exception {
+        BlockingQueue<Chunk> prepared = new ArrayBlockingQueue<>(queueDepth);
+        BlockingQueue<Chunk> inferred = new ArrayBlockingQueue<>(queueDepth);
+
+        Thread prepThread = new Thread(() -> {
+            try {
+                for (int start = 0, k; start < order.length; start += k) {
+                    k = getEffectiveBatchSize();
+                    Chunk chunk = newChunk(Arrays.copyOfRange(order, start, Math.min(order.length, start + k)));
+                    timed(0, chunk, this::prepare);
+                    if (!put(prepared, chunk)) return;
+                }
+                put(prepared, POISON);
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }, "NIA-Prep");
+
+        // 推理 worker：每个 worker 从池里借引擎；最后一个退出的 worker 负责通知写回阶段
+        int nWorkers = getWorkers();
+        AtomicInteger running = new AtomicInteger(nWorkers);
+        Thread[] inferThreads = new Thread[nWorkers];
+        for (int w = 0; w < nWorkers; w++) {
+            inferThreads[w] = new Thread(() -> {
+                try {
+                    Chunk chunk;
+                    while ((chunk = take(prepared)) != null && chunk != POISON) {
+                        PlaneInference worker = pool.acquire();
+                        try {
+                            timed(1, chunk, c -> infer(worker, c));
+                        } finally {
+                            pool.release(worker);
+                        }
+                        if (!put(inferred, chunk)) return;
+                    }
+                    // 把结束标记放回去，让其他 worker 也能看到
+                    if (chunk == POISON) put(prepared, POISON);
+                    if (running.decrementAndGet() == 0) put(inferred, POISON);
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }, "NIA-Infer-" + w);
+            inferThreads[w].setDaemon(true);
+        }
+
+        prepThread.setDaemon(true);
+        prepThread.start();
+        for (Thread t : inferThreads) t.start();
+
+        // 写回阶段在调用线程上执行 (进度回调也在这里)
+        try {
+            int done = 0;
+            Chunk chunk;
+            while ((chunk = take(inferred)) != null && chunk != POISON) {
+                timed(2, chunk, this::write);
+                done += chunk.indices.length;
+                if (listener != null) listener.onProgress(done, order.length);
+            }
+        } catch (Throwable t) {
+            fail(t);
+        } finally {
+            prepThread.join();
+            for (Thread t : inferThreads) t.join();
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof Exception) throw (Exception) t;
+        if (t != null) throw new RuntimeException(t);
+    }
+
+    // ==========================================
+    // 三个阶段
+    // ==========================================
+
+    private Chunk newChunk(int[] indices) {
+        Chunk chunk = new Chunk(indices);
+        if (metrics != null) chunk.sample = new RunMetrics.Sample();
+        return chunk;
+    }
+
+    private void prepare(Chunk chunk) {
+        long t0 = System.nanoTime();
+        int planeSize = stack.getWidth() * stack.getHeight();
+        int n = chunk.indices.length;
+        ImageProcessor[] planes = new ImageProcessor[n];
+        for (int b = 0; b < n; b++) planes[b] = stack.getProcessor(chunk.indices[b]);
+        if (resultCache != null) lookup(chunk, planes);
+
+        // 只有未命中的平面进推理阶段，在 data 里紧挨着排列
+        chunk.data = new float[chunk.misses * planeSize];
+        int slot = 0;
+        for (int b = 0; b < n; b++) {
+            if (chunk.cached != null && chunk.cached[b] != null) continue;
+            InferenceEngine.normalizeInto(planes[b], chunk.data, slot++ * planeSize, planeFactors[chunk.indices[b]]);
+        }
+        if (chunk.sample != null) chunk.sample.add(RunMetrics.Stage.PREPROCESS, System.nanoTime() - t0);
+    }
+
+    private void lookup(Chunk chunk, ImageProcessor[] planes) {
+        int n = chunk.indices.length;
+        chunk.keys = new String[n];
+        chunk.cached = new Object[n];
+        for (int b = 0; b < n; b++) {
+            Object pixels = planes[b].getPixels();
+            chunk.keys[b] = resultCache.key(cacheContext, planeFactors[chunk.indices[b]],
+                    stack.getWidth(), stack.getHeight(), pixels);
+            chunk.cached[b] = resultCache.get(chunk.keys[b], pixels);
+            if (chunk.cached[b] != null) chunk.misses--;
+        }
+    }
+
+    private void infer(PlaneInference engine, Chunk chunk) throws Exception {
+        if (chunk.misses == 0) return;
+        chunk.tileSize = tileSize;
+        chunk.data = infer(engine, chunk, chunk.data, chunk.misses);
+    }
+
+    /**
+     * 分配失败时退避：多张平面拆成两半分别推理，单张平面换更小的分块；已到最小分块时抛出原来的错误。
+     * 失败的调用不会改动 data (结果只在成功后写回)。
+     */
+    private float[] infer(PlaneInference engine, Chunk chunk, float[] data, int count) throws Exception {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        try {
+            if (adaptive != null) return inferAdaptive(engine, chunk, data, count);
+            return count == 1
+                    ? engine.inferTiled(data, width, height, chunk.tileSize, tileOverlap, chunk.sample)
+                    : engine.inferPlanes(data, count, width, height, chunk.sample);
+        } catch (Exception | OutOfMemoryError e) {
+            if (!MemoryPlanner.isAllocationFailure(e)) throw e;
+            int planeSize = width * height;
+            if (count > 1) {
+                int half = count / 2;
+                reduceBatch(half, e);
+                float[] first = infer(engine, chunk, Arrays.copyOfRange(data, 0, half * planeSize), half);
+                System.arraycopy(first, 0, data, 0, half * planeSize);
+                float[] second = infer(engine, chunk, Arrays.copyOfRange(data, half * planeSize, count * planeSize),
+                        count - half);
+                System.arraycopy(second, 0, data, half * planeSize, (count - half) * planeSize);
+                return data;
+            }
+            int smaller = MemoryPlanner.smallerTile(chunk.tileSize, width, height, MemoryPlanner.MIN_TILE);
+            if (smaller <= 0) throw e;
+            reduceTile(smaller, e);
+            chunk.tileSize = smaller;
+            return infer(engine, chunk, data, 1);
+        }
+    }
+
+    private float[] inferAdaptive(PlaneInference engine, Chunk chunk, float[] data, int count) throws Exception {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        if (count == 1) return adaptive.infer(engine, data, width, height, chunk.tileSize, tileOverlap, chunk.sample);
+        // 结果写进新数组：中途失败时 data 保持原样，退避重试才正确
+        int planeSize = width * height;
+        float[] result = new float[count * planeSize];
+        for (int i = 0; i < count; i++) {
+            float[] plane = Arrays.copyOfRange(data, i * planeSize, (i + 1) * planeSize);
+            float[] out = adaptive.infer(engine, plane, width, height, chunk.tileSize, tileOverlap, chunk.sample);
+            System.arraycopy(out, 0, result, i * planeSize, planeSize);
+        }
+        return result;
+    }
+
+    private synchronized void reduceBatch(int batch, Throwable cause) {
+        if (batch >= batchSize) return;
+        batchSize = batch;
+        IJ.log("⚠️ Out of memory (" + cause.getMessage() + "), retrying with batch " + batch);
+    }
+
+    private synchronized void reduceTile(int tile, Throwable cause) {
+        if (isTiled() && tile >= tileSize) return;
+        tileSize = tile;
+        IJ.log("⚠️ Out of memory (" + cause.getMessage() + "), retrying with " + tile + "px tiles");
+    }
+
+    private void write(Chunk chunk) throws Exception {
+        long t0 = System.nanoTime();
+        int planeSize = stack.getWidth() * stack.getHeight();
+        int slot = 0;
+        for (int b = 0; b < chunk.indices.length; b++) {
+            int idx = chunk.indices[b];
+            if (chunk.cached != null && chunk.cached[b] != null) {
+                if (sink != null) {
+                    sink.put(idx, chunk.cached[b]);
+                } else {
+                    // 拷进栈里原有的数组：单平面图像的 ImageProcessor 引用的就是它
+                    Object pixels = stack.getPixels(idx);
+                    System.arraycopy(chunk.cached[b], 0, pixels, 0, planeSize);
+                    stack.setPixels(pixels, idx);
+                }
+                continue;
+            }
+            int offset = slot++ * planeSize;
+            // 写回原栈时直接写进栈里已有的数组；流式输出时用一个复用的缓冲区 (写回阶段是单线程)
+            Object pixels = (sink == null) ? stack.getPixels(idx) : sinkBuffer(planeSize);
+            if (PixelKernels.isSupported(pixels)) {
+                // 反归一化 + 截断 + 窄化一步完成
+                InferenceEngine.denormalizeInto(chunk.data, offset, pixels, planeFactors[idx]);
+            } else {
+                float[] resultPixels = Arrays.copyOfRange(chunk.data, offset, offset + planeSize);
+                InferenceEngine.denormalize(resultPixels, planeFactors[idx]);
+                pixels = new FloatProcessor(stack.getWidth(), stack.getHeight(), resultPixels)
+                        .convertToRGB().getPixels();
+            }
+            // 退避后换了分块的结果与缓存 key 里的分块参数不符，不存
+            if (chunk.keys != null && chunk.tileSize == cacheTileSize) store(chunk.keys[b], pixels);
+            if (sink != null) {
+                sink.put(idx, pixels);
+            } else {
+                // 内存栈上是同一个数组 (无副作用)，虚拟栈需要显式写回
+                stack.setPixels(pixels, idx);
+            }
+        }
+        chunk.data = null;
+        if (chunk.sample != null) {
+            chunk.sample.add(RunMetrics.Stage.WRITE, System.nanoTime() - t0);
+            metrics.record(chunk.sample, chunk.indices);
+        }
+    }
+
+    /**
+     * 缓存写失败 (磁盘满等) 不影响这次运行，只记一次日志
+     */
+    private void store(String key, Object pixels) {
+        try {
+            resultCache.put(key, pixels);
+        } catch (Exception e) {
+            if (!cacheWriteFailed) IJ.log("⚠️ Result cache write failed: " + e.getMessage());
+            cacheWriteFailed = true;
+        }
+    }
+
+    private Object sinkBuffer(int planeSize) {
+        if (sinkBuffer == null) {
+            switch (stack.getBitDepth()) {
+                case 8: sinkBuffer = new byte[planeSize]; break;
+                case 16: sinkBuffer = new short[planeSize]; break;
+                case 32: sinkBuffer = new float[planeSize]; break;
+                default: sinkBuffer = new int[planeSize]; break;
+            }
+        }
+        return sinkBuffer;
+    }
+
+    // ==========================================
+    // 统计 / 工具
+    // ==========================================
+
+    /**
+     * 各阶段利用率 (工作时间 / 总耗时)。利用率最高的阶段就是瓶颈。
+     */
+    public String getUtilizationReport() {
+        StringBuilder sb = new StringBuilder("Pipeline (queue depth " + queueDepth);
+        if (queueDepth > 0 && getWorkers() > 1) {
+            sb.append(", ").append(getWorkers()).append(pool.isShared() ? " workers on 1 session" : " sessions");
+        }
+        sb.append("): ");
+        int bottleneck = 0;
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            if (i > 0) sb.append(" | ");
+            sb.append(STAGE_NAMES[i]).append(' ').append(Math.round(getUtilization(i) * 100)).append('%');
+            if (getUtilization(i) > getUtilization(bottleneck)) bottleneck = i;
+        }
+        sb.append(" → bottleneck: ").append(STAGE_NAMES[bottleneck]);
+        return sb.toString();
+    }
+
+    /**
+     * 推理阶段有多个 worker 时按 worker 数平均
+     */
+    public double getUtilization(int stage) {
+        if (wallNanos <= 0) return 0;
+        int workers = (stage == 1 && queueDepth > 0) ? getWorkers() : 1;
+        return Math.min(1.0, busyNanos.get(stage) / (double) wallNanos / workers);
+    }
+
+    private interface Stage {
+        void apply(Chunk chunk) throws Exception;
+    }
+
+    private void timed(int stage, Chunk chunk, Stage work) throws Exception {
+        long t0 = System.nanoTime();
+        work.apply(chunk);
+        busyNanos.addAndGet(stage, System.nanoTime() - t0);
+    }
+
+    private void fail(Throwable t) {
+        failure.compareAndSet(null, t);
+    }
+
+    /**
+     * 阻塞放入；下游已失败时放弃并返回 false，避免死锁
+     */
+    private boolean put(BlockingQueue<Chunk> queue, Chunk chunk) throws InterruptedException {
+        while (failure.get() == null) {
+            if (queue.offer(chunk, 50, TimeUnit.MILLISECONDS)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 阻塞取出；上游已失败时返回 null
+     */
+    private Chunk take(BlockingQueue<Chunk> queue) throws InterruptedException {
+        while (failure.get() == null) {
+            Chunk chunk = queue.poll(50, TimeUnit.MILLISECONDS);
+            if (chunk != null) return chunk;
+        }
+        return null;
+    }
+
+    private static final class Chunk {
+        final int[] indices;
+        float[] data;
+        RunMetrics.Sample sample;
+        // 结果缓存：每个平面的 key 和命中的像素 (未命中为 null)；misses = 需要推理的平面数
+        String[] keys;
+        Object[] cached;
+        int misses;
+        // 推理实际用的分块 (退避后可能比流水线的初始设置小)
+        int tileSize;
+
+        Chunk(int[] indices) {
+            this.indices = indices;
+            this.misses = indices.length;
+        }
+    }
+}
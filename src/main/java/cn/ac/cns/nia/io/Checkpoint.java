@@ -0,0 +1,368 @@
+package cn.ac.cns.nia.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 断点续跑
+ * 已完成的平面写进一个 TIFF (流式输出时就是结果文件本身，原地处理时是 ~/.nia/checkpoints 下的临时文件)，
+ * 旁边的 .checkpoint 清单记录运行标识 (模型、归一化、输入的 SHA-256) 和已完成的平面。
+ * 清单每隔 interval 才落盘一次，落盘前先 sync 像素数据，所以清单里记录的平面一定已经在磁盘上；
+ * 崩溃最多损失一个 interval 的工作量。
+ * 重新运行时标识一致就跳过已完成的平面，不一致 (换了模型 / 参数 / 输入被修改) 则丢弃旧进度从头开始。
+ * finish() 删除清单 (临时文件一并删除)；没有 finish 就 close() 时保留进度供下次使用。
+ */
+public class Checkpoint implements Closeable {
+
+    private static final String MANIFEST_SUFFIX = ".checkpoint";
+    private static final String FORMAT_VERSION = "v1";
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private final File file;
+    private final File manifest;
+    private final String identity;
+    private final int nPlanes;
+    private final long intervalMillis;
+    private final boolean scratch;
+    private final TiffStackWriter writer;
+    private final BitSet done;
+    private final int resumed;
+    private long lastFlush;
+    private boolean dirty;
+    private boolean finished;
+
+    private Checkpoint(File file, String identity, ImagePlus source, int width, int height, int bitDepth,
+                       int nChannels, int nSlices, int nFrames, long intervalMillis, boolean scratch) throws IOException {
+        this.file = file;
+        this.manifest = new File(file.getPath() + MANIFEST_SUFFIX);
+        this.identity = identity;
+        this.nPlanes = nChannels * nSlices * nFrames;
+        this.intervalMillis = intervalMillis;
+        this.scratch = scratch;
+
+        BitSet previous = load();
+        if (previous == null && manifest.isFile()) {
+            IJ.log("Ignoring checkpoint of a different run: " + manifest);
+        }
+        boolean resume = previous != null;
+        this.writer = (source != null)
+                ? new TiffStackWriter(file, source, resume)
+                : new TiffStackWriter(file, width, height, bitDepth, nChannels, nSlices, nFrames, resume);
+        if (resume && !writer.isResumed()) {
+            // 文件头变了 (例如显示范围或标定改过)，已写入的平面位置对不上
+            IJ.log("Ignoring checkpoint, the output file no longer matches: " + file);
+            previous = null;
+        }
+        this.done = previous != null ? previous : new BitSet(nPlanes + 1);
+        this.resumed = done.cardinality();
+        this.lastFlush = System.currentTimeMillis();
+        writeManifest();
+    }
+
+    /**
+     * 结果直接写进 file (流式输出，元数据取自 source)，进度记录在 file 旁边
+     */
+    public static Checkpoint open(File file, String identity, ImagePlus source, long intervalMillis) throws IOException {
+        return new Checkpoint(file, identity, source, source.getWidth(), source.getHeight(), source.getBitDepth(),
+                source.getNChannels(), source.getNSlices(), source.getNFrames(), intervalMillis, false);
+    }
+
+    /**
+     * 结果写回内存中的栈，另存一份到按 identity 命名的临时文件，续跑时用 restore 读回
+     */
+    public static Checkpoint openScratch(String identity, int width, int height, int bitDepth,
+                                         int nChannels, int nSlices, int nFrames, long intervalMillis) throws IOException {
+        File dir = defaultDirectory();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File file = new File(dir, identity + ".tif");
+        prune(dir, file);
+        return new Checkpoint(file, identity, null, width, height, bitDepth, nChannels, nSlices, nFrames, intervalMillis, true);
+    }
+
+    /**
+     * 临时文件目录：-Dnia.checkpoint.dir，否则 ~/.nia/checkpoints
+     */
+    public static File defaultDirectory() {
+        String dir = System.getProperty("nia.checkpoint.dir");
+        if (dir != null && !dir.isEmpty()) return new File(dir);
+        return new File(new File(System.getProperty("user.home"), ".nia"), "checkpoints");
+    }
+
+    /**
+     * TiffStackWriter 支持的位深 (RGB 不支持断点续跑)
+     */
+    public static boolean supports(int bitDepth) {
+        return bitDepth == 8 || bitDepth == 16 || bitDepth == 32;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 从上一次运行恢复的平面数
+     */
+    public int getResumedCount() {
+        return resumed;
+    }
+
+    public synchronized boolean isDone(int index) {
+        return done.get(index);
+    }
+
+    /**
+     * order 中还没完成的栈索引 (保持原顺序)
+     */
+    public synchronized int[] remaining(int[] order) {
+        return Arrays.stream(order).filter(i -> !done.get(i)).toArray();
+    }
+
+    /**
+     * 把上次完成的平面读回栈里 (原地处理续跑时用)
+     */
+    public synchronized void restore(ImageStack stack) throws IOException {
+        for (int i = done.nextSetBit(1); i > 0; i = done.nextSetBit(i + 1)) {
+            writer.readPlane(i, stack.getPixels(i));
+        }
+    }
+
+    /**
+     * 写入一个完成的平面 (可作为 StackPipeline.PlaneSink)；距上次记录超过 interval 时落盘
+     */
+    public synchronized void writePlane(int index, Object pixels) throws IOException {
+        writer.writePlane(index, pixels);
+        done.set(index);
+        dirty = true;
+        if (System.currentTimeMillis() - lastFlush >= intervalMillis) flush();
+    }
+
+    /**
+     * 先 sync 像素数据，再原子替换清单
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty) return;
+        writer.sync();
+        writeManifest();
+        lastFlush = System.currentTimeMillis();
+        dirty = false;
+    }
+
+    /**
+     * 全部完成：删除清单；临时文件整个删除
+     */
+    public synchronized void finish() throws IOException {
+        writer.close();
+        finished = true;
+        Files.deleteIfExists(manifest.toPath());
+        if (scratch) Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * 没有 finish 时记录当前进度并保留文件，下次可以续跑
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (finished) return;
+        finished = true;
+        try {
+            flush();
+        } finally {
+            writer.close();
+        }
+        if (!done.isEmpty()) IJ.log("Checkpoint kept: " + done.cardinality() + "/" + nPlanes + " planes in " + file);
+    }
+
+    // ==========================================
+    // 清单
+    // ==========================================
+
+    /**
+     * 标识一致、平面数一致且数据文件还在时返回已完成的平面，否则 null。
+     * 已完成的平面要落在 [1, planes] 内且与 completed 计数一致，截断或损坏的清单因此会被丢弃。
+     */
+    private BitSet load() {
+        if (!manifest.isFile() || !file.isFile()) return null;
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(manifest.toPath())) {
+            p.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!FORMAT_VERSION.equals(p.getProperty("format")) || !identity.equals(p.getProperty("identity"))
+                || !String.valueOf(nPlanes).equals(p.getProperty("planes"))) {
+            return null;
+        }
+        BitSet done;
+        try {
+            done = parseRanges(p.getProperty("done", ""));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
+        }
+        if (done.get(0) || done.length() > nPlanes + 1
+                || !String.valueOf(done.cardinality()).equals(p.getProperty("completed"))) {
+            return null;
+        }
+        return done;
+    }
+
+    private void writeManifest() throws IOException {
+        Properties p = new Properties();
+        p.setProperty("format", FORMAT_VERSION);
+        p.setProperty("identity", identity);
+        p.setProperty("planes", String.valueOf(nPlanes));
+        p.setProperty("completed", String.valueOf(done.cardinality()));
+        p.setProperty("done", formatRanges(done));
+        File tmp = new File(manifest.getPath() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+            p.store(out, "NIA Denoise progress for " + file.getName());
+        }
+        try {
+            Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * "1-40,43,50-51"
+     */
+    static String formatRanges(BitSet set) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = set.nextSetBit(0); i >= 0; ) {
+            int end = set.nextClearBit(i) - 1;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(i);
+            if (end > i) sb.append('-').append(end);
+            i = set.nextSetBit(end + 1);
+        }
+        return sb.toString();
+    }
+
+    static BitSet parseRanges(String s) {
+        BitSet set = new BitSet();
+        for (String part : s.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            int dash = part.indexOf('-');
+            if (dash < 0) set.set(Integer.parseInt(part));
+            else set.set(Integer.parseInt(part.substring(0, dash)), Integer.parseInt(part.substring(dash + 1)) + 1);
+        }
+        return set;
+    }
+
+    /**
+     * 删除 7 天没动过的临时文件 (放弃续跑的任务)
+     */
+    private static void prune(File dir, File keep) {
+        File[] files = dir.listFiles((d, n) -> n.endsWith(".tif") || n.endsWith(MANIFEST_SUFFIX));
+        if (files == null) return;
+        long cutoff = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        for (File f : files) {
+            if (!f.equals(keep) && f.lastModified() < cutoff) {
+                try {
+                    Files.deleteIfExists(f.toPath());
+                } catch (IOException e) {
+                    // 下次再清理
+                }
+            }
+        }
+    }
+
+    // ==========================================
+    // 运行标识
+    // ==========================================
+
+    /**
+     * 各部分拼接后的 SHA-256 (十六进制)
+     */
+    public static String identity(String... parts) {
+        MessageDigest digest = sha256();
+        for (String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * 输入的标识：尺寸、位深、来源文件 (路径 + 大小 + 修改时间)，以及首 / 中 / 末平面像素的 SHA-256，
+     * 未保存的图像也不会和同名同尺寸的另一张图混淆。TIFF 头与 ImageJ 版本有关，版本也算在内。
+     */
+    public static String describeInput(ImagePlus imp) {
+        StringBuilder sb = new StringBuilder();
+        int[] dims = imp.getDimensions();
+        sb.append(dims[0]).append('x').append(dims[1]).append(" c").append(dims[2]).append(" z").append(dims[3])
+                .append(" t").append(dims[4]).append(' ').append(imp.getBitDepth()).append("-bit");
+        FileInfo fi = imp.getOriginalFileInfo();
+        File source = (fi != null && fi.directory != null && fi.fileName != null) ? new File(fi.directory, fi.fileName) : null;
+        if (source != null && source.isFile()) {
+            sb.append(" file=").append(source.getAbsolutePath()).append(' ').append(source.length())
+                    .append(' ').append(source.lastModified());
+        } else {
+            sb.append(" title=").append(imp.getTitle());
+        }
+        ImageStack stack = imp.getStack();
+        int n = stack.getSize();
+        MessageDigest digest = sha256();
+        for (int i : new int[]{1, (n + 1) / 2, n}) {
+            digest.update(bytes(stack.getProcessor(i).getPixels()));
+        }
+        sb.append(" pixels=").append(hex(digest.digest()));
+        sb.append(" ij=").append(IJ.getVersion());
+        return sb.toString();
+    }
+
+    private static byte[] bytes(Object pixels) {
+        if (pixels instanceof byte[]) return (byte[]) pixels;
+        ByteBuffer buf;
+        if (pixels instanceof short[]) {
+            short[] a = (short[]) pixels;
+            buf = ByteBuffer.allocate(a.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+            buf.asShortBuffer().put(a);
+        } else if (pixels instanceof float[]) {
+            float[] a = (float[]) pixels;
+            buf = ByteBuffer.allocate(a.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            buf.asFloatBuffer().put(a);
+        } else {
+            int[] a = (int[]) pixels;
+            buf = ByteBuffer.allocate(a.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            buf.asIntBuffer().put(a);
+        }
+        return buf.array();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,409 @@
+package cn.ac.cns.nia.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 增量写 TIFF (ImageJ 格式，无压缩，Intel 字节序)
+ * 文件布局与 ij.io.TiffEncoder 相同：头 + 第一个 IFD + 描述 + 标定 / LUT / 显示范围 + 连续的像素数据 + 其余 IFD。
+ * 因为所有尺寸事先已知，构造时就写好全部元数据，之后每个平面按索引定位写入 (FileChannel 位置写)，
+ * 可以乱序、可以多线程，内存占用只有一个平面。
+ * 以源图像构造时，描述与 FileSaver 保存 TIFF 时相同 (单位、体素尺寸、帧间隔、显示范围等)，
+ * 并写入 XResolution / YResolution、LUT 和各通道的显示范围，与原地处理后另存的文件一致。
+ * 超过 4GB 时只写第一个 IFD，ImageJ 会根据描述里的 images=N 按连续数据读取 (与 TiffEncoder 行为一致)。
+ * resume = true 时不截断已有文件：文件头与本次要写的完全相同时保留已写入的平面 (可以用 readPlane 读回)，
+ * 否则 (元数据变了或文件不完整) 清空重写，isResumed() 返回 false。
+ */
+public class TiffStackWriter implements Closeable {
+
+    private static final int HDR_SIZE = 8;
+
+    private static final int NEW_SUBFILE_TYPE = 254;
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int PHOTO_INTERP = 262;
+    private static final int IMAGE_DESCRIPTION = 270;
+    private static final int STRIP_OFFSETS = 273;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int ROWS_PER_STRIP = 278;
+    private static final int STRIP_BYTE_COUNT = 279;
+    private static final int X_RESOLUTION = 282;
+    private static final int Y_RESOLUTION = 283;
+    private static final int RESOLUTION_UNIT = 296;
+    private static final int COLOR_MAP = 320;
+    private static final int SAMPLE_FORMAT = 339;
+    private static final int META_DATA_BYTE_COUNTS = 50838;
+    private static final int META_DATA = 50839;
+
+    private static final int BYTE = 1;
+    private static final int ASCII = 2;
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int RATIONAL = 5;
+
+    private static final int SCALE_SIZE = 16;
+    private static final int MAP_ENTRIES = 768;
+
+    // ImageJ 元数据块的类型标记 ("IJIJ" / "rang" / "luts"，见 ij.io.TiffDecoder)
+    private static final int MAGIC_NUMBER = 0x494a494a;
+    private static final int RANGES = 0x72616e67;
+    private static final int LUTS = 0x6c757473;
+
+    private final File file;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int nImages;
+    private final long imageSize;
+    private final FileInfo metadata;
+    private final int photoInterp;
+    private final boolean scaled;
+    private final boolean colorMap;
+    private final long imageOffset;
+    private final boolean resumed;
+    private ByteBuffer planeBuffer;
+
+    public TiffStackWriter(File file, int width, int height, int bitDepth,
+                           int nChannels, int nSlices, int nFrames) throws IOException {
+        this(file, width, height, bitDepth, nChannels, nSlices, nFrames, false);
+    }
+
+    public TiffStackWriter(File file, int width, int height, int bitDepth,
+                           int nChannels, int nSlices, int nFrames, boolean resume) throws IOException {
+        this(file, width, height, bitDepth, nChannels, nSlices, nFrames, null, resume, false);
+    }
+
+    /**
+     * 尺寸、位深和元数据取自 source (结果与源图像同尺寸同位深)
+     */
+    public TiffStackWriter(File file, ImagePlus source) throws IOException {
+        this(file, source, false);
+    }
+
+    public TiffStackWriter(File file, ImagePlus source, boolean resume) throws IOException {
+        this(file, source.getWidth(), source.getHeight(), source.getBitDepth(), source.getNChannels(),
+                source.getNSlices(), source.getNFrames(), metadata(source), resume, false);
+    }
+
+    /**
+     * @param metadata  FileSaver 准备好的描述、标定、LUT 和显示范围，null 时只写维度
+     * @param forceHuge 按超过 4GB 的布局写 (只有第一个 IFD)，测试用
+     */
+    TiffStackWriter(File file, int width, int height, int bitDepth, int nChannels, int nSlices, int nFrames,
+                    FileInfo metadata, boolean resume, boolean forceHuge) throws IOException {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            throw new IllegalArgumentException("Streaming output supports 8, 16 and 32-bit images only");
+        }
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.nImages = nChannels * nSlices * nFrames;
+        this.imageSize = (long) width * height * (bitDepth / 8);
+        this.metadata = metadata;
+
+        // 与 TiffEncoder 相同：8-bit 只有非灰度 LUT (COLOR8) 才写调色板，16/32-bit 有 LUT 就写
+        boolean palette = metadata != null && bitDepth == 8 && metadata.fileType == FileInfo.COLOR8;
+        this.photoInterp = palette ? 3 : (metadata != null && metadata.whiteIsZero ? 0 : 1);
+        this.colorMap = palette || (metadata != null && bitDepth > 8 && metadata.lutSize > 0);
+        this.scaled = metadata != null && metadata.unit != null && metadata.pixelWidth != 0 && metadata.pixelHeight != 0;
+
+        byte[] description = (metadata != null) ? description(metadata.description)
+                : description(nChannels, nSlices, nFrames);
+        byte[] metaData = metaData();
+        int nMetaCounts = metaDataCounts().length;
+        int nEntries = 10 + (scaled ? 3 : 0) + (colorMap ? 1 : 0) + (bitDepth == 32 ? 1 : 0);
+        int firstEntries = nEntries + 1 + (metaData.length > 0 ? 2 : 0); // 第一个 IFD 多描述和元数据字段
+        int firstIfdSize = 2 + firstEntries * 12 + 4;
+        int ifdSize = 2 + nEntries * 12 + 4;
+
+        // 第一个 IFD 之后依次是：描述、XResolution / YResolution、调色板、元数据的字节数表、元数据
+        int descriptionOffset = HDR_SIZE + firstIfdSize;
+        int scaleOffset = descriptionOffset + description.length;
+        int colorMapOffset = scaleOffset + (scaled ? SCALE_SIZE : 0);
+        int metaCountsOffset = colorMapOffset + (colorMap ? MAP_ENTRIES * 2 : 0);
+        int metaDataOffset = metaCountsOffset + nMetaCounts * 4;
+        this.imageOffset = metaDataOffset + metaData.length;
+        TagData tags = new TagData(scaleOffset, colorMapOffset);
+
+        long stackSize = imageSize * nImages;
+        long nextIfd = (nImages > 1) ? imageOffset + stackSize : 0;
+        boolean huge = forceHuge || nextIfd + (long) nImages * ifdSize >= 0xffffffffL;
+        if (huge) nextIfd = 0;
+
+        ByteBuffer head = ByteBuffer.allocate((int) imageOffset).order(ByteOrder.LITTLE_ENDIAN);
+        head.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(HDR_SIZE);
+        head.putShort((short) firstEntries);
+        writeEntries(head, imageOffset, tags, description.length, descriptionOffset);
+        if (metaData.length > 0) {
+            entry(head, META_DATA_BYTE_COUNTS, LONG, nMetaCounts, metaCountsOffset);
+            entry(head, META_DATA, BYTE, metaData.length, metaDataOffset);
+        }
+        head.putInt((int) nextIfd);
+        head.put(description);
+        writeTagData(head);
+        for (int count : metaDataCounts()) head.putInt(count);
+        head.put(metaData);
+        head.flip();
+
+        this.channel = resume
+                ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        // 文件头不同时像素的位置也可能不同，已写入的平面不能再用
+        this.resumed = resume && sameHead(head);
+        if (resume && !resumed) channel.truncate(0);
+        writeFully(head, 0);
+
+        // 其余 IFD 放在像素数据之后，现在就写好 (文件会一次性扩展到最终大小)
+        if (nextIfd > 0) {
+            ByteBuffer ifds = ByteBuffer.allocate(ifdSize * (nImages - 1)).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 2; i <= nImages; i++) {
+                long next = (i == nImages) ? 0 : nextIfd + (long) (i - 1) * ifdSize;
+                ifds.putShort((short) nEntries);
+                writeEntries(ifds, imageOffset + (i - 1) * imageSize, tags, 0, 0);
+                ifds.putInt((int) next);
+            }
+            ifds.flip();
+            writeFully(ifds, nextIfd);
+        } else if (huge) {
+            IJ.log("Output is larger than 4GB; only ImageJ-compatible readers will see all " + nImages + " planes.");
+        }
+    }
+
+    /**
+     * 与 FileSaver.saveAsTiffStack 相同的元数据：描述、标定、LUT，合成图像还有各通道的显示范围和 LUT
+     */
+    static FileInfo metadata(ImagePlus source) {
+        FileSaver saver = new FileSaver(source);
+        FileInfo fi = source.getFileInfo();
+        fi.description = saver.getDescriptionString();
+        if (source.isComposite()) saver.saveDisplayRangesAndLuts(source, fi);
+        return fi;
+    }
+
+    /**
+     * 以 resume 打开时，已有文件是否保留了之前写入的平面
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 写入第 index 个平面 (1-based)，pixels 必须与构造时的位深一致
+     */
+    public synchronized void writePlane(int index, Object pixels) throws IOException {
+        ByteBuffer planeBuffer = planeBuffer(index);
+        if (bitDepth == 8) planeBuffer.put((byte[]) pixels);
+        else if (bitDepth == 16) planeBuffer.asShortBuffer().put((short[]) pixels);
+        else planeBuffer.asFloatBuffer().put((float[]) pixels);
+        planeBuffer.position(0).limit((int) imageSize);
+        writeFully(planeBuffer, imageOffset + (index - 1) * imageSize);
+    }
+
+    /**
+     * 读回第 index 个已写入的平面 (1-based) 到 pixels (与构造时的位深一致)
+     */
+    public synchronized void readPlane(int index, Object pixels) throws IOException {
+        ByteBuffer planeBuffer = planeBuffer(index);
+        long position = imageOffset + (index - 1) * imageSize;
+        while (planeBuffer.hasRemaining()) {
+            int n = channel.read(planeBuffer, position);
+            if (n < 0) throw new IOException("Plane " + index + " is missing from " + file);
+            position += n;
+        }
+        planeBuffer.flip();
+        if (bitDepth == 8) planeBuffer.get((byte[]) pixels);
+        else if (bitDepth == 16) planeBuffer.asShortBuffer().get((short[]) pixels);
+        else planeBuffer.asFloatBuffer().get((float[]) pixels);
+    }
+
+    /**
+     * 把已写入的数据刷到磁盘 (断点续跑在记录进度之前调用)
+     */
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    private ByteBuffer planeBuffer(int index) {
+        if (index < 1 || index > nImages) throw new IllegalArgumentException("Plane index out of range: " + index);
+        if (planeBuffer == null) {
+            planeBuffer = ByteBuffer.allocateDirect((int) imageSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        planeBuffer.clear();
+        return planeBuffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * 调色板和标定数据在第一个 IFD 之后的位置，所有 IFD 共用
+     */
+    private static final class TagData {
+        final int scaleOffset;
+        final int colorMapOffset;
+
+        TagData(int scaleOffset, int colorMapOffset) {
+            this.scaleOffset = scaleOffset;
+            this.colorMapOffset = colorMapOffset;
+        }
+    }
+
+    /**
+     * 一个 IFD 的各字段 (不含字段数、元数据字段和下一个 IFD 的位置)；descriptionLength = 0 时不写描述
+     */
+    private void writeEntries(ByteBuffer out, long stripOffset, TagData tags,
+                              int descriptionLength, int descriptionOffset) {
+        entry(out, NEW_SUBFILE_TYPE, LONG, 1, 0);
+        entry(out, IMAGE_WIDTH, LONG, 1, width);
+        entry(out, IMAGE_LENGTH, LONG, 1, height);
+        entry(out, BITS_PER_SAMPLE, SHORT, 1, bitDepth);
+        entry(out, COMPRESSION, SHORT, 1, 1);
+        entry(out, PHOTO_INTERP, SHORT, 1, photoInterp);
+        if (descriptionLength > 0) entry(out, IMAGE_DESCRIPTION, ASCII, descriptionLength, descriptionOffset);
+        entry(out, STRIP_OFFSETS, LONG, 1, (int) stripOffset);
+        entry(out, SAMPLES_PER_PIXEL, SHORT, 1, 1);
+        entry(out, ROWS_PER_STRIP, LONG, 1, height);
+        entry(out, STRIP_BYTE_COUNT, LONG, 1, (int) imageSize);
+        if (scaled) {
+            entry(out, X_RESOLUTION, RATIONAL, 1, tags.scaleOffset);
+            entry(out, Y_RESOLUTION, RATIONAL, 1, tags.scaleOffset + 8);
+            int unit = "inch".equals(metadata.unit) ? 2 : ("cm".equals(metadata.unit) ? 3 : 1);
+            entry(out, RESOLUTION_UNIT, SHORT, 1, unit);
+        }
+        if (colorMap) entry(out, COLOR_MAP, SHORT, MAP_ENTRIES, tags.colorMapOffset);
+        if (bitDepth == 32) entry(out, SAMPLE_FORMAT, SHORT, 1, 3); // IEEE float
+    }
+
+    /**
+     * XResolution / YResolution 的有理数 (像素 / 单位) 和调色板，写法同 TiffEncoder.writeScale / writeColorMap
+     */
+    private void writeTagData(ByteBuffer out) {
+        if (scaled) {
+            double xScale = 1.0 / metadata.pixelWidth;
+            double yScale = 1.0 / metadata.pixelHeight;
+            double scale = 1000000.0;
+            if (xScale * scale > Integer.MAX_VALUE || yScale * scale > Integer.MAX_VALUE) {
+                scale = (int) (Integer.MAX_VALUE / Math.max(xScale, yScale));
+            }
+            out.putInt((int) (xScale * scale)).putInt((int) scale);
+            out.putInt((int) (yScale * scale)).putInt((int) scale);
+        }
+        if (colorMap) {
+            // 每个 16-bit 分量的高字节是 8-bit 颜色值
+            byte[] table = new byte[MAP_ENTRIES * 2];
+            for (int i = 0; i < metadata.lutSize; i++) {
+                table[i * 2 + 1] = metadata.reds[i];
+                table[512 + i * 2 + 1] = metadata.greens[i];
+                table[1024 + i * 2 + 1] = metadata.blues[i];
+            }
+            out.put(table);
+        }
+    }
+
+    /**
+     * META_DATA_BYTE_COUNTS：元数据头，显示范围，各通道 LUT
+     */
+    private int[] metaDataCounts() {
+        if (metadata == null || (metadata.displayRanges == null && metadata.channelLuts == null)) return new int[0];
+        int nTypes = (metadata.displayRanges != null ? 1 : 0) + (metadata.channelLuts != null ? 1 : 0);
+        int nLuts = (metadata.channelLuts != null) ? metadata.channelLuts.length : 0;
+        int[] counts = new int[1 + (metadata.displayRanges != null ? 1 : 0) + nLuts];
+        int k = 0;
+        counts[k++] = 4 + nTypes * 8;
+        if (metadata.displayRanges != null) counts[k++] = metadata.displayRanges.length * 8;
+        for (int i = 0; i < nLuts; i++) counts[k++] = metadata.channelLuts[i].length;
+        return counts;
+    }
+
+    /**
+     * META_DATA 的内容，格式同 TiffEncoder.writeMetaData (只写显示范围和 LUT)
+     */
+    private byte[] metaData() {
+        int[] counts = metaDataCounts();
+        int size = 0;
+        for (int count : counts) size += count;
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        if (size == 0) return out.array();
+        out.putInt(MAGIC_NUMBER);
+        if (metadata.displayRanges != null) out.putInt(RANGES).putInt(1);
+        if (metadata.channelLuts != null) out.putInt(LUTS).putInt(metadata.channelLuts.length);
+        if (metadata.displayRanges != null) {
+            for (double v : metadata.displayRanges) out.putDouble(v);
+        }
+        if (metadata.channelLuts != null) {
+            for (byte[] lut : metadata.channelLuts) out.put(lut);
+        }
+        return out.array();
+    }
+
+    /**
+     * 已有文件的开头是否与 head 逐字节相同
+     */
+    private boolean sameHead(ByteBuffer head) throws IOException {
+        if (channel.size() < head.remaining()) return false;
+        ByteBuffer existing = ByteBuffer.allocate(head.remaining());
+        long position = 0;
+        while (existing.hasRemaining()) {
+            int n = channel.read(existing, position);
+            if (n < 0) return false;
+            position += n;
+        }
+        existing.flip();
+        return existing.equals(head);
+    }
+
+    private static void entry(ByteBuffer out, int tag, int type, int count, int value) {
+        out.putShort((short) tag).putShort((short) type).putInt(count);
+        if (count == 1 && type == SHORT) out.putShort((short) value).putShort((short) 0);
+        else out.putInt(value);
+    }
+
+    /**
+     * FileSaver 的描述，以 NUL 结尾 (同 TiffEncoder.makeDescriptionString)
+     */
+    private static byte[] description(String text) {
+        if (text.isEmpty() || text.charAt(text.length() - 1) != '\0') text += '\0';
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] description(int nChannels, int nSlices, int nFrames) {
+        StringBuilder sb = new StringBuilder("ImageJ=").append(IJ.getVersion()).append('\n');
+        sb.append("images=").append(nImages).append('\n');
+        if (nChannels > 1) sb.append("channels=").append(nChannels).append('\n');
+        if (nSlices > 1) sb.append("slices=").append(nSlices).append('\n');
+        if (nFrames > 1) sb.append("frames=").append(nFrames).append('\n');
+        if (nChannels > 1 || (nSlices > 1 && nFrames > 1)) sb.append("hyperstack=true\nmode=grayscale\n");
+        sb.append("loop=false\n").append('\0');
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package cn.ac.cns.nia;
+
+import cn.ac.cns.nia.engine.InferencePool;
+import cn.ac.cns.nia.engine.ModelSource;
+import cn.ac.cns.nia.engine.Normalization;
+import cn.ac.cns.nia.engine.PlaneInference;
+import cn.ac.cns.nia.engine.RunMetrics;
+import cn.ac.cns.nia.engine.StackPipeline;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import ij.process.ShortProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Interrupted streamed runs resume from their checkpoint, and the run identity changes exactly when the
+ * result would.
+ */
+public class CheckpointedRunTest {
+
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 24;
+    private static final int PLANES = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void interruptedRunResumesAndMatchesUninterruptedRun() throws Exception {
+        ImagePlus imp = stack();
+        DenoiseOptions options = new DenoiseOptions();
+        options.checkpointSeconds = 60;
+
+        File reference = folder.newFile("reference.tif");
+        CheckpointedRun.run(pipeline(new FakePool(Integer.MAX_VALUE), imp, 1), imp, reference, null, options, null);
+
+        File out = new File(folder.getRoot(), "out.tif");
+        try {
+            CheckpointedRun.run(pipeline(new FakePool(5), imp, 1), imp, out, "run", options, null);
+            fail("the first run should have been interrupted");
+        } catch (Exception expected) {
+            // the worker "crashed" after five planes
+        }
+        assertTrue(new File(out.getPath() + ".checkpoint").isFile());
+
+        // the resumed run may use another batch size; it only infers the planes that are missing
+        FakePool pool = new FakePool(Integer.MAX_VALUE);
+        int resumed = CheckpointedRun.run(pipeline(pool, imp, 3), imp, out, "run", options, null);
+        assertTrue("resumed " + resumed, resumed > 0 && resumed <= 5);
+        assertEquals(PLANES - resumed, pool.planes.get());
+        assertFalse(new File(out.getPath() + ".checkpoint").exists());
+
+        ImageStack expected = new Opener().openImage(reference.getPath()).getStack();
+        ImageStack actual = new Opener().openImage(out.getPath()).getStack();
+        for (int i = 1; i <= PLANES; i++) {
+            assertArrayEquals("plane " + i, (short[]) expected.getPixels(i), (short[]) actual.getPixels(i));
+        }
+    }
+
+    @Test
+    public void identityChangesWithModelFactorsInputAndTiling() throws Exception {
+        ImagePlus imp = stack();
+        DenoiseOptions options = new DenoiseOptions();
+        FakePool pool = new FakePool(Integer.MAX_VALUE);
+        ModelSource model = model("a.onnx", "model a");
+        Normalization.Result norm = new Normalization().compute(imp);
+
+        String base = CheckpointedRun.identity(imp, model, pool, norm, options, pipeline(pool, imp, 1));
+        assertEquals(base, CheckpointedRun.identity(imp, model, pool, norm, options, pipeline(pool, imp, 1)));
+        // batch size does not change the output
+        assertEquals(base, CheckpointedRun.identity(imp, model, pool, norm, options, pipeline(pool, imp, 4)));
+
+        assertNotEquals(base, CheckpointedRun.identity(imp, model("b.onnx", "model b"), pool, norm, options,
+                pipeline(pool, imp, 1)));
+
+        Normalization percentile = new Normalization();
+        percentile.mode = Normalization.Mode.PERCENTILE;
+        percentile.percentile = 50;
+        assertNotEquals(base, CheckpointedRun.identity(imp, model, pool, percentile.compute(imp), options,
+                pipeline(pool, imp, 1)));
+
+        assertNotEquals(base, CheckpointedRun.identity(imp, model, pool, norm, options,
+                pipeline(pool, imp, 1).setTiling(16, 8)));
+
+        ImagePlus edited = stack();
+        ((short[]) edited.getStack().getPixels(PLANES / 2))[7]++;
+        assertNotEquals(base, CheckpointedRun.identity(edited, model, pool, norm, options, pipeline(pool, edited, 1)));
+    }
+
+    private ModelSource model(String name, String content) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+        return ModelSource.file(file.getPath());
+    }
+
+    private static StackPipeline pipeline(InferencePool pool, ImagePlus imp, int batch) {
+        double[] factors = new double[PLANES + 1];
+        Arrays.fill(factors, 1000);
+        return new StackPipeline(pool, imp.getStack(), factors).setBatchSize(batch).setQueueDepth(2);
+    }
+
+    private static ImagePlus stack() {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int i = 1; i <= PLANES; i++) {
+            short[] pixels = new short[WIDTH * HEIGHT];
+            for (int k = 0; k < pixels.length; k++) pixels[k] = (short) (i * 300 + k * 7 % 500);
+            stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        }
+        ImagePlus imp = new ImagePlus("stack", stack);
+        imp.setDimensions(1, PLANES, 1);
+        return imp;
+    }
+
+    /**
+     * A deterministic stand-in for the model that fails once it has seen more than failAfter planes.
+     */
+    private static final class FakePool implements InferencePool, PlaneInference {
+        final AtomicInteger planes = new AtomicInteger();
+        final int failAfter;
+
+        FakePool(int failAfter) {
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public float[] inferPlanes(float[] packed, int count, int width, int height, RunMetrics.Sample sample)
+                throws IOException {
+            if (planes.addAndGet(count) > failAfter) throw new IOException("worker crashed");
+            for (int i = 0; i < count * width * height; i++) packed[i] = packed[i] * 0.5f + 0.01f;
+            return packed;
+        }
+
+        @Override
+        public float[] inferTiled(float[] pixels, int width, int height, int tileSize, int overlap,
+                                  RunMetrics.Sample sample) throws IOException {
+            return inferPlanes(pixels, 1, width, height, sample);
+        }
+
+        @Override
+        public int getWorkers() {
+            return 1;
+        }
+
+        @Override
+        public boolean isShared() {
+            return false;
+        }
+
+        @Override
+        public boolean isFp16() {
+            return false;
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public PlaneInference acquire() {
+            return this;
+        }
+
+        @Override
+        public void release(PlaneInference worker) {
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package cn.ac.cns.nia.engine;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 自适应推理：纯背景全部跳过、全是内容时退回分块推理、稀疏平面上被推理的块与整帧推理一致、窗口不超过 tileSize
+ */
+public class AdaptiveInferenceTest {
+
+    private static final int WIDTH = 512;
+    private static final int HEIGHT = 384;
+    private static final int BLOCK = 64;
+
+    private static InferenceEngine engine;
+
+    @BeforeClass
+    public static void loadModel() throws Exception {
+        engine = new InferenceEngine(ModelSource.builtIn("dncnn.onnx"), new EngineOptions());
+    }
+
+    @AfterClass
+    public static void closeModel() throws Exception {
+        if (engine != null) engine.close();
+    }
+
+    @Test
+    public void backgroundPlaneSkipsEveryBlock() throws Exception {
+        float[] input = background(WIDTH, HEIGHT, 1);
+        for (AdaptiveInference.Fallback fallback : AdaptiveInference.Fallback.values()) {
+            AdaptiveInference adaptive = new AdaptiveInference(BLOCK, 17, 1.0, fallback, 0);
+            Recorder recorder = new Recorder();
+            float[] result = adaptive.infer(recorder, input.clone(), WIDTH, HEIGHT, 256, 32, null);
+
+            assertEquals(fallback + " model calls", 0, recorder.calls);
+            assertEquals(1.0, adaptive.skippedBlockFraction(), 0);
+            assertEquals(1.0, adaptive.savedComputeFraction(), 0);
+            float[] expected = fallback == AdaptiveInference.Fallback.KEEP ? input : boxMean(input, WIDTH, HEIGHT, 2);
+            assertArrayEquals(fallback.toString(), expected, result, 1e-6f);
+        }
+    }
+
+    @Test
+    public void informativePlaneFallsBackToTiledInference() throws Exception {
+        // threshold 0：每块都有内容，窗口合起来不比整帧小；300 x 200 按 256 分两块
+        float[] input = InferenceEngineTest.noisyPlane(300, 200, 2);
+        AdaptiveInference adaptive = new AdaptiveInference(BLOCK, 17, 0, AdaptiveInference.Fallback.SMOOTH, 1);
+        Recorder recorder = new Recorder();
+        float[] result = adaptive.infer(recorder, input.clone(), 300, 200, 256, 32, null);
+
+        assertEquals(0, adaptive.skippedBlockFraction(), 0);
+        assertEquals(0, adaptive.savedComputeFraction(), 0);
+        assertEquals(0, recorder.windows.size());
+        assertArrayEquals(engine.inferTiled(input.clone(), 300, 200, 256, 32), result, 0f);
+        // 自带的校验也与整帧 (分块) 推理完全相同
+        assertEquals(Double.POSITIVE_INFINITY, adaptive.psnr(), 0);
+        assertEquals(0, adaptive.maxAbsError(), 0);
+    }
+
+    @Test
+    public void sparsePlaneMatchesWholeFrameInsideInformativeBlocks() throws Exception {
+        float[] input = background(WIDTH, HEIGHT, 3);
+        int[][] spots = {{100, 90}, {300, 70}, {420, 300}, {40, 340}};
+        for (int[] spot : spots) addSpot(input, WIDTH, HEIGHT, spot[0], spot[1]);
+        float[] whole = engine.inferTiled(input.clone(), WIDTH, HEIGHT, 0, 0);
+
+        for (int margin : new int[]{17, 24}) {
+            AdaptiveInference adaptive = new AdaptiveInference(BLOCK, margin, 1.0, AdaptiveInference.Fallback.SMOOTH, 0);
+            Recorder recorder = new Recorder();
+            float[] result = adaptive.infer(recorder, input.clone(), WIDTH, HEIGHT, 0, 0, null);
+
+            double skipped = adaptive.skippedBlockFraction();
+            assertTrue("skipped " + skipped, skipped > 0.5 && skipped < 1);
+            assertTrue(adaptive.savedComputeFraction() > 0);
+            assertTrue(recorder.windows.size() > 0);
+            // 亮斑所在的块一定被推理；margin 不小于感受野的一半 (17) 时与整帧推理一致
+            for (int[] spot : spots) {
+                int bx = spot[0] / BLOCK * BLOCK;
+                int by = spot[1] / BLOCK * BLOCK;
+                for (int y = by; y < by + BLOCK; y++) {
+                    for (int x = bx; x < bx + BLOCK; x++) {
+                        int i = y * WIDTH + x;
+                        assertEquals("margin " + margin + " at " + x + "," + y, whole[i], result[i], 1e-4f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void windowsAreCappedAtTileSize() throws Exception {
+        // 中间一大片都是 (比背景亮的) 内容，合并时不能超过 tileSize
+        float[] input = background(WIDTH, HEIGHT, 4);
+        for (int y = 100; y < 300; y++) {
+            for (int x = 100; x < 400; x++) {
+                input[y * WIDTH + x] += (float) (0.15 * (1 + Math.sin(x / 7.0) * Math.cos(y / 5.0)));
+            }
+        }
+        int tileSize = 128;
+        int margin = 17;
+        AdaptiveInference adaptive = new AdaptiveInference(32, margin, 1.0, AdaptiveInference.Fallback.SMOOTH, 0);
+        Recorder recorder = new Recorder();
+        adaptive.infer(recorder, input, WIDTH, HEIGHT, tileSize, margin, null);
+
+        assertTrue(adaptive.skippedBlockFraction() > 0);
+        assertTrue(recorder.windows.size() > 1);
+        for (int[] w : recorder.windows) {
+            String size = w[0] + "x" + w[1];
+            assertTrue(size, w[0] <= tileSize + 2 * margin && w[1] <= tileSize + 2 * margin);
+        }
+    }
+
+    /**
+     * 转发给内置模型，记录送入的窗口尺寸
+     */
+    private static final class Recorder implements PlaneInference {
+        final List<int[]> windows = new ArrayList<>();
+        int calls;
+
+        @Override
+        public int getMaxBatchSize() {
+            return engine.getMaxBatchSize();
+        }
+
+        @Override
+        public float[] inferPlanes(float[] packed, int count, int width, int height, RunMetrics.Sample sample)
+                throws Exception {
+            calls++;
+            for (int i = 0; i < count; i++) windows.add(new int[]{width, height});
+            return engine.inferPlanes(packed, count, width, height, sample);
+        }
+
+        @Override
+        public float[] inferTiled(float[] pixels, int width, int height, int tileSize, int overlap,
+                                  RunMetrics.Sample sample) throws Exception {
+            calls++;
+            return engine.inferTiled(pixels, width, height, tileSize, overlap, sample);
+        }
+    }
+
+    // 平坦背景 + 白噪声
+    private static float[] background(int width, int height, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = (float) (0.1 + 0.02 * random.nextGaussian());
+        return pixels;
+    }
+
+    // 半径约 8 像素的高斯亮斑
+    private static void addSpot(float[] pixels, int width, int height, int cx, int cy) {
+        for (int y = Math.max(0, cy - 24); y < Math.min(height, cy + 24); y++) {
+            for (int x = Math.max(0, cx - 24); x < Math.min(width, cx + 24); x++) {
+                double r2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                pixels[y * width + x] += (float) (0.6 * Math.exp(-r2 / (2 * 8 * 8)));
+            }
+        }
+    }
+
+    // (2r+1)^2 均值，图像边缘按截断的窗口平均
+    private static float[] boxMean(float[] pixels, int width, int height, int r) {
+        float[] out = new float[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                int n = 0;
+                for (int yy = Math.max(0, y - r); yy <= Math.min(height - 1, y + r); yy++) {
+                    for (int xx = Math.max(0, x - r); xx <= Math.min(width - 1, x + r); xx++) {
+                        sum += pixels[yy * width + xx];
+                        n++;
+                    }
+                }
+                out[y * width + x] = (float) (sum / n);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,73 @@
+package cn.ac.cns.nia.engine;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 内置模型转成 FP16 后：Session 能加载、输入输出都是 float16，结果与 FP32 相比 PSNR 不低于 60 dB
+ */
+public class Fp16ModelConverterTest {
+
+    @Test
+    public void convertedModelLoadsWithHalfInputAndOutput() throws Exception {
+        byte[] converted = Fp16ModelConverter.convert(ModelSource.builtIn("dncnn.onnx").readBytes());
+        OrtEnvironment env = OrtEnvironment.getEnvironment();
+        try (OrtSession.SessionOptions opts = new OrtSession.SessionOptions();
+             OrtSession session = env.createSession(converted, opts)) {
+            for (NodeInfo info : session.getInputInfo().values()) assertHalf(info);
+            for (NodeInfo info : session.getOutputInfo().values()) assertHalf(info);
+        }
+
+        // 已经是 FP16 的模型不再变化
+        assertArrayEquals(converted, Fp16ModelConverter.convert(converted));
+    }
+
+    @Test
+    public void engineRunsTheHalfModel() throws Exception {
+        EngineOptions options = new EngineOptions();
+        options.fp16 = true;
+        try (InferenceEngine engine = new InferenceEngine(ModelSource.builtIn("dncnn.onnx"), options)) {
+            assertTrue(engine.isFp16());
+        }
+    }
+
+    @Test
+    public void halfPrecisionStaysAbove60Db() throws Exception {
+        int width = 160;
+        int height = 120;
+        ImageStack stack = new ImageStack(width, height);
+        for (int i = 1; i <= 3; i++) {
+            float[] plane = InferenceEngineTest.noisyPlane(width, height, i);
+            short[] pixels = new short[plane.length];
+            for (int k = 0; k < plane.length; k++) pixels[k] = (short) Math.max(0, Math.round(plane[k] * 1000));
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        }
+        double[] factors = new double[stack.getSize() + 1];
+        Arrays.fill(factors, 1000);
+
+        Fp16Report report = Fp16Report.compare(ModelSource.builtIn("dncnn.onnx"), new EngineOptions(),
+                new ImagePlus("fp16", stack), factors, 0, 0, 0);
+        assertTrue(report.isFp16Active());
+        assertEquals(3, report.getPlanes().size());
+        assertTrue(report.toString(), report.minPsnr() >= Fp16Report.DEFAULT_MIN_PSNR_DB);
+        assertTrue(report.toString(), report.isAcceptable(Fp16Report.DEFAULT_MIN_PSNR_DB));
+    }
+
+    private static void assertHalf(NodeInfo info) {
+        assertTrue(info.getName(), info.getInfo() instanceof TensorInfo);
+        assertEquals(info.getName(), OnnxJavaType.FLOAT16, ((TensorInfo) info.getInfo()).type);
+    }
+}
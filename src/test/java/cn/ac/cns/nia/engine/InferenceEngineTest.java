@@ -0,0 +1,193 @@
+package cn.ac.cns.nia.engine;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用内置 DnCNN 检查分块推理与整帧推理的一致性，以及分块边界的划分
+ */
+public class InferenceEngineTest {
+
+    private static InferenceEngine engine;
+
+    @BeforeClass
+    public static void loadModel() throws Exception {
+        engine = new InferenceEngine(ModelSource.builtIn("dncnn.onnx"), new EngineOptions());
+    }
+
+    @AfterClass
+    public static void closeModel() throws Exception {
+        if (engine != null) engine.close();
+    }
+
+    @Test
+    public void tiledMatchesWholeFrame() throws Exception {
+        // 尺寸不是块大小的整数倍，右侧和底部的块比内部的小
+        assertTiledMatchesWholeFrame(700, 530, 256, 32);
+    }
+
+    @Test
+    public void tiledMatchesWholeFrameWhenLastTileIsNarrowerThanOverlap() throws Exception {
+        // 按 tileSize 硬切时最后一块只有 4 像素，比 overlap 还窄
+        assertTiledMatchesWholeFrame(260, 300, 256, 32);
+    }
+
+    @Test
+    public void tiledPlaneUsesOneBufferShape() throws Exception {
+        // 300 x 270 按 128 分成 3 x 3 块，块长各不相同；边缘块的窗口向内平移后与内部块同样大
+        try (InferenceEngine fresh = new InferenceEngine(ModelSource.builtIn("dncnn.onnx"), new EngineOptions())) {
+            float[] input = noisyPlane(300, 270, 2);
+            for (int i = 0; i < 2; i++) fresh.inferTiled(input.clone(), 300, 270, 128, 16);
+            assertEquals(1, fresh.bufferShapes());
+        }
+    }
+
+    @Test
+    public void tileWindowsCoverTileAndHalo() {
+        for (int size : new int[]{257, 300, 530, 700}) {
+            int[] bounds = InferenceEngine.tileBounds(size, 256);
+            int halo = 32;
+            int window = Math.min(size, 256 + 2 * halo);
+            for (int i = 0; i < bounds.length - 1; i++) {
+                int start = InferenceEngine.windowStart(bounds[i], halo, window, size);
+                assertTrue(start >= 0 && start + window <= size);
+                assertTrue(start <= Math.max(0, bounds[i] - halo));
+                assertTrue(start + window >= Math.min(size, bounds[i + 1] + halo));
+            }
+        }
+    }
+
+    @Test
+    public void frameNotLargerThanTileIsNotSplit() {
+        assertArrayEquals(new int[]{0, 256}, InferenceEngine.tileBounds(256, 256));
+        assertArrayEquals(new int[]{0, 100}, InferenceEngine.tileBounds(100, 256));
+        assertArrayEquals(new int[]{0, 1}, InferenceEngine.tileBounds(1, 256));
+    }
+
+    @Test
+    public void tilesAreSplitEvenly() {
+        // 260 = 256 + 4：两块均分，而不是 256 + 4
+        assertArrayEquals(new int[]{0, 130, 260}, InferenceEngine.tileBounds(260, 256));
+        for (int size : new int[]{257, 530, 700, 1000, 4099}) {
+            int[] bounds = InferenceEngine.tileBounds(size, 256);
+            assertEquals(0, bounds[0]);
+            assertEquals(size, bounds[bounds.length - 1]);
+            assertEquals((size + 255) / 256, bounds.length - 1);
+            for (int i = 0; i < bounds.length - 1; i++) {
+                int span = bounds[i + 1] - bounds[i];
+                assertTrue("span " + span + " of " + size, span <= 256 && span >= 256 / 2);
+            }
+        }
+    }
+
+    @Test
+    public void rampWeightsSumToOne() {
+        for (int ramp : new int[]{0, 1, 16}) {
+            int size = 530;
+            int halo = 32;
+            int[] bounds = InferenceEngine.tileBounds(size, 256);
+            int window = 177 + 2 * halo;
+            float[] sum = new float[size];
+            for (int i = 0; i < bounds.length - 1; i++) {
+                int from = InferenceEngine.windowStart(bounds[i], halo, window, size);
+                int to = from + window;
+                float[] w = InferenceEngine.rampWeights(from, to, bounds, i, ramp);
+                for (int p = from; p < to; p++) sum[p] += w[p - from];
+            }
+            for (int p = 0; p < size; p++) assertEquals("ramp " + ramp + " at " + p, 1f, sum[p], 1e-6f);
+        }
+    }
+
+    @Test
+    public void bucketedInferenceCropsBackAndMatchesInterior() throws Exception {
+        EngineOptions options = new EngineOptions();
+        options.shapeBucket = 64;
+        try (InferenceEngine bucketed = new InferenceEngine(ModelSource.builtIn("dncnn.onnx"), options)) {
+            // 150 x 100 填充到 192 x 128；两张平面一个 batch
+            int width = 150;
+            int height = 100;
+            float[] first = noisyPlane(width, height, 3);
+            float[] second = noisyPlane(width, height, 4);
+            float[] packed = new float[2 * width * height];
+            System.arraycopy(first, 0, packed, 0, first.length);
+            System.arraycopy(second, 0, packed, first.length, second.length);
+
+            float[] out = bucketed.inferPlanes(packed, 2, width, height);
+            assertEquals(2 * width * height, out.length);
+            float[][] expected = {engine.inferTiled(first, width, height, 0, 0), engine.inferTiled(second, width, height, 0, 0)};
+            // 右侧和下方感受野 (17 像素) 以内受填充方式影响 (镜像 vs 模型自身的零填充)，其余部分应一致
+            for (int b = 0; b < 2; b++) {
+                for (int y = 0; y < height - 17; y++) {
+                    for (int x = 0; x < width - 17; x++) {
+                        int i = y * width + x;
+                        assertEquals("plane " + b + " at " + x + "," + y, expected[b][i], out[b * width * height + i], 1e-4f);
+                    }
+                }
+            }
+
+            // 1 和 2 像素宽的平面也能镜像填充、裁回原尺寸
+            for (int[] size : new int[][]{{1, 1}, {2, 1}, {1, 2}, {2, 2}, {2, 70}}) {
+                float[] tiny = bucketed.inferTiled(noisyPlane(size[0], size[1], 5), size[0], size[1], 0, 0);
+                assertEquals(size[0] * size[1], tiny.length);
+                for (float v : tiny) assertTrue(!Float.isNaN(v) && !Float.isInfinite(v));
+            }
+        }
+    }
+
+    @Test
+    public void reflectPadMirrorsWithoutRepeatingTheEdge() {
+        // 与 numpy.pad(mode="reflect") 相同：[1, 2, 3] -> [1, 2, 3, 2, 1, 2, 3]
+        assertArrayEquals(new float[]{1, 2, 3, 2, 1, 2, 3},
+                InferenceEngine.reflectPad(new float[]{1, 2, 3}, 1, 3, 1, 7, 1), 0f);
+        // 1 像素：重复唯一的值
+        assertArrayEquals(new float[]{7, 7, 7, 7},
+                InferenceEngine.reflectPad(new float[]{7}, 1, 1, 1, 4, 1), 0f);
+        assertArrayEquals(new float[]{7, 7, 7},
+                InferenceEngine.reflectPad(new float[]{7}, 1, 1, 1, 1, 3), 0f);
+        // 2 像素：来回折返
+        assertArrayEquals(new float[]{1, 2, 1, 2, 1},
+                InferenceEngine.reflectPad(new float[]{1, 2}, 1, 2, 1, 5, 1), 0f);
+        // 2 x 2，两张平面，各自独立填充到 3 x 3
+        assertArrayEquals(new float[]{
+                        1, 2, 1,
+                        3, 4, 3,
+                        1, 2, 1,
+                        5, 6, 5,
+                        7, 8, 7,
+                        5, 6, 5},
+                InferenceEngine.reflectPad(new float[]{1, 2, 3, 4, 5, 6, 7, 8}, 2, 2, 2, 3, 3), 0f);
+        // 不需要填充时原样复制
+        float[] plane = noisyPlane(5, 4, 6);
+        assertArrayEquals(plane, InferenceEngine.reflectPad(plane, 1, 5, 4, 5, 4), 0f);
+    }
+
+    private static void assertTiledMatchesWholeFrame(int width, int height, int tileSize, int overlap) throws Exception {
+        float[] input = noisyPlane(width, height, 1);
+        float[] whole = engine.inferTiled(input.clone(), width, height, 0, 0);
+        float[] tiled = engine.inferTiled(input.clone(), width, height, tileSize, overlap);
+
+        float maxDiff = 0;
+        for (int i = 0; i < whole.length; i++) maxDiff = Math.max(maxDiff, Math.abs(whole[i] - tiled[i]));
+        assertTrue(width + "x" + height + " max diff " + maxDiff, maxDiff < 1e-4f);
+    }
+
+    // 归一化空间里的平滑结构 + 高斯噪声
+    static float[] noisyPlane(int width, int height, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double signal = 0.3 + 0.2 * Math.sin(x / 23.0) * Math.cos(y / 17.0);
+                pixels[y * width + x] = (float) (signal + 0.05 * random.nextGaussian());
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,125 @@
+package cn.ac.cns.nia.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 解析 ORT 写出的 trace。ort-profile-trace.json 是内置模型 (64 x 48，intra-op 2 线程，预热 + 2 次 run) 的真实 trace，
+ * 只保留了 Session 事件和 Transpose / conv2d_1 / Relu / Sub 四个节点 (含 fence 事件)
+ */
+public class OperatorProfileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void warmUpRunIsExcluded() throws Exception {
+        OperatorProfile profile = OperatorProfile.parse("dncnn", trace());
+        // 预热的 model_run (40.7ms) 和其间的节点都不计入
+        String table = profile.table();
+        assertTrue(table, table.contains("2 runs): model_run 172.5ms, kernels 17.4ms (10.1%), session init 15.7ms"));
+        assertEquals(17356.0 / 172474, profile.kernelShare(), 1e-12);
+        for (OperatorProfile.Entry e : profile.getOps()) assertEquals(e.name, 2, e.getCalls());
+    }
+
+    @Test
+    public void totalsPerOpType() throws Exception {
+        List<OperatorProfile.Entry> ops = OperatorProfile.parse("dncnn", trace()).getOps();
+        assertEquals(4, ops.size());
+        // 按总耗时从高到低；fence 事件没有 provider，不算作调用
+        assertEntry(ops.get(0), "Relu", 12.773, 2 * 786432);
+        assertEntry(ops.get(1), "Sub", 4.047, 2 * 12288);
+        assertEntry(ops.get(2), "Conv", 0.495, 2 * 786432);
+        assertEntry(ops.get(3), "Transpose", 0.041, 2 * 12288);
+    }
+
+    @Test
+    public void sharesAndThreadColumns() throws Exception {
+        OperatorProfile profile = OperatorProfile.parse("dncnn", trace());
+        String table = profile.table();
+        // output_size 在 trace 里是字符串："786432" -> 每次 run 0.75 MB
+        assertTrue(table, table.matches("(?s).*\\n  Relu +2 +12\\.8 +73\\.6% +6\\.39 +0\\.8  CPU +intra-op x2\\n.*"));
+        assertTrue(table, table.matches("(?s).*\\n  Sub +2 +4\\.0 +23\\.3% +2\\.02 +0\\.0  CPU +intra-op x2\\n.*"));
+        // 最慢节点带输出形状
+        assertTrue(table, table.matches(
+                "(?s).*\\n  conv2d_1 +Conv +0\\.5 +2\\.9% +0\\.8  CPU +intra-op x2 +float\\[1,64,48,64\\]\\n.*"));
+
+        for (OperatorProfile.Entry e : profile.getOps()) {
+            assertEquals(e.name, "CPU", e.provider());
+            // main_thread 的线程池 session-1-intra-op 去掉前缀，子线程 num_run > 0 时也参与了
+            assertEquals(e.name, "intra-op x2", e.threads());
+        }
+        List<OperatorProfile.Entry> nodes = profile.getNodes();
+        assertEquals("Relu", nodes.get(0).name);
+        assertEquals("TFNodes_subtract_1_sub", nodes.get(1).name);
+        assertEquals("Sub", nodes.get(1).opType);
+    }
+
+    @Test
+    public void singleRunTraceWithoutThreadPool() throws Exception {
+        // 只有一次 run 时不当作预热；数值型 output_size；单线程时 thread_scheduling_stats 里没有线程池
+        File file = write("["
+                + "{\"cat\":\"Session\",\"dur\":500,\"ts\":0,\"name\":\"session_initialization\",\"args\":{}},"
+                + "{\"cat\":\"Session\",\"dur\":1000,\"ts\":600,\"name\":\"model_run\",\"args\":{}},"
+                + "{\"cat\":\"Node\",\"dur\":1,\"ts\":610,\"name\":\"c\\u006fnv_fence_before\",\"args\":{\"op_name\":\"Conv\"}},"
+                + "{\"cat\":\"Node\",\"dur\":800,\"ts\":612,\"name\":\"conv_kernel_time\",\"args\":{"
+                + "\"thread_scheduling_stats\":{\"main_thread\":{\"thread_pool_name\":\"\"},\"sub_threads\":{}},"
+                + "\"output_type_shape\":[{\"float\":[1,8,4,4]}],\"output_size\":2097152,"
+                + "\"provider\":\"CPUExecutionProvider\",\"op_name\":\"Conv\"}},"
+                + "{\"cat\":\"Node\",\"dur\":0,\"ts\":1413,\"name\":\"conv_fence_after\",\"args\":{\"op_name\":\"Conv\"}}"
+                + "]");
+        OperatorProfile profile = OperatorProfile.parse("tiny", file);
+        assertEquals(0.8, profile.kernelShare(), 1e-12);
+        OperatorProfile.Entry conv = profile.getOps().get(0);
+        assertEquals(1, conv.getCalls());
+        assertEquals(2097152, conv.getOutputBytes());
+        assertEquals("caller", conv.threads());
+        assertTrue(profile.table(), profile.table().contains("float[1,8,4,4]"));
+    }
+
+    @Test
+    public void malformedTraceIsRejected() throws Exception {
+        String[] broken = {
+                "{\"cat\":\"Session\"}",                 // 不是事件数组
+                "[{\"cat\":\"Session\",\"dur\":1",       // 截断
+                "[{\"cat\":\"Session\"}] x",             // 尾部多余数据
+                "[{\"name\":\"unterminated}]",
+                "[{\"dur\":1e}]",
+        };
+        for (String text : broken) {
+            try {
+                OperatorProfile.parse("broken", write(text));
+                fail("accepted " + text);
+            } catch (IOException expected) {
+                // ok
+            }
+        }
+    }
+
+    private static void assertEntry(OperatorProfile.Entry e, String opType, double millis, long outputBytes) {
+        assertEquals(opType, e.name);
+        assertEquals(opType, millis, e.millis(), 1e-9);
+        assertEquals(opType, outputBytes, e.getOutputBytes());
+    }
+
+    private File write(String text) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static File trace() throws Exception {
+        return new File(OperatorProfileTest.class.getResource("ort-profile-trace.json").toURI());
+    }
+}
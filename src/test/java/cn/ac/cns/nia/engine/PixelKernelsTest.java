@@ -0,0 +1,151 @@
+package cn.ac.cns.nia.engine;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 一遍式内核与原来的 ImageJ 路径 (convertToFloat / 乘回系数截断负值后 convertToByte(false) / convertToShort(false))
+ * 必须逐像素相同；分别在并行阈值以下和以上各跑一次
+ */
+public class PixelKernelsTest {
+
+    // 300 x 200 单线程；700 x 530 超过 PARALLEL_THRESHOLD，按 CHUNK 并行，最后一块不满
+    private static final int[][] SIZES = {{300, 200}, {700, 530}};
+    private static final float[] SCALES = {1f, 255f, 1000f, 4095.5f, 65535f};
+
+    @Test
+    public void sizesCoverBothPaths() {
+        assertTrue(SIZES[0][0] * SIZES[0][1] < PixelKernels.PARALLEL_THRESHOLD);
+        int large = SIZES[1][0] * SIZES[1][1];
+        assertTrue(large >= PixelKernels.PARALLEL_THRESHOLD && large % PixelKernels.CHUNK != 0);
+    }
+
+    @Test
+    public void normalizeMatchesConvertToFloat() {
+        for (int[] size : SIZES) {
+            for (float scale : SCALES) {
+                for (ImageProcessor ip : inputs(size[0], size[1])) {
+                    // 32-bit 时 convertToFloat 返回的就是原数组，先复制
+                    float[] expected = ((float[]) ip.convertToFloat().getPixels()).clone();
+                    for (int i = 0; i < expected.length; i++) expected[i] /= scale;
+
+                    // 写到非零偏移处，检查偏移和边界
+                    float[] dst = new float[expected.length + 7];
+                    PixelKernels.normalize(ip.getPixels(), dst, 7, scale);
+                    float[] actual = new float[expected.length];
+                    System.arraycopy(dst, 7, actual, 0, actual.length);
+                    assertArrayEquals(describe(ip, scale), expected, actual, 0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void denormalizeToByteMatchesConvertToByte() {
+        for (int[] size : SIZES) {
+            for (float scale : SCALES) {
+                float[] values = modelOutput(size[0] * size[1], 255, scale, 11);
+                byte[] expected = (byte[]) reference(values, size, scale).convertToByte(false).getPixels();
+                byte[] actual = new byte[values.length];
+                PixelKernels.denormalize(values, 0, actual, scale);
+                assertArrayEquals("8-bit " + size[0] + "x" + size[1] + " scale " + scale, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void denormalizeToShortMatchesConvertToShort() {
+        for (int[] size : SIZES) {
+            for (float scale : SCALES) {
+                float[] values = modelOutput(size[0] * size[1], 65535, scale, 12);
+                short[] expected = (short[]) reference(values, size, scale).convertToShort(false).getPixels();
+                short[] actual = new short[values.length];
+                PixelKernels.denormalize(values, 0, actual, scale);
+                assertArrayEquals("16-bit " + size[0] + "x" + size[1] + " scale " + scale, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void denormalizeToFloatClampsNegatives() {
+        for (int[] size : SIZES) {
+            for (float scale : SCALES) {
+                float[] values = modelOutput(size[0] * size[1], 1000, scale, 13);
+                float[] expected = (float[]) reference(values, size, scale).getPixels();
+                // 从非零偏移处读，模拟批量结果中的第二张平面
+                float[] packed = new float[values.length * 2];
+                System.arraycopy(values, 0, packed, values.length, values.length);
+                float[] actual = new float[values.length];
+                PixelKernels.denormalize(packed, values.length, actual, scale);
+                assertArrayEquals("32-bit " + size[0] + "x" + size[1] + " scale " + scale, expected, actual, 0f);
+            }
+        }
+    }
+
+    /**
+     * 原来的后处理：乘回系数、负值截断为 0，放进 FloatProcessor
+     */
+    private static FloatProcessor reference(float[] values, int[] size, float scale) {
+        float[] pixels = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            float v = values[i] * scale;
+            pixels[i] = (v < 0) ? 0 : v;
+        }
+        return new FloatProcessor(size[0], size[1], pixels);
+    }
+
+    private static ImageProcessor[] inputs(int width, int height) {
+        Random random = new Random(width * 31L + height);
+        byte[] bytes = new byte[width * height];
+        short[] shorts = new short[width * height];
+        float[] floats = new float[width * height];
+        random.nextBytes(bytes);
+        for (int i = 0; i < shorts.length; i++) {
+            // 覆盖 0..65535 全范围，包括 >= 32768 (short 为负) 的部分
+            shorts[i] = (short) random.nextInt(65536);
+            floats[i] = (float) (random.nextGaussian() * 500);
+        }
+        return new ImageProcessor[]{
+                new ByteProcessor(width, height, bytes),
+                new ShortProcessor(width, height, shorts, null),
+                new FloatProcessor(width, height, floats)
+        };
+    }
+
+    /**
+     * 模拟模型输出 (归一化空间)：含负值、超出 [0, max] 的值，以及乘回系数后正好落在 .5 取整边界附近的值
+     */
+    private static float[] modelOutput(int n, int max, float scale, long seed) {
+        Random random = new Random(seed);
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            switch (i % 4) {
+                case 0:
+                    values[i] = random.nextFloat() * max * 1.2f / scale;
+                    break;
+                case 1:
+                    values[i] = -random.nextFloat();
+                    break;
+                case 2:
+                    values[i] = (random.nextInt(max) + 0.5f + (random.nextInt(3) - 1) * 1e-3f) / scale;
+                    break;
+                default:
+                    values[i] = random.nextInt(max + 1) / scale;
+                    break;
+            }
+        }
+        return values;
+    }
+
+    private static String describe(ImageProcessor ip, float scale) {
+        return ip.getBitDepth() + "-bit " + ip.getWidth() + "x" + ip.getHeight() + " scale " + scale;
+    }
+}
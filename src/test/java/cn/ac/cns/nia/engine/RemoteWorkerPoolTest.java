@@ -0,0 +1,67 @@
+package cn.ac.cns.nia.engine;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用恒等 mock worker (不加载模型) 检查进程外推理的传输、结果顺序与崩溃后的重启重试
+ */
+public class RemoteWorkerPoolTest {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+
+    @Test
+    public void crashedWorkerIsRestartedAndRequestRetried() throws Exception {
+        try (RemoteWorkerPool pool = RemoteWorkerPool.mock(1, 3)) {
+            PlaneInference worker = pool.acquire();
+            try {
+                // 第 4 个请求时 worker 退出，重启后同一批平面重发
+                for (int i = 0; i < 5; i++) {
+                    float[] plane = plane(i);
+                    assertArrayEquals(plane, worker.inferPlanes(plane.clone(), 1, WIDTH, HEIGHT, null), 0f);
+                }
+            } finally {
+                pool.release(worker);
+            }
+            assertEquals(1, pool.getRestarts());
+        }
+    }
+
+    @Test
+    public void pipelineKeepsPlaneOrderAcrossWorkerCrashes() throws Exception {
+        int planes = 12;
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        double[] factors = new double[planes + 1];
+        for (int i = 1; i <= planes; i++) {
+            stack.addSlice(new FloatProcessor(WIDTH, HEIGHT, plane(i)));
+            factors[i] = 1000;
+        }
+        int[] order = new int[planes];
+        for (int i = 0; i < planes; i++) order[i] = i + 1;
+
+        try (RemoteWorkerPool pool = RemoteWorkerPool.mock(2, 3)) {
+            new StackPipeline(pool, stack, factors)
+                    .setBatchSize(1)
+                    .setQueueDepth(2)
+                    .run(order, null);
+            // 每个 worker 处理 3 个请求后崩溃，12 个平面至少触发两次重启
+            assertTrue("expected worker restarts, got " + pool, pool.getRestarts() >= 2);
+        }
+        for (int i = 1; i <= planes; i++) {
+            assertArrayEquals("plane " + i, plane(i), (float[]) stack.getPixels(i), 1e-3f);
+        }
+    }
+
+    // 每个平面的值各不相同，结果写错位置时能看出来
+    private static float[] plane(int index) {
+        float[] pixels = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = index * 50 + i % WIDTH;
+        return pixels;
+    }
+}
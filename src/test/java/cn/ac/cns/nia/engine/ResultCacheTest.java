@@ -0,0 +1,191 @@
+package cn.ac.cns.nia.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 结果缓存：各像素类型的读写、按修改时间重建的 LRU 顺序、大小上限，以及损坏文件按未命中处理
+ */
+public class ResultCacheTest {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsEveryPixelType() throws Exception {
+        ResultCache cache = ResultCache.open(folder.getRoot(), 1L << 30);
+        Random random = new Random(1);
+        byte[] bytes = new byte[WIDTH * HEIGHT];
+        short[] shorts = new short[WIDTH * HEIGHT];
+        float[] floats = new float[WIDTH * HEIGHT];
+        int[] ints = new int[WIDTH * HEIGHT];
+        random.nextBytes(bytes);
+        for (int i = 0; i < shorts.length; i++) {
+            shorts[i] = (short) random.nextInt(65536);
+            floats[i] = (float) random.nextGaussian() * 1000;
+            ints[i] = random.nextInt();
+        }
+
+        for (Object pixels : new Object[]{bytes, shorts, floats, ints}) {
+            String key = cache.key("model", 1000, WIDTH, HEIGHT, pixels);
+            assertNull(cache.get(key, pixels));
+            cache.put(key, pixels);
+            Object read = cache.get(key, pixels);
+            assertNotNull(read);
+            assertTrue(pixels.getClass() + " round trip", Arrays.deepEquals(new Object[]{pixels}, new Object[]{read}));
+        }
+        assertEquals(4, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void keyDependsOnContextFactorSizeAndPixels() throws Exception {
+        ResultCache cache = ResultCache.open(folder.getRoot(), 1L << 30);
+        short[] pixels = plane(1);
+        String base = cache.key("model", 1000, WIDTH, HEIGHT, pixels);
+        assertEquals(base, cache.key("model", 1000, WIDTH, HEIGHT, pixels.clone()));
+        assertNotEquals(base, cache.key("other", 1000, WIDTH, HEIGHT, pixels));
+        assertNotEquals(base, cache.key("model", 1001, WIDTH, HEIGHT, pixels));
+        assertNotEquals(base, cache.key("model", 1000, HEIGHT, WIDTH, pixels));
+        short[] edited = pixels.clone();
+        edited[17]++;
+        assertNotEquals(base, cache.key("model", 1000, WIDTH, HEIGHT, edited));
+    }
+
+    @Test
+    public void reopenRebuildsLruOrderFromModificationTime() throws Exception {
+        File dir = folder.getRoot();
+        ResultCache cache = ResultCache.open(dir, 1L << 30);
+        String[] keys = new String[4];
+        for (int i = 0; i < keys.length; i++) {
+            short[] pixels = plane(i);
+            keys[i] = cache.key("model", 1000, WIDTH, HEIGHT, pixels);
+            cache.put(keys[i], pixels);
+        }
+        long size = entry(dir, keys[0]).length();
+        for (String key : keys) assertEquals(size, entry(dir, key).length());
+
+        // 写入顺序是 0..2，修改时间却是 1 最旧、2 其次、0 最新
+        long now = System.currentTimeMillis();
+        assertTrue(entry(dir, keys[1]).setLastModified(now - 300_000));
+        assertTrue(entry(dir, keys[2]).setLastModified(now - 200_000));
+        assertTrue(entry(dir, keys[0]).setLastModified(now - 100_000));
+        Files.delete(entry(dir, keys[3]).toPath());
+
+        // 只容得下两项：重新打开时淘汰修改时间最旧的 1
+        cache = ResultCache.open(dir, 2 * size + size / 2);
+        assertFalse(entry(dir, keys[1]).exists());
+        assertTrue(entry(dir, keys[0]).exists());
+        assertTrue(entry(dir, keys[2]).exists());
+        assertEquals(2 * size, cache.getSizeBytes());
+
+        // 命中 2 之后，最久未用的是 0
+        assertNotNull(cache.get(keys[2], plane(2)));
+        cache.put(keys[3], plane(3));
+        assertFalse(entry(dir, keys[0]).exists());
+        assertTrue(entry(dir, keys[2]).exists());
+        assertTrue(entry(dir, keys[3]).exists());
+        assertArrayEquals(plane(2), (short[]) cache.get(keys[2], plane(2)));
+    }
+
+    @Test
+    public void sizeStaysUnderTheCap() throws Exception {
+        File dir = folder.getRoot();
+        long cap = 10 * WIDTH * HEIGHT * 2;
+        ResultCache cache = ResultCache.open(dir, cap);
+        for (int i = 0; i < 40; i++) {
+            short[] pixels = plane(i);
+            cache.put(cache.key("model", 1000, WIDTH, HEIGHT, pixels), pixels);
+            assertTrue(cache.getSizeBytes() <= cap);
+            assertEquals(cache.getSizeBytes(), bytesOnDisk(dir));
+        }
+        assertTrue(cache.toString().contains("evicted"));
+
+        // 用更小的上限重新打开，立即淘汰到上限以内
+        cache = ResultCache.open(dir, cap / 3);
+        assertTrue(cache.getSizeBytes() <= cap / 3);
+        assertEquals(cache.getSizeBytes(), bytesOnDisk(dir));
+    }
+
+    @Test
+    public void corruptOrTruncatedEntryIsAMiss() throws Exception {
+        File dir = folder.getRoot();
+        short[] pixels = plane(1);
+        byte[][] damage = new byte[4][];
+        ResultCache cache = ResultCache.open(dir, 1L << 30);
+        String key = cache.key("model", 1000, WIDTH, HEIGHT, pixels);
+        cache.put(key, pixels);
+        byte[] good = Files.readAllBytes(entry(dir, key).toPath());
+
+        damage[0] = Arrays.copyOf(good, good.length / 2);   // 压缩数据被截断
+        damage[1] = Arrays.copyOf(good, 6);                 // 头部被截断
+        damage[2] = good.clone();                           // 压缩数据被改写
+        for (int i = 9; i < damage[2].length; i++) damage[2][i] = (byte) (i * 31);
+        damage[3] = good.clone();                           // 魔数不对
+        damage[3][0] ^= 0x55;
+
+        for (int i = 0; i < damage.length; i++) {
+            Files.write(entry(dir, key).toPath(), damage[i]);
+            cache = ResultCache.open(dir, 1L << 30);
+            assertNull("damage " + i, cache.get(key, pixels));
+            assertEquals(1, cache.getMisses());
+            assertFalse("damage " + i, entry(dir, key).exists());
+            assertEquals(0, cache.getSizeBytes());
+
+            // 重新写入后又能命中
+            cache.put(key, pixels);
+            assertArrayEquals(pixels, (short[]) cache.get(key, pixels));
+        }
+
+        // 类型或长度对不上也是未命中
+        assertNull(cache.get(key, new float[pixels.length]));
+        assertNull(ResultCache.open(dir, 1L << 30).get(key, new short[pixels.length + 1]));
+    }
+
+    @Test
+    public void entryDeletedByAnotherProcessIsAMiss() throws Exception {
+        File dir = folder.getRoot();
+        ResultCache cache = ResultCache.open(dir, 1L << 30);
+        short[] pixels = plane(1);
+        String key = cache.key("model", 1000, WIDTH, HEIGHT, pixels);
+        cache.put(key, pixels);
+        Files.delete(entry(dir, key).toPath());
+        assertNull(cache.get(key, pixels));
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    private static File entry(File dir, String key) {
+        return new File(dir, key + ".nrc");
+    }
+
+    private static long bytesOnDisk(File dir) {
+        long total = 0;
+        for (File f : dir.listFiles()) total += f.length();
+        return total;
+    }
+
+    // 随机像素几乎不可压缩，同样长度的平面压缩后大小相同
+    private static short[] plane(long seed) {
+        Random random = new Random(seed);
+        short[] pixels = new short[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = (short) random.nextInt(65536);
+        return pixels;
+    }
+}
@@ -0,0 +1,187 @@
+package cn.ac.cns.nia.io;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import ij.process.ShortProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 清单的读写与校验：同一标识续跑，标识不同或清单截断 / 损坏时从头开始
+ */
+public class CheckpointTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 12;
+    private static final int PLANES = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resumesCompletedPlanes() throws Exception {
+        ImagePlus source = stack();
+        File file = new File(folder.getRoot(), "out.tif");
+        interruptedRun(file, source, "run-a", 1, 2, 3, 7);
+
+        try (Checkpoint checkpoint = Checkpoint.open(file, "run-a", source, 0)) {
+            assertEquals(4, checkpoint.getResumedCount());
+            assertTrue(checkpoint.isDone(7));
+            assertFalse(checkpoint.isDone(4));
+            assertArrayEquals(new int[]{4, 5, 6, 8, 9, 10}, checkpoint.remaining(order()));
+            for (int i : checkpoint.remaining(order())) checkpoint.writePlane(i, plane(source, i));
+            checkpoint.finish();
+        }
+        assertFalse(manifest(file).exists());
+
+        // 断点前后写入的平面拼成完整结果
+        ImagePlus read = new Opener().openImage(file.getPath());
+        for (int i = 1; i <= PLANES; i++) {
+            assertArrayEquals("plane " + i, plane(source, i), (short[]) read.getStack().getPixels(i));
+        }
+    }
+
+    @Test
+    public void differentIdentityStartsOver() throws Exception {
+        ImagePlus source = stack();
+        File file = new File(folder.getRoot(), "out.tif");
+        interruptedRun(file, source, "run-a", 1, 2, 3);
+
+        try (Checkpoint checkpoint = Checkpoint.open(file, "run-b", source, 0)) {
+            assertEquals(0, checkpoint.getResumedCount());
+            assertEquals(PLANES, checkpoint.remaining(order()).length);
+        }
+    }
+
+    @Test
+    public void truncatedManifestIsRejected() throws Exception {
+        ImagePlus source = stack();
+        File file = new File(folder.getRoot(), "out.tif");
+        interruptedRun(file, source, "run-a", 1, 2, 3, 4, 5, 6);
+
+        // 截到 done 那一行中间："1-6" 变成 "1-"，或者只剩 "1"，completed 也就对不上了
+        byte[] bytes = Files.readAllBytes(manifest(file).toPath());
+        String text = new String(bytes, "ISO-8859-1");
+        int cut = text.indexOf("done=1-") + "done=1".length();
+        for (int end : new int[]{cut, cut + 1, bytes.length / 2}) {
+            interruptedRun(file, source, "run-a", 1, 2, 3, 4, 5, 6);
+            Files.write(manifest(file).toPath(), Arrays.copyOf(bytes, end));
+            try (Checkpoint checkpoint = Checkpoint.open(file, "run-a", source, 0)) {
+                assertEquals("manifest cut at " + end, 0, checkpoint.getResumedCount());
+            }
+        }
+    }
+
+    @Test
+    public void corruptManifestIsRejected() throws Exception {
+        ImagePlus source = stack();
+        File file = new File(folder.getRoot(), "out.tif");
+        String[][] corruptions = {
+                {"done", "1-3,x"},
+                {"done", "5-2"},
+                {"done", "0-3"},
+                {"done", "1-" + (PLANES + 1)},
+                {"completed", "5"},
+                {"planes", String.valueOf(PLANES + 1)},
+                {"format", "v0"},
+        };
+        for (String[] corruption : corruptions) {
+            interruptedRun(file, source, "run-a", 1, 2, 3, 4);
+            Properties p = new Properties();
+            try (InputStream in = Files.newInputStream(manifest(file).toPath())) {
+                p.load(in);
+            }
+            p.setProperty(corruption[0], corruption[1]);
+            try (OutputStream out = Files.newOutputStream(manifest(file).toPath())) {
+                p.store(out, null);
+            }
+            try (Checkpoint checkpoint = Checkpoint.open(file, "run-a", source, 0)) {
+                assertEquals(corruption[0] + "=" + corruption[1], 0, checkpoint.getResumedCount());
+            }
+        }
+    }
+
+    @Test
+    public void missingOutputFileStartsOver() throws Exception {
+        ImagePlus source = stack();
+        File file = new File(folder.getRoot(), "out.tif");
+        interruptedRun(file, source, "run-a", 1, 2);
+        assertTrue(file.delete());
+
+        try (Checkpoint checkpoint = Checkpoint.open(file, "run-a", source, 0)) {
+            assertEquals(0, checkpoint.getResumedCount());
+        }
+    }
+
+    @Test
+    public void rangesRoundTrip() {
+        BitSet set = new BitSet();
+        set.set(1, 41);
+        set.set(43);
+        set.set(50, 52);
+        assertEquals("1-40,43,50-51", Checkpoint.formatRanges(set));
+        assertEquals(set, Checkpoint.parseRanges("1-40,43,50-51"));
+        assertEquals(new BitSet(), Checkpoint.parseRanges(""));
+    }
+
+    @Test
+    public void identityDependsOnEveryPart() {
+        String base = Checkpoint.identity("model=a", "factors=[1.0]");
+        assertEquals(base, Checkpoint.identity("model=a", "factors=[1.0]"));
+        assertFalse(base.equals(Checkpoint.identity("model=b", "factors=[1.0]")));
+        assertFalse(base.equals(Checkpoint.identity("model=a", "factors=[2.0]")));
+        // 分隔符也参与哈希，拼接方式不同不会撞在一起
+        assertFalse(Checkpoint.identity("ab", "c").equals(Checkpoint.identity("a", "bc")));
+    }
+
+    /**
+     * 写入部分平面后不 finish 就关闭，模拟被打断的运行
+     */
+    private static void interruptedRun(File file, ImagePlus source, String identity, int... planes) throws Exception {
+        Files.deleteIfExists(manifest(file).toPath());
+        Files.deleteIfExists(file.toPath());
+        try (Checkpoint checkpoint = Checkpoint.open(file, identity, source, 0)) {
+            for (int i : planes) checkpoint.writePlane(i, plane(source, i));
+        }
+        assertTrue(manifest(file).isFile());
+    }
+
+    private static File manifest(File file) {
+        return new File(file.getPath() + ".checkpoint");
+    }
+
+    private static ImagePlus stack() {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int i = 1; i <= PLANES; i++) {
+            short[] pixels = new short[WIDTH * HEIGHT];
+            for (int k = 0; k < pixels.length; k++) pixels[k] = (short) (i * 1000 + k);
+            stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        }
+        return new ImagePlus("stack", stack);
+    }
+
+    private static short[] plane(ImagePlus source, int index) {
+        return (short[]) source.getStack().getPixels(index);
+    }
+
+    private static int[] order() {
+        int[] order = new int[PLANES];
+        for (int i = 0; i < PLANES; i++) order[i] = i + 1;
+        return order;
+    }
+}
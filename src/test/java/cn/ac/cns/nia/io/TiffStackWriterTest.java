@@ -0,0 +1,239 @@
+package cn.ac.cns.nia.io;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Color;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 流式写出的 TIFF 用 ij.io.Opener 读回：维度、超栈顺序、像素、标定、显示范围和 LUT 都要与源图像一致
+ */
+public class TiffStackWriterTest {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compositeHyperstackRoundTrip() throws Exception {
+        ImagePlus source = composite();
+        File file = folder.newFile("composite.tif");
+        write(new TiffStackWriter(file, source), source);
+
+        assertEquals(source.getStackSize(), countIfds(file));
+        ImagePlus read = new Opener().openImage(file.getPath());
+        assertSameImage(source, read);
+        assertTrue(read.isComposite());
+        CompositeImage composite = (CompositeImage) read;
+        assertEquals(IJ.COMPOSITE, composite.getMode());
+        for (int c = 1; c <= 2; c++) {
+            LUT expected = ((CompositeImage) source).getChannelLut(c);
+            LUT actual = composite.getChannelLut(c);
+            assertEquals("channel " + c + " min", expected.min, actual.min, 0);
+            assertEquals("channel " + c + " max", expected.max, actual.max, 0);
+            assertArrayEquals("channel " + c + " LUT", expected.getBytes(), actual.getBytes());
+        }
+    }
+
+    @Test
+    public void hugeLayoutRoundTrip() throws Exception {
+        // 只有第一个 IFD，ImageJ 按描述里的 images=N 读连续数据
+        ImagePlus source = hyperstack32();
+        File file = folder.newFile("huge.tif");
+        write(new TiffStackWriter(file, WIDTH, HEIGHT, 32, 1, source.getNSlices(), source.getNFrames(),
+                TiffStackWriter.metadata(source), false, true), source);
+
+        assertEquals(1, countIfds(file));
+        ImagePlus read = new Opener().openImage(file.getPath());
+        assertSameImage(source, read);
+        assertEquals(source.getDisplayRangeMin(), read.getDisplayRangeMin(), 0);
+        assertEquals(source.getDisplayRangeMax(), read.getDisplayRangeMax(), 0);
+    }
+
+    @Test
+    public void eightBitLutRoundTrip() throws Exception {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        Random random = new Random(3);
+        for (int i = 0; i < 4; i++) {
+            byte[] pixels = new byte[WIDTH * HEIGHT];
+            random.nextBytes(pixels);
+            stack.addSlice(new ByteProcessor(WIDTH, HEIGHT, pixels));
+        }
+        ImagePlus source = new ImagePlus("lut", stack);
+        source.setLut(LUT.createLutFromColor(Color.red));
+        calibrate(source);
+        File file = folder.newFile("lut.tif");
+        write(new TiffStackWriter(file, source), source);
+
+        ImagePlus read = new Opener().openImage(file.getPath());
+        assertSameImage(source, read);
+        LUT lut = read.getProcessor().getLut();
+        assertEquals(255, lut.getRed(255));
+        assertEquals(0, lut.getGreen(255));
+        assertEquals(0, lut.getBlue(255));
+    }
+
+    @Test
+    public void planesWithoutMetadataRoundTrip() throws Exception {
+        ImagePlus source = hyperstack32();
+        File file = folder.newFile("plain.tif");
+        write(new TiffStackWriter(file, WIDTH, HEIGHT, 32, 1, source.getNSlices(), source.getNFrames()), source);
+
+        ImagePlus read = new Opener().openImage(file.getPath());
+        assertEquals(source.getNSlices(), read.getNSlices());
+        assertEquals(source.getNFrames(), read.getNFrames());
+        assertPixels(source, read);
+    }
+
+    @Test
+    public void resumeKeepsPlanesOnlyWhenTheHeaderMatches() throws Exception {
+        ImagePlus source = composite();
+        File file = folder.newFile("resume.tif");
+        try (TiffStackWriter writer = new TiffStackWriter(file, source)) {
+            writer.writePlane(3, source.getStack().getPixels(3));
+        }
+
+        short[] plane = new short[WIDTH * HEIGHT];
+        try (TiffStackWriter writer = new TiffStackWriter(file, source, true)) {
+            assertTrue(writer.isResumed());
+            writer.readPlane(3, plane);
+        }
+        assertArrayEquals((short[]) source.getStack().getPixels(3), plane);
+
+        // 显示范围变了，描述和文件头随之变化，旧的平面不再可用
+        source.setC(1);
+        source.setDisplayRange(5, 6000);
+        try (TiffStackWriter writer = new TiffStackWriter(file, source, true)) {
+            assertFalse(writer.isResumed());
+        }
+    }
+
+    private static ImagePlus composite() {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        Random random = new Random(1);
+        for (int i = 0; i < 2 * 3 * 2; i++) {
+            short[] pixels = new short[WIDTH * HEIGHT];
+            for (int k = 0; k < pixels.length; k++) pixels[k] = (short) random.nextInt(65536);
+            stack.addSlice("plane " + (i + 1), new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        }
+        ImagePlus imp = new ImagePlus("composite", stack);
+        imp.setDimensions(2, 3, 2);
+        CompositeImage composite = new CompositeImage(imp, IJ.COMPOSITE);
+        composite.setChannelLut(LUT.createLutFromColor(Color.magenta), 1);
+        composite.setChannelLut(LUT.createLutFromColor(Color.cyan), 2);
+        composite.setPosition(1, 1, 1);
+        composite.setDisplayRange(100, 40000);
+        composite.setPosition(2, 1, 1);
+        composite.setDisplayRange(2000, 9000);
+        calibrate(composite);
+        return composite;
+    }
+
+    private static ImagePlus hyperstack32() {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        Random random = new Random(2);
+        for (int i = 0; i < 4 * 3; i++) {
+            float[] pixels = new float[WIDTH * HEIGHT];
+            for (int k = 0; k < pixels.length; k++) pixels[k] = (float) random.nextGaussian() * 100;
+            stack.addSlice(new FloatProcessor(WIDTH, HEIGHT, pixels));
+        }
+        ImagePlus imp = new ImagePlus("float", stack);
+        imp.setDimensions(1, 4, 3);
+        imp.setOpenAsHyperStack(true);
+        imp.setDisplayRange(-50, 250);
+        calibrate(imp);
+        return imp;
+    }
+
+    private static void calibrate(ImagePlus imp) {
+        Calibration cal = imp.getCalibration();
+        cal.setUnit("micron");
+        cal.pixelWidth = 0.2;
+        cal.pixelHeight = 0.25;
+        cal.pixelDepth = 0.5;
+        cal.frameInterval = 2.5;
+    }
+
+    /**
+     * 按倒序写，检查按索引定位写入
+     */
+    private static void write(TiffStackWriter writer, ImagePlus source) throws Exception {
+        try {
+            ImageStack stack = source.getStack();
+            for (int i = stack.getSize(); i >= 1; i--) writer.writePlane(i, stack.getPixels(i));
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void assertSameImage(ImagePlus expected, ImagePlus actual) {
+        assertEquals(expected.getBitDepth(), actual.getBitDepth());
+        assertEquals(expected.getNChannels(), actual.getNChannels());
+        assertEquals(expected.getNSlices(), actual.getNSlices());
+        assertEquals(expected.getNFrames(), actual.getNFrames());
+        assertEquals(expected.isHyperStack(), actual.isHyperStack());
+        assertPixels(expected, actual);
+
+        Calibration e = expected.getCalibration();
+        Calibration a = actual.getCalibration();
+        assertEquals(e.getUnit(), a.getUnit());
+        assertEquals(e.pixelWidth, a.pixelWidth, 1e-6);
+        assertEquals(e.pixelHeight, a.pixelHeight, 1e-6);
+        assertEquals(e.pixelDepth, a.pixelDepth, 0);
+        assertEquals(e.frameInterval, a.frameInterval, 0);
+    }
+
+    private static void assertPixels(ImagePlus expected, ImagePlus actual) {
+        for (int c = 1; c <= expected.getNChannels(); c++) {
+            for (int z = 1; z <= expected.getNSlices(); z++) {
+                for (int t = 1; t <= expected.getNFrames(); t++) {
+                    int index = expected.getStackIndex(c, z, t);
+                    assertEquals(index, actual.getStackIndex(c, z, t));
+                    ImageProcessor e = expected.getStack().getProcessor(index);
+                    ImageProcessor a = actual.getStack().getProcessor(index);
+                    String plane = "c" + c + " z" + z + " t" + t;
+                    for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                        assertEquals(plane + " pixel " + i, e.getf(i), a.getf(i), 0f);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 数一数文件里链起来的 IFD
+     */
+    private static int countIfds(File file) throws Exception {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        int count = 0;
+        for (long ifd = bytes.getInt(4); ifd != 0; count++) {
+            int entries = bytes.getShort((int) ifd) & 0xffff;
+            ifd = bytes.getInt((int) ifd + 2 + entries * 12) & 0xffffffffL;
+        }
+        return count;
+    }
+}